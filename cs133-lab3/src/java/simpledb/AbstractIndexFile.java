@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Abstract class for implementing index files.  It handles reading and
+ * writing the pages of the file, building the index over an existing table,
+ * and turning the entries of the index into entry tuples or the tuples of
+ * the indexed table they point to.  Subclasses only need to implement the
+ * layout of their pages and the index operations.
+ *
+ * @see IndexFile
+ */
+public abstract class AbstractIndexFile implements IndexFile {
+
+    private final File f;
+    private final int id;
+    private final int tableId;
+    private final int keyField;
+    private final Type keyType;
+    private final TupleDesc td;
+
+    /**
+     * Constructs an index backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this index
+     * @param tableId the id of the table this index points into
+     * @param keyField the index of the field of that table used as the key
+     * @param tableTd the TupleDesc of that table
+     */
+    protected AbstractIndexFile(File f, int tableId, int keyField, TupleDesc tableTd) {
+        this.f = f;
+        this.id = f.getAbsoluteFile().hashCode();
+        this.tableId = tableId;
+        this.keyField = keyField;
+        this.keyType = tableTd.getFieldType(keyField);
+        this.td = new TupleDesc(new Type[] { keyType, Type.INT_TYPE, Type.INT_TYPE },
+                new String[] { tableTd.getFieldName(keyField), "pageno", "slot" });
+    }
+
+    /** @return the File backing this index on disk */
+    public File getFile() {
+        return f;
+    }
+
+    /** @return the id of this index, which names its pages */
+    public int getId() {
+        return id;
+    }
+
+    /** @return the id of the table this index points into */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the index of the key field in the indexed table */
+    public int getKeyField() {
+        return keyField;
+    }
+
+    /** @return the type of the key field */
+    protected Type getKeyType() {
+        return keyType;
+    }
+
+    /**
+     * Returns the TupleDesc of the entries of this index, made of the key,
+     * and the page number and slot of the tuple it points to.
+     *
+     * @see #iterator
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** Write the first pages of a new, empty index */
+    protected abstract void initialize() throws IOException;
+
+    /** @return the page pid of this index, read from data */
+    protected abstract Page createPage(PageId pid, byte[] data) throws IOException;
+
+    /** @return the contents of a new page appended by {@link #appendEmptyPage} */
+    protected abstract byte[] createEmptyPageData();
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws IOException {
+        if (numPages() == 0)
+            initialize();
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            if ((long) (pid.pageNumber() + 1) * BufferPool.getPageSize() > raf.length())
+                throw new IllegalArgumentException("Read past end of index");
+            byte pageBuf[] = new byte[BufferPool.getPageSize()];
+            raf.seek((long) pid.pageNumber() * BufferPool.getPageSize());
+            raf.readFully(pageBuf);
+            return createPage(pid, pageBuf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek((long) page.getId().pageNumber() * BufferPool.getPageSize());
+            raf.write(page.getPageData());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** @return the number of pages in this index */
+    public int numPages() {
+        return (int) (f.length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * Write an empty page at the end of the file.
+     * @return the page number of the new page
+     */
+    protected synchronized int appendEmptyPage() throws IOException {
+        int pgNo = numPages();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.seek((long) pgNo * BufferPool.getPageSize());
+            raf.write(createEmptyPageData());
+        } finally {
+            raf.close();
+        }
+        return pgNo;
+    }
+
+    // see IndexFile.java for javadocs
+    public void populate(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        Map<PageId, Page> dirtied = new LinkedHashMap<PageId, Page>();
+        DbFileIterator it = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            ArrayList<Page> pages = insertTuple(tid, it.next());
+            Database.getBufferPool().cachePages(pages);
+            for (Page p : pages)
+                dirtied.put(p.getId(), p);
+        }
+        it.close();
+        for (Page p : dirtied.values()) {
+            writePage(p);
+            p.markDirty(false, null);
+        }
+    }
+
+    /** @return the entry tuple of key and rid, described by {@link #getTupleDesc} */
+    Tuple entry(Field key, RecordId rid) {
+        Tuple t = new Tuple(td);
+        t.setField(0, key);
+        t.setField(1, new IntField(rid.getPageId().pageNumber()));
+        t.setField(2, new IntField(rid.tupleno()));
+        return t;
+    }
+
+    /**
+     * @return the tuple of the indexed table rid points to, or null if it
+     *   has been deleted
+     */
+    static Tuple fetchTuple(TransactionId tid, RecordId rid)
+            throws DbException, TransactionAbortedException {
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                rid.getPageId(), Permissions.READ_ONLY);
+        return p.getTuple(rid.tupleno());
+    }
+}
@@ -0,0 +1,344 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * BTreeFile is a disk-based B+ tree index over one field of a table.  Its
+ * leaves hold, in key order, the key of every tuple of the table together
+ * with the RecordId of that tuple, and are linked left to right so that
+ * range lookups scan them without going back to the root.  The file is
+ * made of BTreePages, which are cached by the BufferPool like any other
+ * page; page 0 is always the root.
+ * <p>
+ * Deletions only remove entries from their leaf: pages are never merged,
+ * so a tree shrinks only when it is rebuilt.
+ *
+ * @see BTreePage
+ * @see IndexFile
+ */
+public class BTreeFile extends AbstractIndexFile {
+
+    /**
+     * Constructs a B+ tree index backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this index
+     * @param tableId the id of the table this index points into
+     * @param keyField the index of the field of that table used as the key
+     * @param tableTd the TupleDesc of that table
+     */
+    public BTreeFile(File f, int tableId, int keyField, TupleDesc tableTd) {
+        super(f, tableId, keyField, tableTd);
+    }
+
+    /** Write the empty root leaf of a new index */
+    protected synchronized void initialize() throws IOException {
+        if (numPages() == 0)
+            appendEmptyPage();
+    }
+
+    protected Page createPage(PageId pid, byte[] data) throws IOException {
+        return new BTreePage((BTreePageId) pid, data, getKeyType(), getTableId());
+    }
+
+    protected byte[] createEmptyPageData() {
+        return BTreePage.createEmptyPageData();
+    }
+
+    private BTreePage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return (BTreePage) Database.getBufferPool().getPage(tid, new BTreePageId(getId(), pgNo), perm);
+    }
+
+    /**
+     * Descend from the root to the leftmost leaf that may hold key, or to
+     * the leftmost leaf of the tree if key is null.
+     */
+    BTreePage findLeaf(TransactionId tid, Field key, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        BTreePage p = getPage(tid, 0, perm);
+        while (!p.leaf)
+            p = getPage(tid, p.children.get(key == null ? 0 : p.countBelow(key, false)), perm);
+        return p;
+    }
+
+    /** The result of splitting a page: the separator and the new right page */
+    private static class Split {
+        final Field key;
+        final int pgNo;
+
+        Split(Field key, int pgNo) {
+            this.key = key;
+            this.pgNo = pgNo;
+        }
+    }
+
+    /**
+     * Adds an entry for t, which must already be stored in the indexed
+     * table, to this index.
+     *
+     * @return the pages that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        BTreePage root = getPage(tid, 0, Permissions.READ_WRITE);
+        Split s = insert(tid, root, t.getField(getKeyField()), t.getRecordId(), dirtied);
+        if (s != null) {
+            // move the root to a new page, so that the root stays on page 0
+            BTreePage left = allocatePage(tid, dirtied);
+            left.leaf = root.leaf;
+            left.nextLeaf = root.nextLeaf;
+            left.keys.addAll(root.keys);
+            left.children.addAll(root.children);
+            left.rids.addAll(root.rids);
+
+            root.clear();
+            root.leaf = false;
+            root.nextLeaf = -1;
+            root.children.add(left.getId().pageNumber());
+            root.keys.add(s.key);
+            root.children.add(s.pgNo);
+        }
+        return dirtied;
+    }
+
+    /**
+     * Insert (key, rid) in the subtree rooted at p.  Equal keys are inserted
+     * after the existing ones.
+     *
+     * @return the split of p if it overflowed, or null
+     */
+    private Split insert(TransactionId tid, BTreePage p, Field key, RecordId rid,
+            ArrayList<Page> dirtied) throws DbException, IOException, TransactionAbortedException {
+        int i = p.countBelow(key, true);
+        Split s = null;
+        if (!p.leaf) {
+            s = insert(tid, getPage(tid, p.children.get(i), Permissions.READ_WRITE),
+                    key, rid, dirtied);
+            if (s == null)
+                return null;
+        }
+
+        // allocate the page p splits into before p overflows: the BufferPool
+        // may flush p to make room for the new page, and an overfull page
+        // can't be written
+        BTreePage r = p.isFull() ? allocatePage(tid, dirtied) : null;
+        if (p.leaf) {
+            p.keys.add(i, key);
+            p.rids.add(i, rid);
+        } else {
+            p.keys.add(i, s.key);
+            p.children.add(i+1, s.pgNo);
+        }
+        markDirty(p, tid, dirtied);
+        return r == null ? null : split(p, r);
+    }
+
+    /** Move the upper half of p to the new page r */
+    private Split split(BTreePage p, BTreePage r) {
+        int n = p.keys.size();
+        int mid = n / 2;
+        Field sep;
+        r.leaf = p.leaf;
+        if (p.leaf) {
+            r.keys.addAll(p.keys.subList(mid, n));
+            r.rids.addAll(p.rids.subList(mid, n));
+            p.keys.subList(mid, n).clear();
+            p.rids.subList(mid, n).clear();
+            r.nextLeaf = p.nextLeaf;
+            p.nextLeaf = r.getId().pageNumber();
+            sep = r.keys.get(0);
+        } else {
+            sep = p.keys.get(mid);
+            r.keys.addAll(p.keys.subList(mid+1, n));
+            r.children.addAll(p.children.subList(mid+1, n+1));
+            p.keys.subList(mid, n).clear();
+            p.children.subList(mid+1, n+1).clear();
+            r.nextLeaf = -1;
+        }
+        return new Split(sep, r.getId().pageNumber());
+    }
+
+    private BTreePage allocatePage(TransactionId tid, ArrayList<Page> dirtied)
+            throws DbException, IOException, TransactionAbortedException {
+        BTreePage p = getPage(tid, appendEmptyPage(), Permissions.READ_WRITE);
+        markDirty(p, tid, dirtied);
+        return p;
+    }
+
+    private void markDirty(BTreePage p, TransactionId tid, ArrayList<Page> dirtied) {
+        p.markDirty(true, tid);
+        if (!dirtied.contains(p))
+            dirtied.add(p);
+    }
+
+    /**
+     * Removes the entry of t, which must still hold the RecordId it had in
+     * the indexed table, from this index.
+     *
+     * @return the pages that were modified
+     * @throws DbException if t has no entry in this index
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = t.getField(getKeyField());
+        RecordId rid = t.getRecordId();
+        BTreePage p = findLeaf(tid, key, Permissions.READ_WRITE);
+        while (true) {
+            for (int i=p.countBelow(key, false); i<p.keys.size(); i++) {
+                if (!p.keys.get(i).equals(key))
+                    throw new DbException("tuple " + rid + " is not in the index");
+                if (p.rids.get(i).equals(rid)) {
+                    p.keys.remove(i);
+                    p.rids.remove(i);
+                    ArrayList<Page> dirtied = new ArrayList<Page>();
+                    markDirty(p, tid, dirtied);
+                    return dirtied;
+                }
+            }
+            if (p.nextLeaf == -1)
+                throw new DbException("tuple " + rid + " is not in the index");
+            p = getPage(tid, p.nextLeaf, Permissions.READ_WRITE);
+        }
+    }
+
+    /**
+     * Returns an iterator over the entries of this index, in key order.
+     * Each entry is described by {@link #getTupleDesc}.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new BTreeFileIterator(this, tid, null, true);
+    }
+
+    /**
+     * @return true for EQUALS and the range operators, which only read the
+     *   leaves holding matching keys
+     */
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+            || op == Predicate.Op.GREATER_THAN_OR_EQ || op == Predicate.Op.LESS_THAN
+            || op == Predicate.Op.LESS_THAN_OR_EQ;
+    }
+
+    /**
+     * @return the depth of the tree, estimated from its number of pages and
+     *   the fanout of internal pages
+     */
+    public double estimateLookupPages() {
+        int pages = Math.max(1, numPages());
+        return Math.ceil(Math.log(pages) / Math.log(BTreePage.maxInternalKeys(getKeyType()) + 1)) + 1;
+    }
+
+    /**
+     * Returns an iterator over the tuples of the indexed table that satisfy
+     * p, in key order.  EQUALS and the range operators descend the tree to
+     * the first matching leaf and stop after the last match; other
+     * operators scan every leaf.
+     *
+     * @param p a predicate over the key field of the indexed table
+     * @throws IllegalArgumentException if p is not over the key field
+     */
+    public DbFileIterator indexIterator(TransactionId tid, Predicate p) {
+        if (p.getField() != getKeyField())
+            throw new IllegalArgumentException("predicate is not over the key field " + getKeyField());
+        return new BTreeFileIterator(this, tid, p, false);
+    }
+
+}
+
+/**
+ * Iterator over the leaves of a BTreeFile, returning either the index
+ * entries themselves or the tuples they point to.
+ */
+class BTreeFileIterator implements DbFileIterator {
+
+    private final BTreeFile bf;
+    private final TransactionId tid;
+    private final Predicate pred;
+    private final boolean entries;
+
+    private BTreePage leaf;
+    private int pos;
+    private boolean done;
+    private Tuple next;
+
+    public BTreeFileIterator(BTreeFile bf, TransactionId tid, Predicate pred, boolean entries) {
+        this.bf = bf;
+        this.tid = tid;
+        this.pred = pred;
+        this.entries = entries;
+        this.done = true;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        Predicate.Op op = pred == null ? null : pred.getOp();
+        boolean seek = op == Predicate.Op.EQUALS || op == Predicate.Op.GREATER_THAN
+            || op == Predicate.Op.GREATER_THAN_OR_EQ;
+        leaf = bf.findLeaf(tid, seek ? pred.getOperand() : null, Permissions.READ_ONLY);
+        pos = seek ? leaf.countBelow(pred.getOperand(), false) : 0;
+        done = false;
+        next = null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (next == null) next = readNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (next == null) {
+            next = readNext();
+            if (next == null) throw new NoSuchElementException();
+        }
+
+        Tuple result = next;
+        next = null;
+        return result;
+    }
+
+    private Tuple readNext() throws DbException, TransactionAbortedException {
+        while (!done) {
+            if (pos >= leaf.keys.size()) {
+                if (leaf.nextLeaf == -1) {
+                    done = true;
+                    break;
+                }
+                leaf = (BTreePage) Database.getBufferPool().getPage(tid,
+                        new BTreePageId(bf.getId(), leaf.nextLeaf), Permissions.READ_ONLY);
+                pos = 0;
+                continue;
+            }
+
+            Field key = leaf.keys.get(pos);
+            RecordId rid = leaf.rids.get(pos);
+            pos++;
+            if (pred != null && !key.compare(pred.getOp(), pred.getOperand())) {
+                // keys are sorted, so nothing after this one matches either
+                if (pred.getOp() == Predicate.Op.EQUALS || pred.getOp() == Predicate.Op.LESS_THAN
+                        || pred.getOp() == Predicate.Op.LESS_THAN_OR_EQ)
+                    done = true;
+                continue;
+            }
+
+            if (entries)
+                return bf.entry(key, rid);
+            Tuple t = AbstractIndexFile.fetchTuple(tid, rid);
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        next = null;
+        leaf = null;
+        done = true;
+    }
+}
@@ -0,0 +1,214 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of BTreePage stores one node of a {@link BTreeFile}, and
+ * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page starts with a one byte type (leaf or internal), the number of
+ * keys n, and the page number of the next leaf (-1 for internal pages and
+ * for the last leaf).  A leaf then holds n entries made of a key and the
+ * page number and slot of the tuple it points to.  An internal page holds
+ * n+1 child page numbers interleaved with n keys:
+ * <p>
+ *      child0 key0 child1 key1 ... keyn-1 childn
+ * <p>
+ * Every key in the subtree of childi is at most keyi, and every key in the
+ * subtree of childi+1 is at least keyi.
+ *
+ * @see BTreeFile
+ */
+public class BTreePage implements Page {
+
+    static final byte LEAF = 0;
+    static final byte INTERNAL = 1;
+
+    /** Bytes used by the type, the key count and the next leaf pointer */
+    static final int HEADER_SIZE = 9;
+
+    private final BTreePageId pid;
+    private final Type keyType;
+    private final int tableId;
+
+    boolean leaf;
+    int nextLeaf;
+    final ArrayList<Field> keys = new ArrayList<Field>();
+    /** for internal pages, the page numbers of the children */
+    final ArrayList<Integer> children = new ArrayList<Integer>();
+    /** for leaf pages, the tuples each key points to */
+    final ArrayList<RecordId> rids = new ArrayList<RecordId>();
+
+    private TransactionId dirtyTransaction;
+    byte[] oldData;
+    private final Object oldDataLock=new Object();
+
+    /**
+     * Create a BTreePage from a set of bytes of data read from disk.
+     *
+     * @param id the id of this page
+     * @param data the page data, as written by {@link #getPageData}
+     * @param keyType the type of the keys of the index
+     * @param tableId the id of the table the leaf entries point into
+     */
+    public BTreePage(BTreePageId id, byte[] data, Type keyType, int tableId) throws IOException {
+        this.pid = id;
+        this.keyType = keyType;
+        this.tableId = tableId;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        leaf = dis.readByte() == LEAF;
+        int n = dis.readInt();
+        nextLeaf = dis.readInt();
+        try {
+            if (leaf) {
+                for (int i=0; i<n; i++) {
+                    keys.add(keyType.parse(dis));
+                    int pgNo = dis.readInt();
+                    rids.add(new RecordId(new HeapPageId(tableId, pgNo), dis.readInt()));
+                }
+            } else {
+                children.add(dis.readInt());
+                for (int i=0; i<n; i++) {
+                    keys.add(keyType.parse(dis));
+                    children.add(dis.readInt());
+                }
+            }
+        } catch (java.text.ParseException e) {
+            throw new IOException("parsing error in " + id.getTableId() + ":" + id.pageNumber(), e);
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the maximum number of keys a leaf page with the given key
+     *   type can hold
+     */
+    static int maxLeafKeys(Type keyType) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (keyType.getLen() + 8);
+    }
+
+    /**
+     * @return the maximum number of keys an internal page with the given
+     *   key type can hold
+     */
+    static int maxInternalKeys(Type keyType) {
+        return (BufferPool.getPageSize() - HEADER_SIZE - 4) / (keyType.getLen() + 4);
+    }
+
+    /** @return true if adding a key to this page makes it overflow */
+    boolean isFull() {
+        return keys.size() >= (leaf ? maxLeafKeys(keyType) : maxInternalKeys(keyType));
+    }
+
+    /**
+     * @return the number of keys of this page that are smaller than key
+     *   (or smaller than or equal to it if inclusive is true)
+     */
+    int countBelow(Field key, boolean inclusive) {
+        Predicate.Op op = inclusive ? Predicate.Op.LESS_THAN_OR_EQ : Predicate.Op.LESS_THAN;
+        int lo = 0, hi = keys.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys.get(mid).compare(op, key))
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /** Remove all the entries of this page */
+    void clear() {
+        keys.clear();
+        children.clear();
+        rids.clear();
+    }
+
+    public BTreePageId getId() {
+        return pid;
+    }
+
+    /** @return the id of the table the leaf entries of this page point into */
+    public int getIndexedTableId() {
+        return tableId;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyTransaction = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyTransaction;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Passing it to the BTreePage constructor produces an identical page.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(leaf ? LEAF : INTERNAL);
+            dos.writeInt(keys.size());
+            dos.writeInt(leaf ? nextLeaf : -1);
+            if (leaf) {
+                for (int i=0; i<keys.size(); i++) {
+                    keys.get(i).serialize(dos);
+                    dos.writeInt(rids.get(i).getPageId().pageNumber());
+                    dos.writeInt(rids.get(i).tupleno());
+                }
+            } else {
+                dos.writeInt(children.get(0));
+                for (int i=0; i<keys.size(); i++) {
+                    keys.get(i).serialize(dos);
+                    dos.writeInt(children.get(i+1));
+                }
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of an empty leaf page with no next leaf, used to add
+     *   new pages to a BTreeFile
+     */
+    public static byte[] createEmptyPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        data[0] = LEAF;
+        data[5] = data[6] = data[7] = data[8] = (byte) 0xff;
+        return data;
+    }
+
+    public BTreePage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new BTreePage(pid, oldDataRef, keyType, tableId);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = getPageData().clone();
+        }
+    }
+}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
@@ -18,19 +19,29 @@ import java.util.concurrent.ConcurrentHashMap;
  * @Threadsafe, all fields are final
  */
 public class BufferPool {
-    /** Bytes per page, including header. */
+    /** Default bytes per page, including header. */
     public static final int PAGE_SIZE = 4096;
 
+    /**
+     * Bytes per page of the database, used by the files that don't have a
+     * page size of their own.
+     */
+    private static int pageSize = PAGE_SIZE;
+
     /** Default number of pages passed to the constructor. This is used by
     other classes. BufferPool should use the numPages argument to the
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
     
-    final int numPages;   // number of pages -- currently, not enforced
+    final int numPages;   // number of pages of getPageSize() bytes
     final ConcurrentHashMap<PageId,Page> pages; // hash table storing current pages in memory
+    private final long maxBytes; // bytes of the numPages frames
+    private long usedBytes;      // bytes of the pages in pages
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * Creates a BufferPool that caches up to numPages pages of the page
+     * size of the database.  A HeapFile with larger pages takes as many
+     * frames per page as its pages are larger.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
@@ -38,10 +49,32 @@ public class BufferPool {
         // some code goes here
     	this.numPages = numPages;
         this.pages = new ConcurrentHashMap<PageId, Page>();
+        this.maxBytes = (long) numPages * getPageSize();
     }
     
     public static int getPageSize() {
-      return PAGE_SIZE;
+      return pageSize;
+    }
+
+    /**
+     * Sets the page size of the database.  Files that were already written
+     * with another page size can't be read any more, so this must be called
+     * before any table is created, typically before the BufferPool is
+     * reset.
+     */
+    public static void setPageSize(int pageSize) {
+        BufferPool.pageSize = pageSize;
+    }
+
+    /** Restores the default page size of the database, PAGE_SIZE */
+    public static void resetPageSize() {
+        BufferPool.pageSize = PAGE_SIZE;
+    }
+
+    /** @return the number of bytes of the page pid */
+    private static int pageSize(PageId pid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        return f instanceof HeapFile ? ((HeapFile) f).getPageSize() : getPageSize();
     }
 
     /**
@@ -66,7 +99,8 @@ public class BufferPool {
         synchronized(this) {
             p = pages.get(pid);
             if(p == null) {
-                if(pages.size() >= numPages) {
+                int size = pageSize(pid);
+                while(!pages.isEmpty() && usedBytes + size > maxBytes) {
                     evictPage();
                 }
                 
@@ -80,6 +114,7 @@ public class BufferPool {
 					e.printStackTrace();
 				}
                 pages.put(pid, p);
+                usedBytes += size;
             }
         }
         return p;
@@ -138,15 +173,21 @@ public class BufferPool {
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and updates cached versions of any pages that have 
      * been dirtied so that future requests see up-to-date pages. 
+     * The change is made and reported to the TableStats of the table while
+     * holding the BufferPool, so that a re-analyze of the table reading the
+     * page at the same time sees either both or neither.
      *
      * @param tid the transaction adding the tuple
      * @param tableId the table to add the tuple to
      * @param t the tuple to add
      */
-    public void insertTuple(TransactionId tid, int tableId, Tuple t)
+    public synchronized void insertTuple(TransactionId tid, int tableId, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
             DbFile fileToModify = Database.getCatalog().getDatabaseFile(tableId);
-            fileToModify.insertTuple(tid, t);
+            cachePages(fileToModify.insertTuple(tid, t));
+            for (IndexFile index : Database.getCatalog().getIndexes(tableId))
+                cachePages(index.insertTuple(tid, t));
+            TableStats.tupleInserted(tableId, t);
         }
 
         /**
@@ -157,17 +198,44 @@ public class BufferPool {
          * Marks any pages that were dirtied by the operation as dirty by calling
          * their markDirty bit, and updates cached versions of any pages that have 
          * been dirtied so that future requests see up-to-date pages. 
+         * Like insertTuple, holds the BufferPool while it does.
          *
          * @param tid the transaction deleting the tuple.
          * @param t the tuple to delete
          */
-        public void deleteTuple(TransactionId tid, Tuple t)
+        public synchronized void deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
-        	HeapPage pageToDeleteFrom = (HeapPage) getPage(tid, t.getRecordId().getPageId(), Permissions.READ_WRITE);
-            pageToDeleteFrom.deleteTuple(t);
-            pageToDeleteFrom.markDirty(true, tid);
+        	int tableId = t.getRecordId().getPageId().getTableId();
+        	for (IndexFile index : Database.getCatalog().getIndexes(tableId))
+        	    cachePages(index.deleteTuple(tid, t));
+        	cachePages(Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t));
+            TableStats.tupleDeleted(tableId, t);
         }
 
+    /**
+     * Keep the pages dirtied by an insert or delete in the cache, so that
+     * later requests see them even if they were evicted while the operation
+     * was modifying them.  Used by access methods that modify their pages
+     * without going through insertTuple or deleteTuple.  Once the operation
+     * is over, pages are evicted until the pool is back to its size.
+     */
+    synchronized void cachePages(ArrayList<Page> dirtied) throws DbException {
+        for (Page p : dirtied)
+            cachePage(p);
+        while (!pages.isEmpty() && usedBytes > maxBytes)
+            evictPage();
+    }
+
+    /**
+     * Keep a single page dirtied by an access method in the cache, in the
+     * middle of an operation;  the pool may then hold more than its size
+     * until the operation calls cachePages.
+     */
+    synchronized void cachePage(Page p) {
+        if (pages.put(p.getId(), p) == null)
+            usedBytes += pageSize(p.getId());
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -184,11 +252,12 @@ public class BufferPool {
     /** Remove the specific page id from the buffer pool.
         Needed by the recovery manager to ensure that the
         buffer pool doesn't keep a rolled back page in its
-        cache.
+        cache, and by HeapFile.compact so that the pages it
+        truncates are not written back.
     */
     public synchronized void discardPage(PageId pid) {
-        // some code goes here
-        // only necessary for lab5
+        if (pages.remove(pid) != null)
+            usedBytes -= pageSize(pid);
     }
 
     /**
@@ -220,6 +289,7 @@ public class BufferPool {
 			e.printStackTrace();
 		}
     	pages.remove(next);
+    	usedBytes -= pageSize(next);
     }
 
 }
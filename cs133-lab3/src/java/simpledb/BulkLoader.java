@@ -0,0 +1,235 @@
+package simpledb;
+
+import java.io.*;
+import java.text.ParseException;
+import java.util.*;
+
+/**
+ * BulkLoader appends the tuples of a text file to a table in a single
+ * streaming pass.  Tuples of an unclustered HeapFile are packed into pages
+ * in memory, in input order, and the pages written to the end of the file
+ * in large sequential writes,
+ * without going through the BufferPool.  The indexes of the table are
+ * updated and its statistics built in the same pass, so the table needs no
+ * further scan before it is queried.
+ * <p>
+ * Clustered HeapFiles, and tables stored in other DbFiles, are loaded
+ * through {@link BufferPool#insertTuple}, which places each tuple of a
+ * clustered HeapFile on the page of its cluster key, and maintains the
+ * indexes and statistics of the table as well.
+ *
+ * @see HeapFileEncoder
+ */
+public class BulkLoader {
+
+    /** Number of pages written to the table file at once */
+    static final int WRITE_BUFFER_PAGES = 64;
+
+    /**
+     * Number of tuples the statistics of a table loaded from empty are
+     * built from;  larger loads keep a uniform sample of that many tuples.
+     */
+    static final int STATS_SAMPLE_TUPLES = 100000;
+
+    private static final Random RAND = new Random();
+
+    /** Turns the lines of the loaded file into tuples */
+    public interface LineParser {
+        /**
+         * @return the tuple described by line, or null if the line holds
+         *   no tuple (e.g. it is blank)
+         * @throws ParseException if the line is malformed
+         */
+        Tuple parse(String line, TupleDesc td) throws ParseException;
+    }
+
+    /**
+     * A LineParser for lines of separated values, one per field of the
+     * table, as read by {@link HeapFileEncoder}.  Values are trimmed, and
+     * strings longer than Type.STRING_LEN are truncated.
+     */
+    public static class SeparatedValuesParser implements LineParser {
+        private final char separator;
+
+        public SeparatedValuesParser(char separator) {
+            this.separator = separator;
+        }
+
+        public Tuple parse(String line, TupleDesc td) throws ParseException {
+            if (line.trim().length() == 0)
+                return null;
+            Tuple t = new Tuple(td);
+            int start = 0;
+            for (int j = 0; j < td.numFields(); j++) {
+                if (start > line.length())
+                    throw new ParseException("expected " + td.numFields() + " fields", start);
+                int end = line.indexOf(separator, start);
+                if (end < 0)
+                    end = line.length();
+                String s = line.substring(start, end).trim();
+                if (td.getFieldType(j) == Type.INT_TYPE) {
+                    try {
+                        t.setField(j, new IntField(Integer.parseInt(s)));
+                    } catch (NumberFormatException e) {
+                        throw new ParseException("bad integer " + s, start);
+                    }
+                } else {
+                    t.setField(j, new StringField(s, Type.STRING_LEN));
+                }
+                start = end + 1;
+            }
+            if (start <= line.length())
+                throw new ParseException("more than " + td.numFields() + " fields", start);
+            return t;
+        }
+    }
+
+    /**
+     * Appends the tuples of a file of comma separated values to a table.
+     * @see #load(int, File, LineParser)
+     */
+    public static int load(int tableid, File inFile)
+            throws IOException, DbException, TransactionAbortedException {
+        return load(tableid, inFile, new SeparatedValuesParser(','));
+    }
+
+    /**
+     * Appends the tuples of the lines of inFile to table tableid.  The
+     * indexes of the table are updated as the tuples are written.  The
+     * tuples of a clustered HeapFile are inserted one at a time, through
+     * the BufferPool, so the file stays clustered.  If the
+     * table was empty its statistics are replaced by statistics built from
+     * the loaded tuples;  otherwise its existing statistics are updated
+     * with them.
+     *
+     * @param tableid the table to load
+     * @param inFile the file to read the tuples from, one per line
+     * @param parser turns the lines of inFile into tuples
+     * @return the number of tuples loaded
+     * @throws IOException if a file can't be read or written, or a line is
+     *   malformed;  the tuples of the lines before a malformed one are
+     *   loaded, with their index entries and statistics
+     */
+    public static int load(int tableid, File inFile, LineParser parser)
+            throws IOException, DbException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        TupleDesc td = file.getTupleDesc();
+        List<IndexFile> indexes = Database.getCatalog().getIndexes(tableid);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+
+        // packing pages in input order would break the order of a clustered file
+        HeapFile hf = file instanceof HeapFile && ((HeapFile) file).getClusterField() < 0
+                ? (HeapFile) file : null;
+        int pgNo = hf != null ? hf.numPages() : 0;
+        boolean fresh = hf != null && pgNo == 0;
+        ArrayList<Tuple> sample = fresh ? new ArrayList<Tuple>() : null;
+
+        BufferedReader br = new BufferedReader(new FileReader(inFile));
+        OutputStream os = null;
+        HeapPage page = null;
+        // the tuples of page, which are only indexed once it is written
+        ArrayList<Tuple> pageTuples = new ArrayList<Tuple>();
+        IOException malformed = null;
+        int count = 0;
+        int lineNo = 0;
+        try {
+            if (hf != null)
+                os = new BufferedOutputStream(new FileOutputStream(hf.getFile(), true),
+                        WRITE_BUFFER_PAGES * hf.getPageSize());
+            String line;
+            while ((line = br.readLine()) != null) {
+                lineNo++;
+                Tuple t;
+                try {
+                    t = parser.parse(line, td);
+                } catch (ParseException e) {
+                    // load the lines read so far, then fail
+                    malformed = new IOException("line " + lineNo + " of " + inFile + ": "
+                            + e.getMessage());
+                    break;
+                }
+                if (t == null)
+                    continue;
+
+                if (hf == null) {
+                    bp.insertTuple(tid, tableid, t);
+                    count++;
+                    continue;
+                }
+                if (page != null && !page.hasRoomFor(t)) {
+                    os.write(page.getPageData());
+                    count = written(tableid, tid, indexes, pageTuples, sample, count);
+                    page = null;
+                    pgNo++;
+                }
+                if (page == null)
+                    page = newPage(hf, pgNo);
+                page.insertTuple(t);
+                pageTuples.add(t);
+            }
+            if (page != null) {
+                os.write(page.getPageData());
+                count = written(tableid, tid, indexes, pageTuples, sample, count);
+            }
+        } finally {
+            try {
+                br.close();
+                if (os != null)
+                    os.close();
+            } finally {
+                bp.transactionComplete(tid);
+            }
+        }
+
+        if (fresh && count > 0)
+            TableStats.setTableStats(Database.getCatalog().getTableName(tableid),
+                    new TableStats(tableid, TableStats.IOCOSTPERPAGE, count,
+                            new TupleIterator(td, sample)));
+        if (malformed != null)
+            throw malformed;
+        return count;
+    }
+
+    /**
+     * Adds the tuples of a page just written to table tableid to the
+     * indexes of the table, and to its statistics;  or, for a table loaded
+     * from empty, to the sample its statistics are built from.  Clears
+     * tuples.
+     *
+     * @param sample the sample of the loaded tuples, or null to update the
+     *   existing statistics of the table
+     * @param count the number of tuples loaded before these
+     * @return the number of tuples loaded, these included
+     */
+    private static int written(int tableid, TransactionId tid, List<IndexFile> indexes,
+            ArrayList<Tuple> tuples, ArrayList<Tuple> sample, int count)
+            throws IOException, DbException, TransactionAbortedException {
+        for (Tuple t : tuples) {
+            for (IndexFile index : indexes)
+                Database.getBufferPool().cachePages(index.insertTuple(tid, t));
+
+            if (sample == null)
+                TableStats.tupleInserted(tableid, t);
+            else if (count < STATS_SAMPLE_TUPLES)
+                sample.add(t);
+            else {
+                // reservoir sampling: t replaces a sampled tuple with
+                // probability STATS_SAMPLE_TUPLES / (count + 1)
+                int k = RAND.nextInt(count + 1);
+                if (k < STATS_SAMPLE_TUPLES)
+                    sample.set(k, t);
+            }
+            count++;
+        }
+        tuples.clear();
+        return count;
+    }
+
+    /** @return an empty page number pgNo of hf, in the format of its pages */
+    private static HeapPage newPage(HeapFile hf, int pgNo) throws IOException {
+        HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+        byte[] data = HeapPage.createEmptyPageData(hf.getPageSize());
+        return hf.isSlotted() ? new SlottedPage(pid, data) : new HeapPage(pid, data);
+    }
+}
@@ -7,6 +7,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -24,6 +25,8 @@ public class Catalog {
     private final Map<String, Integer> name2id;
     private final Map<Integer, String> id2name;
     private final Map<Integer, String> pkey;
+    private final Map<Integer, List<IndexFile>> indexes;
+    private final Map<Integer, IndexFile> id2index;
 	
     /**
      * Constructor.
@@ -37,6 +40,8 @@ public class Catalog {
         name2id = new ConcurrentHashMap<String,Integer>();
         id2name = new ConcurrentHashMap<Integer,String>();
         pkey = new ConcurrentHashMap<Integer,String>();
+        indexes = new ConcurrentHashMap<Integer, List<IndexFile>>();
+        id2index = new ConcurrentHashMap<Integer, IndexFile>();
     	
     }
 
@@ -52,10 +57,12 @@ public class Catalog {
     public void addTable(DbFile file, String name, String pkeyField) {
         // some code goes here
 		if (name2id.containsKey(name)) {
+			removeIndexes( name2id.get(name) );
 			id2table.remove( name2id.get(name) );
 			id2tupledesc.remove( name2id.get(name) );
 			name2id.remove(name);
 		}
+		removeIndexes(file.getId());
 		
         id2tupledesc.put(file.getId(), file.getTupleDesc());
         id2table.put(file.getId(), file);
@@ -80,6 +87,68 @@ public class Catalog {
         addTable(file, (UUID.randomUUID()).toString());
     }
 
+    /**
+     * Add an index to the catalog.  The index is maintained by
+     * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple} from
+     * then on, and is dropped when its table is replaced or the catalog is
+     * cleared.
+     * @param index the index to add;  index.getTableId() must be a table of
+     *    this catalog, and its pages are found through index.getId()
+     * @throws IllegalArgumentException if the table is a ColumnFile
+     */
+    public void addIndex(IndexFile index) {
+        if (getDatabaseFile(index.getTableId()) instanceof ColumnFile)
+            throw new IllegalArgumentException("columnar tables can't be indexed");
+        List<IndexFile> l = indexes.get(index.getTableId());
+        if (l == null) {
+            l = new CopyOnWriteArrayList<IndexFile>();
+            indexes.put(index.getTableId(), l);
+        }
+        l.add(index);
+        id2index.put(index.getId(), index);
+    }
+
+    /**
+     * @return the indexes of the specified table, in the order they were
+     *    added;  empty if the table has none
+     */
+    public List<IndexFile> getIndexes(int tableid) {
+        List<IndexFile> l = indexes.get(tableid);
+        return l == null ? Collections.<IndexFile>emptyList() : l;
+    }
+
+    /**
+     * @return an index of the specified table keyed on field number field,
+     *    or null if there is none
+     */
+    public IndexFile getIndex(int tableid, int field) {
+        for (IndexFile index : getIndexes(tableid))
+            if (index.getKeyField() == field)
+                return index;
+        return null;
+    }
+
+    /**
+     * @return the index of the specified table keyed on field number field
+     *    that can serve predicates with operator op and reads the fewest
+     *    pages per lookup, or null if there is none
+     */
+    public IndexFile getIndex(int tableid, int field, Predicate.Op op) {
+        IndexFile best = null;
+        for (IndexFile index : getIndexes(tableid))
+            if (index.getKeyField() == field && index.supports(op)
+                    && (best == null || index.estimateLookupPages() < best.estimateLookupPages()))
+                best = index;
+        return best;
+    }
+
+    private void removeIndexes(int tableid) {
+        List<IndexFile> l = indexes.remove(tableid);
+        if (l != null)
+            for (IndexFile index : l)
+                id2index.remove(index.getId());
+    }
+
     /**
      * Return the id of the table with a specified name,
      * @throws NoSuchElementException if the table doesn't exist
@@ -108,13 +177,17 @@ public class Catalog {
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table or index.
      * @param tableid The id of the table, as specified by the DbFile.getId()
-     *     function passed to addTable
+     *     function passed to addTable, or the id of an index passed to
+     *     addIndex
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // some code goes here
-    	return id2table.get(tableid);
+    	DbFile f = id2table.get(tableid);
+    	if (f == null)
+    	    f = id2index.get(tableid);
+    	return f;
     }
 
     public String getPrimaryKey(int tableid) {
@@ -140,10 +213,27 @@ public class Catalog {
         name2id.clear();
         id2name.clear();
         pkey.clear();
+        indexes.clear();
+        id2index.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line is of the format name (field type [pk] [cluster] [btree]
+     * [hash], ...) [slotted|columnar [compressed]] [pagesize=bytes];  the
+     * table is clustered on the field annotated with cluster, if any, and
+     * stored in SlottedPages if the line ends with slotted (see
+     * {@link HeapFile}), or in a ColumnFile, one file per field, if it ends
+     * with columnar (see {@link ColumnFile}), whose columns are encoded in
+     * CompressedColumnPages if it is also compressed.  The pages of a table
+     * with a pagesize option (e.g. pagesize=16384) are that many bytes long
+     * instead of BufferPool.getPageSize();  only HeapFiles support it.  A
+     * field annotated with btree gets a BTreeFile index stored in
+     * name.field.btree next to the table, and a field annotated with hash
+     * (typically the primary key, for equality lookups) a LinearHashFile
+     * index stored in name.field.hash.
+     * An index is built from the table if its file does not exist yet, and
+     * rebuilt if the table file was written to after it.
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -157,10 +247,31 @@ public class Catalog {
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                boolean slotted = false;
+                boolean columnar = false;
+                boolean compressed = false;
+                int pageSize = BufferPool.getPageSize();
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split(" ")) {
+                    if (option.equals("slotted"))
+                        slotted = true;
+                    else if (option.equals("columnar"))
+                        columnar = true;
+                    else if (option.equals("compressed"))
+                        compressed = true;
+                    else if (option.startsWith("pagesize="))
+                        pageSize = Integer.parseInt(option.substring("pagesize=".length()));
+                    else if (option.length() > 0) {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                int clusterField = -1;
+                ArrayList<Integer> indexed = new ArrayList<Integer>();
+                ArrayList<String> kinds = new ArrayList<String>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -172,11 +283,17 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int k = 2; k < els2.length; k++) {
+                        if (els2[k].trim().equals("pk"))
                             primaryKey = els2[0].trim();
-                        else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                        else if (els2[k].trim().equals("cluster"))
+                            clusterField = names.size() - 1;
+                        else if (els2[k].trim().equals("btree") || els2[k].trim().equals("hash")) {
+                            indexed.add(names.size() - 1);
+                            kinds.add(els2[k].trim());
+                        }
+                        else if (els2[k].trim().length() > 0) {
+                            System.out.println("Unknown annotation " + els2[k]);
                             System.exit(0);
                         }
                     }
@@ -184,16 +301,63 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tableFile = new File(baseFolder+"/"+name + ".dat");
+                if (compressed && !columnar) {
+                    System.out.println("Only columnar tables can be compressed: " + name);
+                    System.exit(0);
+                }
+                if (columnar) {
+                    if (slotted || clusterField >= 0 || indexed.size() > 0
+                            || pageSize != BufferPool.getPageSize()) {
+                        System.out.println("Columnar table " + name
+                                + " can't be slotted, clustered, indexed or have its own page size");
+                        System.exit(0);
+                    }
+                    addTable(new ColumnFile(tableFile, t, compressed), name, primaryKey);
+                    System.out.println("Added columnar table : " + name + " with schema " + t);
+                    continue;
+                }
+                if (pageSize < 1024 || pageSize > 65536 || Integer.bitCount(pageSize) != 1) {
+                    System.out.println("Page size of " + name + " must be a power of 2 from 1024 to 65536");
+                    System.exit(0);
+                }
+                HeapFile tabHf = new HeapFile(tableFile, t, clusterField, slotted, pageSize);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int i = 0; i < indexed.size(); i++) {
+                    int field = indexed.get(i);
+                    File indexFile = new File(baseFolder+"/"+name+"."+namesAr[field]+"."+kinds.get(i));
+                    // an index older than its table misses the tuples written since
+                    if (indexFile.exists() && indexFile.lastModified() < tableFile.lastModified())
+                        indexFile.delete();
+                    boolean build = !indexFile.exists() || indexFile.length() == 0;
+                    IndexFile index = kinds.get(i).equals("hash")
+                        ? new LinearHashFile(indexFile, tabHf.getId(), field, t)
+                        : new BTreeFile(indexFile, tabHf.getId(), field, t);
+                    addIndex(index);
+                    if (build && tabHf.numPages() > 0) {
+                        TransactionId tid = new TransactionId();
+                        index.populate(tid);
+                        Database.getBufferPool().transactionComplete(tid);
+                    }
+                    System.out.println("Added index on " + name + "." + namesAr[field]);
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
+        } catch (DbException e) {
+            e.printStackTrace();
+            System.exit(0);
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+            System.exit(0);
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (NumberFormatException e) {
+            System.out.println ("Invalid catalog entry : " + line);
+            System.exit(0);
         }
     }
 }
@@ -0,0 +1,394 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * ColumnFile is an implementation of a DbFile that stores each field of its
+ * tuples in a file of its own, so that a scan reads the pages of the fields
+ * it needs and no other.  Aggregates and filters over a few fields of a wide
+ * table thus read a fraction of the pages a HeapFile would.
+ * <p>
+ * The tuples are stored as rows numbered from 0 in insertion order.  The
+ * file f records which rows hold a tuple (see {@link ColumnPage}), and the
+ * values of field j of all rows are stored one after the other in the file
+ * f.j, so that the value of row r is on page r / capacity of that file.  A
+ * deleted row is only marked as such, and its number is not reused.
+ * <p>
+ * The RecordId of a tuple refers to its row on the pages of f.
+ * <p>
+ * The columns of a compressed ColumnFile are stored in
+ * {@link CompressedColumnPage}s, which encode the values of as many rows as
+ * fit on the page, so that the page of a row is found by reading the pages
+ * of the column in order.
+ *
+ * @see ColumnPage
+ */
+public class ColumnFile implements DbFile {
+
+    private final File f;
+    private final TupleDesc td;
+    private final int tableid;
+    private final boolean compressed;
+
+    /**
+     * Constructs a column file backed by the specified file and the files
+     * of its columns next to it.
+     *
+     * @param f
+     *            the file that records which rows of this column file hold
+     *            a tuple;  field j is stored in f.j
+     */
+    public ColumnFile(File f, TupleDesc td) {
+        this(f, td, false);
+    }
+
+    /**
+     * Constructs a column file backed by the specified file and the files
+     * of its columns next to it.
+     *
+     * @param f
+     *            the file that records which rows of this column file hold
+     *            a tuple;  field j is stored in f.j
+     * @param compressed
+     *            true if the columns are stored in CompressedColumnPages
+     */
+    public ColumnFile(File f, TupleDesc td, boolean compressed) {
+        this.f = f;
+        this.td = td;
+        this.tableid = f.getAbsoluteFile().hashCode();
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return the File that records which rows of this ColumnFile hold a
+     *   tuple
+     */
+    public File getFile() {
+        return f;
+    }
+
+    /**
+     * @return the File that stores the specified column, or getFile() for
+     *   column -1
+     */
+    public File getFile(int column) {
+        return column < 0 ? f : new File(f.getPath() + "." + column);
+    }
+
+    public int getId() {
+        return tableid;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return true if the columns of this file are stored in
+     *   CompressedColumnPages
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /** @return the type of the values of the column, or null for column -1 */
+    private Type typeOf(int column) {
+        return column < 0 ? null : td.getFieldType(column);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        ColumnPageId id = (ColumnPageId) pid;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(getFile(id.getColumn()), "r");
+            byte pageBuf[] = new byte[BufferPool.getPageSize()];
+            if ((long) (id.pageNumber() + 1) * pageBuf.length > raf.length())
+                throw new IllegalArgumentException("Read past end of column " + id.getColumn());
+            raf.seek((long) id.pageNumber() * pageBuf.length);
+            raf.readFully(pageBuf);
+            if (compressed && id.getColumn() >= 0)
+                return new CompressedColumnPage(id, pageBuf, typeOf(id.getColumn()));
+            return new ColumnPage(id, pageBuf, typeOf(id.getColumn()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            // Close the file on success or error
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException ioe) {
+                // Ignore failures closing the file
+            }
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ColumnPageId id = (ColumnPageId) page.getId();
+        writePage(id.getColumn(), id.pageNumber(), page.getPageData());
+    }
+
+    private void writePage(int column, int pgNo, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(getFile(column), "rw");
+        try {
+            raf.seek((long) pgNo * BufferPool.getPageSize());
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Returns the number of pages of all the files of this ColumnFile, which
+     * is the number of pages a scan of all the fields reads.
+     */
+    public int numPages() {
+        int n = numPages(-1);
+        for (int j = 0; j < td.numFields(); j++)
+            n += numPages(j);
+        return n;
+    }
+
+    /**
+     * Returns the number of pages of the specified column, or of the file
+     * that records which rows hold a tuple for column -1.
+     */
+    public int numPages(int column) {
+        return (int) (getFile(column).length() / BufferPool.getPageSize());
+    }
+
+    /**
+     * @return the specified page of the specified column, added to the
+     *   end of the column if it doesn't exist yet
+     */
+    private ColumnPage getPage(TransactionId tid, int column, int pgNo, Permissions perm)
+            throws DbException, IOException, TransactionAbortedException {
+        for (int n = numPages(column); n <= pgNo; n++)
+            writePage(column, n, ColumnPage.createEmptyPageData());
+        return (ColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(tableid, column, pgNo), perm);
+    }
+
+    /**
+     * @return the page of the specified compressed column that f can be
+     *   added to as the value of row, which is added after the last row
+     *   of the column
+     */
+    private CompressedColumnPage getLastPage(TransactionId tid, int column, int row, Field f)
+            throws DbException, IOException, TransactionAbortedException {
+        int pgNo = numPages(column) - 1;
+        if (pgNo >= 0) {
+            CompressedColumnPage p = (CompressedColumnPage) Database.getBufferPool().getPage(tid,
+                    new ColumnPageId(tableid, column, pgNo), Permissions.READ_WRITE);
+            if (p.hasRoomFor(f))
+                return p;
+        }
+        writePage(column, pgNo + 1, CompressedColumnPage.createEmptyPageData(row));
+        return (CompressedColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(tableid, column, pgNo + 1), Permissions.READ_WRITE);
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!t.getTupleDesc().equals(td))
+            throw new DbException("type mismatch, in inserting tuple");
+        ArrayList<Page> affectedPages = new ArrayList<Page>();
+        int perPage = ColumnPage.capacity(null);
+        int pgNo = Math.max(numPages(-1) - 1, 0);
+        ColumnPage rows = getPage(tid, -1, pgNo, Permissions.READ_WRITE);
+        if (rows.getCount() == perPage)
+            rows = getPage(tid, -1, ++pgNo, Permissions.READ_WRITE);
+        int slot = rows.getCount();
+        rows.setCount(slot + 1);
+        rows.setPresent(slot, true);
+        rows.markDirty(true, tid);
+        affectedPages.add(rows);
+
+        int row = pgNo * perPage + slot;
+        for (int j = 0; j < td.numFields(); j++) {
+            ColumnPage p;
+            if (compressed) {
+                p = getLastPage(tid, j, row, t.getField(j));
+            } else {
+                int capacity = ColumnPage.capacity(td.getFieldType(j));
+                p = getPage(tid, j, row / capacity, Permissions.READ_WRITE);
+            }
+            p.setValue(row - p.getFirstRow(), t.getField(j));
+            p.markDirty(true, tid);
+            affectedPages.add(p);
+        }
+        t.setRecordId(new RecordId(rows.getId(), slot));
+        return affectedPages;
+    }
+
+    // see DbFile.java for javadocs
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(rid.getPageId() instanceof ColumnPageId)
+                || rid.getPageId().getTableId() != tableid
+                || ((ColumnPageId) rid.getPageId()).getColumn() != -1
+                || rid.getPageId().pageNumber() >= numPages(-1))
+            throw new DbException("The tuple you tried to delete doesn't exist.");
+        ColumnPage rows = (ColumnPage) Database.getBufferPool().getPage(tid,
+                rid.getPageId(), Permissions.READ_WRITE);
+        if (rid.tupleno() >= rows.getCount() || !rows.isPresent(rid.tupleno()))
+            throw new DbException("The tuple you tried to delete doesn't exist.");
+        rows.setPresent(rid.tupleno(), false);
+        rows.markDirty(true, tid);
+        ArrayList<Page> affectedPages = new ArrayList<Page>();
+        affectedPages.add(rows);
+        return affectedPages;
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new ColumnFileIterator(this, tid, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * preds, holding only the given fields.  Only the pages of the fields
+     * of preds and of fields are read, and a field of preds is compared
+     * before the next one is read, so the pages of the other fields holding
+     * only rows that don't match are not read either.
+     *
+     * @param preds predicates over the fields of this file's TupleDesc, or
+     *   null
+     * @param fields indices of the fields to return, or null for all of them
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        return new ColumnFileIterator(this, tid, preds, fields);
+    }
+
+}
+
+class ColumnFileIterator implements DbFileIterator {
+
+    private final ColumnFile cf;
+    private final TransactionId tid;
+    private final Predicate[] preds;
+    private final int[] fields;
+    private final TupleDesc projectedTd;
+
+    /** the pages of each column that hold the current row, or null */
+    private final ColumnPage[] pages;
+    private ColumnPage rows;
+    private int row;
+    private Tuple next;
+
+    public ColumnFileIterator(ColumnFile cf, TransactionId tid, Predicate[] preds, int[] fields) {
+        this.cf = cf;
+        this.tid = tid;
+        this.preds = preds;
+        TupleDesc td = cf.getTupleDesc();
+        if (fields == null) {
+            fields = new int[td.numFields()];
+            for (int j = 0; j < fields.length; j++)
+                fields[j] = j;
+            this.projectedTd = td;
+        } else {
+            this.projectedTd = HeapPage.projectTupleDesc(td, fields);
+        }
+        this.fields = fields;
+        this.pages = new ColumnPage[td.numFields()];
+        this.row = Integer.MAX_VALUE;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        row = -1;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (next == null) next = readNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (next == null) {
+            next = readNext();
+            if (next == null) throw new NoSuchElementException();
+        }
+
+        Tuple result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * @return the page of the column that holds the current row.  The
+     *   pages of a compressed column are read in order until the one
+     *   holding the row.
+     */
+    private ColumnPage page(int column) throws DbException, TransactionAbortedException {
+        ColumnPage p = pages[column];
+        if (cf.isCompressed()) {
+            while (p == null || row >= p.getFirstRow() + p.getCount())
+                p = getPage(column, p == null ? 0 : p.getId().pageNumber() + 1);
+        } else {
+            int pgNo = row / ColumnPage.capacity(cf.getTupleDesc().getFieldType(column));
+            if (p == null || p.getId().pageNumber() != pgNo)
+                p = getPage(column, pgNo);
+        }
+        return pages[column] = p;
+    }
+
+    private ColumnPage getPage(int column, int pgNo)
+            throws DbException, TransactionAbortedException {
+        return (ColumnPage) Database.getBufferPool().getPage(tid,
+                new ColumnPageId(cf.getId(), column, pgNo), Permissions.READ_ONLY);
+    }
+
+    private Tuple readNext() throws DbException, TransactionAbortedException {
+        int perPage = ColumnPage.capacity(null);
+        int numRowPages = cf.numPages(-1);
+        rows:
+        while (row != Integer.MAX_VALUE) {
+            row++;
+            int pgNo = row / perPage, slot = row % perPage;
+            if (pgNo >= numRowPages)
+                return null;
+            if (rows == null || rows.getId().pageNumber() != pgNo)
+                rows = (ColumnPage) Database.getBufferPool().getPage(tid,
+                        new ColumnPageId(cf.getId(), -1, pgNo), Permissions.READ_ONLY);
+            if (slot >= rows.getCount()) {
+                // only the last page of rows may be partly used
+                row = Integer.MAX_VALUE;
+                return null;
+            }
+            if (!rows.isPresent(slot))
+                continue;
+            if (preds != null) {
+                for (Predicate p : preds) {
+                    ColumnPage page = page(p.getField());
+                    if (!page.matches(row - page.getFirstRow(), p))
+                        continue rows;
+                }
+            }
+            Tuple t = new Tuple(projectedTd);
+            t.setRecordId(new RecordId(rows.getId(), slot));
+            for (int k = 0; k < fields.length; k++) {
+                ColumnPage page = page(fields[k]);
+                t.setField(k, page.getValue(row - page.getFirstRow()));
+            }
+            return t;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        next = null;
+        rows = null;
+        Arrays.fill(pages, null);
+        row = Integer.MAX_VALUE;
+    }
+}
@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * Each instance of ColumnPage stores one page of one column of a
+ * {@link ColumnFile}, and implements the Page interface that is used by
+ * BufferPool.
+ * <p>
+ * A page of a column holds the values of consecutive rows of the table, one
+ * after the other, in the format of their Type.  A page of the presence
+ * column (column -1) starts with the number of rows allocated on it,
+ * followed by one bit per row, set if the row holds a tuple and cleared
+ * once the tuple is deleted.
+ *
+ * @see ColumnFile
+ */
+public class ColumnPage implements Page {
+
+    final ColumnPageId pid;
+    final Type type;
+    private final byte[] data;
+
+    private TransactionId dirtyTransaction;
+    byte[] oldData;
+    private final Object oldDataLock=new Object();
+
+    /**
+     * Create a ColumnPage from a set of bytes of data read from disk.
+     *
+     * @param id the id of this page
+     * @param data the page data
+     * @param type the type of the values of the column, or null for a page
+     *   of the presence column
+     */
+    public ColumnPage(ColumnPageId id, byte[] data, Type type) {
+        this.pid = id;
+        this.data = data;
+        this.type = type;
+        setBeforeImage();
+    }
+
+    /**
+     * Constructor for subclasses that store the values in another format;
+     * they call setBeforeImage() once they have parsed data.
+     */
+    protected ColumnPage(ColumnPageId id, Type type, byte[] data) {
+        this.pid = id;
+        this.data = data;
+        this.type = type;
+    }
+
+    /**
+     * @return the number of rows a page of a column of the given type holds,
+     *   or a page of the presence column if type is null
+     */
+    static int capacity(Type type) {
+        if (type == null)
+            return (BufferPool.getPageSize() - 4) * 8;
+        return BufferPool.getPageSize() / type.getLen();
+    }
+
+    /** @return the number of the first row of this page */
+    int getFirstRow() {
+        return pid.pageNumber() * capacity(type);
+    }
+
+    /** @return the number of rows allocated on this presence page */
+    int getCount() {
+        return readInt(0);
+    }
+
+    void setCount(int count) {
+        data[0] = (byte) (count >>> 24);
+        data[1] = (byte) (count >>> 16);
+        data[2] = (byte) (count >>> 8);
+        data[3] = (byte) count;
+    }
+
+    /** @return true if row i of this presence page holds a tuple */
+    boolean isPresent(int i) {
+        return (data[4 + i / 8] & (1 << (i % 8))) != 0;
+    }
+
+    void setPresent(int i, boolean present) {
+        if (present)
+            data[4 + i / 8] |= (1 << (i % 8));
+        else
+            data[4 + i / 8] &= ~(1 << (i % 8));
+    }
+
+    private int readInt(int off) {
+        return ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+            | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+    }
+
+    /** @return the value of row i of this page */
+    Field getValue(int i) {
+        if (type == Type.INT_TYPE)
+            return new IntField(readInt(i * 4));
+        try {
+            return type.parse(new DataInputStream(new ByteArrayInputStream(data,
+                    i * type.getLen(), type.getLen())));
+        } catch (java.text.ParseException e) {
+            throw new java.util.NoSuchElementException("parsing error in " + pid.getColumn()
+                    + ":" + pid.pageNumber());
+        }
+    }
+
+    /**
+     * @return true if the value of row i satisfies p.  Integers are
+     *   compared in place, without creating a Field.
+     */
+    boolean matches(int i, Predicate p) {
+        if (type == Type.INT_TYPE)
+            return IntField.compare(readInt(i * 4), p.getOp(), ((IntField) p.getOperand()).getValue());
+        return getValue(i).compare(p.getOp(), p.getOperand());
+    }
+
+    /** Set the value of row i of this page to f */
+    void setValue(int i, Field f) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(type.getLen());
+        try {
+            f.serialize(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        System.arraycopy(baos.toByteArray(), 0, data, i * type.getLen(), type.getLen());
+    }
+
+    public ColumnPageId getId() {
+        return pid;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyTransaction = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyTransaction;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Passing it to the ColumnPage constructor produces an identical page.
+     */
+    public byte[] getPageData() {
+        return data.clone();
+    }
+
+    /**
+     * @return the data of an empty page, used to add new pages to a column
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()];
+    }
+
+    public ColumnPage getBeforeImage() {
+        byte[] oldDataRef = null;
+        synchronized(oldDataLock)
+        {
+            oldDataRef = oldData;
+        }
+        return new ColumnPage(pid, oldDataRef.clone(), type);
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = getPageData();
+        }
+    }
+}
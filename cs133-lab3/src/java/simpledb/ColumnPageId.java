@@ -0,0 +1,73 @@
+package simpledb;
+
+/** Unique identifier for ColumnPage objects. */
+public class ColumnPageId implements PageId {
+
+    private final int tableId;
+    private final int column;
+    private final int pgNo;
+
+    /**
+     * Constructor. Create a page id structure for a specific page of one
+     * column of a specific column-oriented table.
+     *
+     * @param tableId The table that is being referenced
+     * @param column The column of the table, or -1 for the pages that record
+     *   which rows are present
+     * @param pgNo The page number in the file of that column.
+     */
+    public ColumnPageId(int tableId, int column, int pgNo) {
+        this.tableId = tableId;
+        this.column = column;
+        this.pgNo = pgNo;
+    }
+
+    /** @return the table associated with this PageId */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the column of the table this page stores, or -1 */
+    public int getColumn() {
+        return column;
+    }
+
+    /** @return the page number in the file of the column getColumn() */
+    public int pageNumber() {
+        return pgNo;
+    }
+
+    /**
+     * @return a hash code for this page, made of the table number, the
+     *   column and the page number
+     * @see BufferPool
+     */
+    public int hashCode() {
+        return (tableId << 16) + ((column + 1) << 20) + pgNo + 1;
+    }
+
+    /**
+     * Compares one PageId to another.
+     *
+     * @param o The object to compare against
+     * @return true if o is a ColumnPageId with the same table id, column and
+     *   page number
+     */
+    public boolean equals(Object o) {
+        if (!(o instanceof ColumnPageId))
+            return false;
+        ColumnPageId p = (ColumnPageId)o;
+        return tableId == p.tableId && column == p.column && pgNo == p.pgNo;
+    }
+
+    public int[] serialize() {
+        int data[] = new int[3];
+
+        data[0] = getTableId();
+        data[1] = getColumn();
+        data[2] = pageNumber();
+
+        return data;
+    }
+
+}
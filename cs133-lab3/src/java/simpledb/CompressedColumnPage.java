@@ -0,0 +1,315 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A CompressedColumnPage is a page of a column of a compressed
+ * {@link ColumnFile}.  It holds the values of a range of consecutive rows,
+ * as many as fit once encoded, so that a column of repeated strings or of
+ * small or sorted integers takes far fewer pages than with fixed-size
+ * values.
+ * <p>
+ * The values are mapped to integer codes:  an integer is its own code, and
+ * a string is the position of its value in the dictionary of the page.
+ * The page starts with the number of its first row and its number of rows
+ * as integers, and a byte of flags.  The dictionary of a string column
+ * follows:  its number of entries, then the length and the characters of
+ * each one.  The codes come last, in whichever of the two formats is
+ * smaller:
+ * <ul>
+ * <li>bit-packed:  the smallest code, the number b of bits of the largest
+ * difference to it as a byte, then the differences on b bits each
+ * (frame of reference);
+ * <li>run-length encoded (flag RLE):  the number of runs, then the code and
+ * the length of each run, which suits sorted columns.
+ * </ul>
+ * Predicates are checked against the codes:  integers are compared without
+ * creating Fields, and a predicate over strings is evaluated once per
+ * dictionary entry rather than once per row.
+ * <p>
+ * Rows can only be added at the end of the page, which is what ColumnFile
+ * does.
+ */
+public class CompressedColumnPage extends ColumnPage {
+
+    /** Bytes used by the first row, the number of rows and the flags */
+    static final int HEADER_SIZE = 9;
+    /** Flag set when the codes are run-length encoded */
+    static final int RLE = 1;
+
+    private int firstRow;
+    private int count;
+    private int[] codes;
+
+    /** values of the codes of a string column, and codes of the values */
+    private final List<String> dict = new ArrayList<String>();
+    private final Map<String, Integer> dictCodes = new HashMap<String, Integer>();
+    /** bytes used by the entries of dict */
+    private int dictBytes;
+
+    /** smallest and largest code, and number of runs of equal codes */
+    private long min, max;
+    private int runs;
+
+    /** the last predicate over strings checked, and its value on dict */
+    private Predicate lastPred;
+    private boolean[] dictMatches;
+
+    /**
+     * Create a CompressedColumnPage from a set of bytes of data read from
+     * disk.
+     *
+     * @see #getPageData
+     */
+    public CompressedColumnPage(ColumnPageId id, byte[] data, Type type) throws IOException {
+        super(id, type, data);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        firstRow = dis.readInt();
+        int n = dis.readInt();
+        int flags = dis.readByte();
+        if (type == Type.STRING_TYPE) {
+            int entries = dis.readInt();
+            for (int k = 0; k < entries; k++) {
+                byte[] bs = new byte[dis.readInt()];
+                dis.readFully(bs);
+                addEntry(new String(bs));
+            }
+        }
+
+        codes = new int[Math.max(n, 16)];
+        if ((flags & RLE) != 0) {
+            int numRuns = dis.readInt();
+            for (int r = 0; r < numRuns; r++) {
+                int code = dis.readInt();
+                int length = dis.readInt();
+                for (int k = 0; k < length; k++)
+                    add(code);
+            }
+        } else {
+            int base = dis.readInt();
+            int bits = dis.readByte();
+            byte[] packed = new byte[(int) (((long) n * bits + 7) / 8)];
+            dis.readFully(packed);
+            for (int i = 0; i < n; i++) {
+                long v = 0;
+                for (int b = 0; b < bits; b++) {
+                    long bit = (long) i * bits + b;
+                    if ((packed[(int) (bit / 8)] & (1 << (bit % 8))) != 0)
+                        v |= 1L << b;
+                }
+                add((int) (base + v));
+            }
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the data of an empty page whose first row is firstRow, used
+     *   to add new pages to a column
+     */
+    public static byte[] createEmptyPageData(int firstRow) {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        data[0] = (byte) (firstRow >>> 24);
+        data[1] = (byte) (firstRow >>> 16);
+        data[2] = (byte) (firstRow >>> 8);
+        data[3] = (byte) firstRow;
+        return data;
+    }
+
+    /**
+     * @return the largest number of rows of a page:  one per byte of the
+     *   page, which bounds the memory a page of equal values takes
+     */
+    static int maxRows() {
+        return BufferPool.getPageSize();
+    }
+
+    private int addEntry(String s) {
+        dictCodes.put(s, dict.size());
+        dict.add(s);
+        dictBytes += 4 + s.length();
+        return dict.size() - 1;
+    }
+
+    /** Add code as the value of the next row of the page */
+    private void add(int code) {
+        if (count == 0) {
+            min = max = code;
+            runs = 1;
+        } else {
+            min = Math.min(min, code);
+            max = Math.max(max, code);
+            if (codes[count - 1] != code)
+                runs++;
+        }
+        if (count == codes.length)
+            codes = Arrays.copyOf(codes, codes.length * 2);
+        codes[count++] = code;
+    }
+
+    /** @return the number of bits of the bit-packed codes */
+    private static int bits(long min, long max) {
+        return 64 - Long.numberOfLeadingZeros(max - min);
+    }
+
+    private static int packedSize(int count, long min, long max) {
+        return 5 + (int) (((long) count * bits(min, max) + 7) / 8);
+    }
+
+    private static int rleSize(int runs) {
+        return 4 + runs * 8;
+    }
+
+    /** @return the size of the encoded page with the given statistics */
+    private int encodedSize(int count, long min, long max, int runs, int dictBytes) {
+        return HEADER_SIZE + (type == Type.STRING_TYPE ? 4 + dictBytes : 0)
+            + Math.min(packedSize(count, min, max), rleSize(runs));
+    }
+
+    /** @return the number of the first row of this page */
+    int getFirstRow() {
+        return firstRow;
+    }
+
+    /** @return the number of rows of this page */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns true if f can be added as the value of the next row of this
+     * page, so that the encoded page still fits in BufferPool.getPageSize()
+     * bytes.
+     */
+    boolean hasRoomFor(Field f) {
+        if (count >= maxRows())
+            return false;
+        int code;
+        int newDictBytes = dictBytes;
+        if (type == Type.STRING_TYPE) {
+            String s = ((StringField) f).getValue();
+            Integer c = dictCodes.get(s);
+            if (c == null) {
+                code = dict.size();
+                newDictBytes += 4 + s.length();
+            } else {
+                code = c;
+            }
+        } else {
+            code = ((IntField) f).getValue();
+        }
+        if (count == 0)
+            return encodedSize(1, code, code, 1, newDictBytes) <= BufferPool.getPageSize();
+        int newRuns = codes[count - 1] == code ? runs : runs + 1;
+        return encodedSize(count + 1, Math.min(min, code), Math.max(max, code), newRuns,
+                newDictBytes) <= BufferPool.getPageSize();
+    }
+
+    Field getValue(int i) {
+        if (type == Type.INT_TYPE)
+            return new IntField(codes[i]);
+        return new StringField(dict.get(codes[i]), Type.STRING_LEN);
+    }
+
+    boolean matches(int i, Predicate p) {
+        if (type == Type.INT_TYPE)
+            return IntField.compare(codes[i], p.getOp(), ((IntField) p.getOperand()).getValue());
+        if (p != lastPred || dictMatches.length != dict.size()) {
+            dictMatches = new boolean[dict.size()];
+            for (int k = 0; k < dictMatches.length; k++)
+                dictMatches[k] = new StringField(dict.get(k), Type.STRING_LEN)
+                    .compare(p.getOp(), p.getOperand());
+            lastPred = p;
+        }
+        return dictMatches[codes[i]];
+    }
+
+    /**
+     * Set the value of row i of this page, which must be the row after the
+     * last one.
+     * @throws IllegalArgumentException if i is not getCount()
+     */
+    void setValue(int i, Field f) {
+        if (i != count)
+            throw new IllegalArgumentException("rows can only be added at the end of a compressed page");
+        if (type == Type.STRING_TYPE) {
+            String s = ((StringField) f).getValue();
+            Integer c = dictCodes.get(s);
+            add(c != null ? c : addEntry(s));
+        } else {
+            add(((IntField) f).getValue());
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page,
+     * encoded in the smaller format.  Passing it to the CompressedColumnPage
+     * constructor produces an identical page.
+     */
+    public byte[] getPageData() {
+        byte[] page = new byte[BufferPool.getPageSize()];
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(page.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        boolean rle = count > 0 && rleSize(runs) < packedSize(count, min, max);
+        try {
+            dos.writeInt(firstRow);
+            dos.writeInt(count);
+            dos.writeByte(rle ? RLE : 0);
+            if (type == Type.STRING_TYPE) {
+                dos.writeInt(dict.size());
+                for (String s : dict) {
+                    dos.writeInt(s.length());
+                    dos.writeBytes(s);
+                }
+            }
+
+            if (rle) {
+                dos.writeInt(runs);
+                int start = 0;
+                for (int i = 1; i <= count; i++) {
+                    if (i == count || codes[i] != codes[start]) {
+                        dos.writeInt(codes[start]);
+                        dos.writeInt(i - start);
+                        start = i;
+                    }
+                }
+            } else {
+                long base = count == 0 ? 0 : min;
+                int bits = count == 0 ? 0 : bits(min, max);
+                byte[] packed = new byte[(int) (((long) count * bits + 7) / 8)];
+                for (int i = 0; i < count; i++) {
+                    long v = codes[i] - base;
+                    for (int b = 0; b < bits; b++) {
+                        long bit = (long) i * bits + b;
+                        if ((v & (1L << b)) != 0)
+                            packed[(int) (bit / 8)] |= (1 << (bit % 8));
+                    }
+                }
+                dos.writeInt((int) base);
+                dos.writeByte(bits);
+                dos.write(packed);
+            }
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        byte[] encoded = baos.toByteArray();
+        System.arraycopy(encoded, 0, page, 0, encoded.length);
+        return page;
+    }
+
+    public CompressedColumnPage getBeforeImage() {
+        try {
+            return new CompressedColumnPage(pid, oldData.clone(), type);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Each instance of HashPage stores one page of a {@link LinearHashFile},
+ * and implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page starts with a one byte type.  Page 0 of the file is the meta page,
+ * which holds the level and split pointer of the hash table, the number of
+ * entries of the index and the first page of the free list.  Every other
+ * page is a bucket page (the primary page of a bucket, or one of its
+ * overflow pages) or a free page.  Bucket and free pages hold the bucket
+ * they belong to, the number of entries n and the next page of their chain
+ * (-1 for none), followed by n entries made of a key and the page number
+ * and slot of the tuple it points to.  The chain of a free page is the free
+ * list.
+ *
+ * @see LinearHashFile
+ */
+public class HashPage implements Page {
+
+    static final byte BUCKET = 0;
+    static final byte META = 1;
+    static final byte FREE = 2;
+
+    /** Bytes used by the type, the bucket, the entry count and the next page */
+    static final int HEADER_SIZE = 13;
+
+    private final HashPageId pid;
+    private final Type keyType;
+    private final int tableId;
+
+    byte type;
+
+    /** for the meta page, the state of the hash table */
+    int level;
+    int splitNext;
+    int numEntries;
+    int freeHead;
+
+    /** for bucket and free pages, the bucket and the next page of the chain */
+    int bucket;
+    int nextPage;
+    final ArrayList<Field> keys = new ArrayList<Field>();
+    final ArrayList<RecordId> rids = new ArrayList<RecordId>();
+
+    private TransactionId dirtyTransaction;
+    byte[] oldData;
+    private final Object oldDataLock=new Object();
+
+    /**
+     * Create a HashPage from a set of bytes of data read from disk.
+     *
+     * @param id the id of this page
+     * @param data the page data, as written by {@link #getPageData}
+     * @param keyType the type of the keys of the index
+     * @param tableId the id of the table the entries point into
+     */
+    public HashPage(HashPageId id, byte[] data, Type keyType, int tableId) throws IOException {
+        this.pid = id;
+        this.keyType = keyType;
+        this.tableId = tableId;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+
+        type = dis.readByte();
+        if (type == META) {
+            level = dis.readInt();
+            splitNext = dis.readInt();
+            numEntries = dis.readInt();
+            freeHead = dis.readInt();
+        } else {
+            bucket = dis.readInt();
+            int n = dis.readInt();
+            nextPage = dis.readInt();
+            try {
+                for (int i=0; i<n; i++) {
+                    keys.add(keyType.parse(dis));
+                    int pgNo = dis.readInt();
+                    rids.add(new RecordId(new HeapPageId(tableId, pgNo), dis.readInt()));
+                }
+            } catch (java.text.ParseException e) {
+                throw new IOException("parsing error in " + id.getTableId() + ":" + id.pageNumber(), e);
+            }
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /**
+     * @return the maximum number of entries a bucket page with the given
+     *   key type can hold
+     */
+    static int maxEntries(Type keyType) {
+        return (BufferPool.getPageSize() - HEADER_SIZE) / (keyType.getLen() + 8);
+    }
+
+    /** @return true if there is no room for another entry on this page */
+    boolean isFull() {
+        return keys.size() >= maxEntries(keyType);
+    }
+
+    /** Remove all the entries of this page */
+    void clear() {
+        keys.clear();
+        rids.clear();
+    }
+
+    public HashPageId getId() {
+        return pid;
+    }
+
+    /** @return the id of the table the entries of this page point into */
+    public int getIndexedTableId() {
+        return tableId;
+    }
+
+    public void markDirty(boolean dirty, TransactionId tid) {
+        dirtyTransaction = dirty ? tid : null;
+    }
+
+    public TransactionId isDirty() {
+        return dirtyTransaction;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Passing it to the HashPage constructor produces an identical page.
+     */
+    public byte[] getPageData() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeByte(type);
+            if (type == META) {
+                dos.writeInt(level);
+                dos.writeInt(splitNext);
+                dos.writeInt(numEntries);
+                dos.writeInt(freeHead);
+            } else {
+                dos.writeInt(bucket);
+                dos.writeInt(keys.size());
+                dos.writeInt(nextPage);
+                for (int i=0; i<keys.size(); i++) {
+                    keys.get(i).serialize(dos);
+                    dos.writeInt(rids.get(i).getPageId().pageNumber());
+                    dos.writeInt(rids.get(i).tupleno());
+                }
+            }
+            dos.write(new byte[BufferPool.getPageSize() - dos.size()]);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the data of a free page that is not on the free list, used to
+     *   add new pages to a LinearHashFile
+     */
+    public static byte[] createEmptyPageData() {
+        byte[] data = new byte[BufferPool.getPageSize()];
+        data[0] = FREE;
+        data[9] = data[10] = data[11] = data[12] = (byte) 0xff;
+        return data;
+    }
+
+    public HashPage getBeforeImage() {
+        try {
+            byte[] oldDataRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+            }
+            return new HashPage(pid, oldDataRef, keyType, tableId);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        oldData = getPageData().clone();
+        }
+    }
+}
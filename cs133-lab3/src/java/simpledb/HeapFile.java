@@ -9,6 +9,21 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A HeapFile may be clustered on one of its fields:  a tuple is then added
+ * to the last page whose smallest key is not larger than its own, when that
+ * page has room, and to a new page at the end of the file otherwise.  Keys
+ * that mostly arrive in order (such as timestamps) thus leave the pages
+ * sorted on the key, and the {@link ZoneMap} of the file lets range scans
+ * on the key read only the pages that can match.
+ * <p>
+ * The pages of a slotted HeapFile are {@link SlottedPage}s, which store
+ * variable-length records instead of fixed-size slots, so that the strings
+ * of a table only take the space of their characters.
+ * <p>
+ * Each HeapFile has its own page size, by default the page size of the
+ * database ({@link BufferPool#getPageSize()}):  larger pages make scans of
+ * large tables read fewer, longer blocks.
  * 
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
@@ -18,6 +33,10 @@ public class HeapFile implements DbFile {
     private final File f;
     private final TupleDesc td;
     private final int tableid ;
+    private final int clusterField;
+    private final boolean slotted;
+    private final int pageSize;
+    private final ZoneMap zones;
 	
     /**
      * Constructs a heap file backed by the specified file.
@@ -27,10 +46,64 @@ public class HeapFile implements DbFile {
      *            file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, -1);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, clustered on the
+     * specified field.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param clusterField
+     *            the index of the field the pages are kept sorted on, or -1
+     *            for a file stored in no particular order
+     */
+    public HeapFile(File f, TupleDesc td, int clusterField) {
+        this(f, td, clusterField, false);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param clusterField
+     *            the index of the field the pages are kept sorted on, or -1
+     *            for a file stored in no particular order
+     * @param slotted
+     *            true if the pages of the file are SlottedPages
+     */
+    public HeapFile(File f, TupleDesc td, int clusterField, boolean slotted) {
+        this(f, td, clusterField, slotted, BufferPool.getPageSize());
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, with pages of
+     * the specified size.
+     * 
+     * @param f
+     *            the file that stores the on-disk backing store for this heap
+     *            file.
+     * @param clusterField
+     *            the index of the field the pages are kept sorted on, or -1
+     *            for a file stored in no particular order
+     * @param slotted
+     *            true if the pages of the file are SlottedPages
+     * @param pageSize
+     *            the number of bytes of each page of the file
+     */
+    public HeapFile(File f, TupleDesc td, int clusterField, boolean slotted, int pageSize) {
         // some code goes here
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.td = td;
+        this.clusterField = clusterField;
+        this.slotted = slotted;
+        this.pageSize = pageSize;
+        this.zones = new ZoneMap(td);
     }
 
     /**
@@ -67,6 +140,32 @@ public class HeapFile implements DbFile {
     	return td;
     }
 
+    /**
+     * @return the index of the field this file is clustered on, or -1 if it
+     *   is not clustered
+     */
+    public int getClusterField() {
+        return clusterField;
+    }
+
+    /**
+     * @return true if the pages of this file are SlottedPages, false if
+     *   they are HeapPages with fixed-size slots
+     */
+    public boolean isSlotted() {
+        return slotted;
+    }
+
+    /** @return the number of bytes of each page of this file */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /** @return the ranges of values of the pages of this file */
+    public ZoneMap getZoneMap() {
+        return zones;
+    }
+
     // see DbFile.java for javadocs
     public Page readPage(PageId pid) {
         // some code goes here
@@ -75,21 +174,21 @@ public class HeapFile implements DbFile {
 
         try {
             bis = new BufferedInputStream(new FileInputStream(f));
-            byte pageBuf[] = new byte[BufferPool.PAGE_SIZE];
-            if (bis.skip(id.pageNumber() * BufferPool.PAGE_SIZE) != id
-                    .pageNumber() * BufferPool.PAGE_SIZE) {
+            byte pageBuf[] = new byte[pageSize];
+            if (bis.skip((long) id.pageNumber() * pageSize) != (long) id
+                    .pageNumber() * pageSize) {
                 throw new IllegalArgumentException(
                         "Unable to seek to correct place in heapfile");
             }
-            int retval = bis.read(pageBuf, 0, BufferPool.PAGE_SIZE);
+            int retval = bis.read(pageBuf, 0, pageSize);
             if (retval == -1) {
                 throw new IllegalArgumentException("Read past end of table");
             }
-            if (retval < BufferPool.PAGE_SIZE) {
+            if (retval < pageSize) {
                 throw new IllegalArgumentException("Unable to read "
-                        + BufferPool.PAGE_SIZE + " bytes from heapfile");
+                        + pageSize + " bytes from heapfile");
             }
-            HeapPage p = new HeapPage(id, pageBuf);
+            HeapPage p = slotted ? new SlottedPage(id, pageBuf) : new HeapPage(id, pageBuf);
             return p;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -110,7 +209,7 @@ public class HeapFile implements DbFile {
     	int offset = page.getId().pageNumber();
     	RandomAccessFile fIO = new RandomAccessFile(f, "rw");
     	try {
-			fIO.seek(offset*BufferPool.getPageSize());
+			fIO.seek((long) offset*pageSize);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -130,7 +229,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-    	return (int) (f.length() / BufferPool.PAGE_SIZE);
+    	return (int) (f.length() / pageSize);
     }
 
     // see DbFile.java for javadocs
@@ -138,14 +237,20 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
     	
     	ArrayList<Page> affectedPages = new ArrayList<Page>();
-    	for(int i = 0; i<numPages(); i++) {
+    	int first = 0, last = numPages() - 1;
+    	if (clusterField >= 0) {
+    		last = clusterPage(tid, t.getField(clusterField));
+    		first = Math.max(last, 0);
+    	}
+    	for(int i = first; i<=last; i++) {
     		HeapPageId pid = new HeapPageId(getId(), i);
     		
 			HeapPage pg = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
-			if(pg.getNumEmptySlots()>0){
+			if(pg.hasRoomFor(t)){
 	    		pg.insertTuple(t);
 	    		pg.markDirty(true, tid);
 	    		writePage(pg);
+	    		zones.add(i, t);
 	    		affectedPages.add(pg);
 	    		return affectedPages;
 			}
@@ -153,7 +258,8 @@ public class HeapFile implements DbFile {
     		
     	}
     	HeapPageId newPid = new HeapPageId(getId(), numPages());
-    	HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
+    	HeapPage newPage = slotted ? new SlottedPage(newPid, HeapPage.createEmptyPageData(pageSize))
+    		: new HeapPage(newPid, HeapPage.createEmptyPageData(pageSize));
     	newPage.insertTuple(t);
     	newPage.markDirty(true, tid);
     	writePage(newPage);
@@ -162,6 +268,23 @@ public class HeapFile implements DbFile {
     	
     }
 
+    /**
+     * @return the last page whose smallest value of the cluster field is at
+     *   most key, page 0 if there is none, or -1 if the file has no pages
+     */
+    private int clusterPage(TransactionId tid, Field key)
+            throws DbException, TransactionAbortedException {
+    	for (int i = numPages() - 1; i > 0; i--) {
+    		if (!zones.isKnown(i, clusterField))
+    			zones.record((HeapPage) Database.getBufferPool().getPage(tid,
+    					new HeapPageId(getId(), i), Permissions.READ_ONLY), clusterField);
+    		Field min = zones.getMin(i, clusterField);
+    		if (min != null && min.compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+    			return i;
+    	}
+    	return numPages() > 0 ? 0 : -1;
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -176,10 +299,131 @@ public class HeapFile implements DbFile {
     	
     }
 
+    /**
+     * Compacts this file after deletes:  the tuples are moved, in file
+     * order, to the free slots of the earliest pages that have room for
+     * them, and the pages left empty at the end of the file are truncated.
+     * The tuples keep the order of their pages, so a clustered file stays
+     * clustered.  The indexes of the table are updated with the new
+     * RecordIds of the moved tuples.
+     * <p>
+     * Each tuple is moved in a single step through the BufferPool, so
+     * queries can run between two moves;  a scan running concurrently may
+     * however miss a tuple moved behind it.  The pages holding the moved
+     * tuples and their index entries are written before the file is
+     * truncated.
+     *
+     * @return the number of pages removed from the file
+     */
+    public int compact(TransactionId tid)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        List<IndexFile> indexes = Database.getCatalog().getIndexes(getId());
+        Map<PageId, Page> dirtied = new LinkedHashMap<PageId, Page>();
+        int n = numPages();
+        int w = 0;
+        int last = -1;
+        for (int r = 0; r < n; r++) {
+            int numSlots = ((HeapPage) bp.getPage(tid, new HeapPageId(getId(), r),
+                    Permissions.READ_ONLY)).numSlots;
+            for (int i = 0; i < numSlots; i++) {
+                HeapPage src = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), r),
+                        Permissions.READ_WRITE);
+                Tuple t = src.getTuple(i);
+                if (t == null)
+                    continue;
+                HeapPage dst = null;
+                while (w < r) {
+                    dst = (HeapPage) bp.getPage(tid, new HeapPageId(getId(), w),
+                            Permissions.READ_WRITE);
+                    if (dst.hasRoomFor(t))
+                        break;
+                    w++;
+                }
+                if (w == r) {
+                    last = r;
+                    continue;
+                }
+
+                Tuple moved = new Tuple(td);
+                for (int j = 0; j < td.numFields(); j++)
+                    moved.setField(j, t.getField(j));
+                src.deleteTuple(t);
+                dst.insertTuple(moved);
+                src.markDirty(true, tid);
+                dst.markDirty(true, tid);
+                bp.cachePage(src);
+                bp.cachePage(dst);
+                dirtied.put(src.getId(), src);
+                dirtied.put(dst.getId(), dst);
+                last = Math.max(last, w);
+                for (IndexFile index : indexes) {
+                    ArrayList<Page> pages = index.deleteTuple(tid, t);
+                    bp.cachePages(pages);
+                    ArrayList<Page> inserted = index.insertTuple(tid, moved);
+                    bp.cachePages(inserted);
+                    pages.addAll(inserted);
+                    for (Page p : pages)
+                        dirtied.put(p.getId(), p);
+                }
+            }
+        }
+
+        // the moved tuples are only on dirty pages of the BufferPool:  write
+        // them, and the index entries pointing to them, before the pages
+        // they were moved from are truncated
+        for (Page p : dirtied.values()) {
+            PageId pid = p.getId();
+            if (pid.getTableId() == getId() && pid.pageNumber() > last)
+                continue;
+            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+            p.markDirty(false, null);
+        }
+
+        int removed = n - (last + 1);
+        if (removed > 0) {
+            for (int pgNo = last + 1; pgNo < n; pgNo++)
+                bp.discardPage(new HeapPageId(getId(), pgNo));
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            try {
+                raf.setLength((long) (last + 1) * pageSize);
+            } finally {
+                raf.close();
+            }
+        }
+        zones.clear();
+        return removed;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-    	return new HeapFileIterator(this, tid);
+    	return new HeapFileIterator(this, tid, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * preds.  The predicates are evaluated on each page before the tuples
+     * are decoded, so tuples that don't match are never materialized, and
+     * the pages that the zone map shows can't match are not read at all.
+     *
+     * @param preds predicates over the fields of this file's TupleDesc
+     * @see HeapPage#iterator(Predicate[], int[])
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds) {
+    	return new HeapFileIterator(this, tid, preds, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, Predicate[])}, but the returned
+     * tuples only hold the given fields, and no other field is decoded.
+     *
+     * @param preds predicates over the fields of this file's TupleDesc, or
+     *   null
+     * @param fields indices of the fields to return, or null for all of them
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+    	return new HeapFileIterator(this, tid, preds, fields);
     }
 
 }
@@ -191,10 +435,17 @@ class HeapFileIterator implements DbFileIterator {
 
     TransactionId tid;
     HeapFile hf;
+    Predicate[] preds;
+    int[] fields;
+    TupleDesc projectedTd;
 
-    public HeapFileIterator(HeapFile hf, TransactionId tid) {
+    public HeapFileIterator(HeapFile hf, TransactionId tid, Predicate[] preds, int[] fields) {
         this.hf = hf;
         this.tid = tid;
+        this.preds = preds;
+        this.fields = fields;
+        if (fields != null)
+            this.projectedTd = HeapPage.projectTupleDesc(hf.getTupleDesc(), fields);
     }
 
     public void open() throws DbException, TransactionAbortedException {
@@ -224,10 +475,15 @@ class HeapFileIterator implements DbFileIterator {
 
         while (it == null && curpgno < hf.numPages() - 1) {
             curpgno++;
+            if (preds != null && !hf.getZoneMap().mayMatch(curpgno, preds))
+                continue;
             HeapPageId curpid = new HeapPageId(hf.getId(), curpgno);
             HeapPage curp = (HeapPage) Database.getBufferPool().getPage(tid,
                     curpid, Permissions.READ_ONLY);
-            it = curp.iterator();
+            if (preds != null && recordZones(curp))
+                continue;
+            it = preds == null && fields == null ? curp.iterator()
+                    : curp.iterator(preds, fields, projectedTd);
             if (!it.hasNext())
                 it = null;
         }
@@ -237,6 +493,24 @@ class HeapFileIterator implements DbFileIterator {
         return it.next();
     }
 
+    /**
+     * Record the ranges of the predicate fields of p that the zone map
+     * doesn't know yet.
+     * @return true if they show that no tuple of p can match
+     */
+    private boolean recordZones(HeapPage p) {
+        ZoneMap zones = hf.getZoneMap();
+        int pgNo = p.getId().pageNumber();
+        boolean recorded = false;
+        for (Predicate pred : preds) {
+            if (!zones.isKnown(pgNo, pred.getField())) {
+                zones.record(p, pred.getField());
+                recorded = true;
+            }
+        }
+        return recorded && !zones.mayMatch(pgNo, preds);
+    }
+
     public void rewind() throws DbException, TransactionAbortedException {
         close();
         open();
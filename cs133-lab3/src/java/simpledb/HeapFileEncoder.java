@@ -26,29 +26,38 @@ public class HeapFileEncoder {
    * @param outFile The output file to write data to
    * @param npagebytes The number of bytes per page in the output file
    * @param numFields the number of fields in each input tuple
-   * @throws IOException if the temporary/output file can't be opened
+   * @throws IOException if the output file can't be opened
    */
   public static void convert(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes, int numFields) throws IOException {
-      File tempInput = File.createTempFile("tempTable", ".txt");
-      tempInput.deleteOnExit();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(tempInput));
-      for (ArrayList<Integer> tuple : tuples) {
-          int writtenFields = 0;
-          for (Integer field : tuple) {
-              writtenFields++;
-              if (writtenFields > numFields) {
-                  throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
-                          Utility.listToString(tuple) + ")");
+      // pack the pages directly rather than through a temporary text file
+      int nrecords = (npagebytes * 8) / (numFields * Type.INT_TYPE.getLen() * 8 + 1);
+      int nheaderbytes = (nrecords + 7) / 8;
+      DataOutputStream os = new DataOutputStream(new BufferedOutputStream(
+              new FileOutputStream(outFile), BulkLoader.WRITE_BUFFER_PAGES * npagebytes));
+      try {
+          int next = 0;
+          do {
+              int recordcount = Math.min(nrecords, tuples.size() - next);
+              byte[] header = new byte[nheaderbytes];
+              for (int i = 0; i < recordcount; i++)
+                  header[i / 8] |= (1 << (i % 8));
+              os.write(header);
+              for (int i = 0; i < recordcount; i++) {
+                  ArrayList<Integer> tuple = tuples.get(next + i);
+                  if (tuple.size() != numFields) {
+                      throw new RuntimeException("Tuple does not have " + numFields + " fields: (" +
+                              Utility.listToString(tuple) + ")");
+                  }
+                  for (Integer field : tuple)
+                      os.writeInt(field);
               }
-              bw.write(String.valueOf(field));
-              if (writtenFields < numFields) {
-                  bw.write(',');
-              }
-          }
-          bw.write('\n');
+              // pad the rest of the page with zeroes
+              os.write(new byte[npagebytes - nheaderbytes - recordcount * numFields * Type.INT_TYPE.getLen()]);
+              next += recordcount;
+          } while (next < tuples.size());
+      } finally {
+          os.close();
       }
-      bw.close();
-      convert(tempInput, outFile, npagebytes, numFields);
   }
 
       public static void convert(File inFile, File outFile, int npagebytes,
@@ -19,6 +19,12 @@ public class HeapPage implements Page {
     final Tuple tuples[];
     final int numSlots;
 
+    // the bytes this page was read from.  Tuples are only decoded from them
+    // when first asked for, so a used slot whose tuples[] entry is null still
+    // holds its tuple here.
+    final byte data[];
+    final int fieldOffsets[];
+
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
@@ -27,20 +33,22 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is the length of data, the page size of its HeapFile.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see HeapFile#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = data;
         this.numSlots = getNumTuples();
         DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -48,30 +56,46 @@ public class HeapPage implements Page {
         header = new byte[getHeaderSize()];
         for (int i=0; i<header.length; i++)
             header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
         dis.close();
 
+        // the records themselves are decoded lazily, see getTuple()
+        tuples = new Tuple[numSlots];
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<td.numFields(); j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+
         setBeforeImage();
         
         isDirty = false;
         dirtyTransaction = null;
     }
 
+    /**
+     * Create a page with numSlots empty slots over data, for subclasses that
+     * store their tuples in another format.  The subclass reads data, marks
+     * the used slots and takes the before image.
+     *
+     * @see SlottedPage
+     */
+    protected HeapPage(HeapPageId id, byte[] data, int numSlots) {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.numSlots = numSlots;
+        this.data = data;
+        header = new byte[(numSlots + 7) / 8];
+        tuples = new Tuple[numSlots];
+        fieldOffsets = new int[td.numFields()];
+        for (int j=1; j<td.numFields(); j++)
+            fieldOffsets[j] = fieldOffsets[j-1] + td.getFieldType(j-1).getLen();
+    }
+
     /** Retrieve the number of tuples on this page.
         @return the number of tuples on this page
     */
     private int getNumTuples() {        
         // some code goes here
         int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-        int tuplesPerPage = (BufferPool.PAGE_SIZE*8) / bitsPerTupleIncludingHeader; //round down
+        int tuplesPerPage = (data.length*8) / bitsPerTupleIncludingHeader; //round down
         return tuplesPerPage;
 
     }
@@ -125,21 +149,19 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the offset in data of the first byte of the tuple in slot
+     *   slotId
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
+    /**
+     * Decode the tuple stored in slot slotId of data.
+     */
+    Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+                slotOffset(slotId), td.getSize()));
 
         // read fields in the tuple
         Tuple t = new Tuple(td);
@@ -158,6 +180,68 @@ public class HeapPage implements Page {
         return t;
     }
 
+    /**
+     * Decode field j of the tuple stored in slot slotId of data, without
+     * decoding the rest of the tuple.
+     */
+    Field readField(int slotId, int j) throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data,
+                slotOffset(slotId) + fieldOffsets[j], td.getFieldType(j).getLen()));
+        try {
+            return td.getFieldType(j).parse(dis);
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Returns true if the tuple in slot slotId satisfies all of preds.  Tuples
+     * that have not been decoded yet are tested directly against the page
+     * bytes: integer fields are compared in place, and only the compared field
+     * is decoded for string fields.
+     */
+    boolean matches(int slotId, Predicate[] preds) {
+        Tuple t = tuples[slotId];
+        for (int k=0; k<preds.length; k++) {
+            Predicate p = preds[k];
+            if (t != null) {
+                if (!p.filter(t))
+                    return false;
+            } else if (td.getFieldType(p.getField()) == Type.INT_TYPE) {
+                int off = slotOffset(slotId) + fieldOffsets[p.getField()];
+                int v = ((data[off] & 0xff) << 24) | ((data[off+1] & 0xff) << 16)
+                    | ((data[off+2] & 0xff) << 8) | (data[off+3] & 0xff);
+                if (!IntField.compare(v, p.getOp(), ((IntField) p.getOperand()).getValue()))
+                    return false;
+            } else {
+                if (!readField(slotId, p.getField()).compare(p.getOp(), p.getOperand()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the smallest and largest values of field j among the tuples
+     *   of this page, or two nulls if the page is empty.  Only field j is
+     *   decoded.
+     * @see ZoneMap
+     */
+    Field[] range(int j) {
+        Field min = null, max = null;
+        for (int i=0; i<numSlots; i++) {
+            if (!isSlotUsed(i))
+                continue;
+            Field f = tuples[i] != null ? tuples[i].getField(j) : readField(i, j);
+            if (min == null || f.compare(Predicate.Op.LESS_THAN, min))
+                min = f;
+            if (max == null || f.compare(Predicate.Op.GREATER_THAN, max))
+                max = f;
+        }
+        return new Field[] { min, max };
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -170,7 +254,7 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+        int len = data.length;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -200,6 +284,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot that was never decoded: copy its bytes
+            if (tuples[i] == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j=0; j<td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -213,7 +307,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = data.length - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -240,8 +334,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Like {@link #createEmptyPageData()}, for a HeapFile whose pages are
+     * pageSize bytes long.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -255,7 +356,7 @@ public class HeapPage implements Page {
         //Iterate until we find the tuple to delete and update the header to show that the slot is now empty
     	for(int i = 0; i < numSlots; i++) {
     		if (isSlotUsed(i)) {
-    			if (tuples[i].equals(t)) {
+    			if (tuples[i] != null && tuples[i].equals(t)) {
     				tuples[i] = null;
     				markSlotUsed(i, false);
     				return;
@@ -321,6 +422,13 @@ public class HeapPage implements Page {
         return cnt;
     }
 
+    /**
+     * Returns true if t can be added to this page.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        return getNumEmptySlots() > 0;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -334,7 +442,7 @@ public class HeapPage implements Page {
     /**
      * Abstraction to fill or clear a slot on this page.
      */
-    private void markSlotUsed(int i, boolean value) {
+    void markSlotUsed(int i, boolean value) {
     	int headerbit = i % 8;
     	int headerbyte = (i-headerbit)/8;
     	
@@ -351,7 +459,66 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-    	return new HeapPageIterator(this);
+    	return new HeapPageIterator(this, null, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     *   preds.  Tuples that don't are never decoded.
+     * @see #matches
+     */
+    public Iterator<Tuple> iterator(Predicate[] preds) {
+    	return new HeapPageIterator(this, preds, null, null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy all of
+     *   preds (if not null), holding only the given fields.  Fields that
+     *   are not returned are never decoded.
+     * @param fields indices of the fields of this page's TupleDesc to return
+     */
+    public Iterator<Tuple> iterator(Predicate[] preds, int[] fields) {
+    	return iterator(preds, fields, projectTupleDesc(td, fields));
+    }
+
+    /**
+     * Like {@link #iterator(Predicate[], int[])}, for callers that already
+     * hold the TupleDesc of the projected tuples.
+     * @param fields indices of the fields of this page's TupleDesc to return,
+     *   or null for all of them
+     * @param projectedTd the TupleDesc of the returned tuples when fields is
+     *   not null, as built by projectTupleDesc
+     */
+    public Iterator<Tuple> iterator(Predicate[] preds, int[] fields, TupleDesc projectedTd) {
+    	return new HeapPageIterator(this, preds, fields, projectedTd);
+    }
+
+    /**
+     * @return the TupleDesc made of the given fields of td
+     */
+    static TupleDesc projectTupleDesc(TupleDesc td, int[] fields) {
+        Type[] types = new Type[fields.length];
+        String[] names = new String[fields.length];
+        for (int k=0; k<fields.length; k++) {
+            types[k] = td.getFieldType(fields[k]);
+            names[k] = td.getFieldName(fields[k]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    // used by the iterator to get the given fields of the ith tuple
+    Tuple getTuple(int i, int[] fields, TupleDesc projectedTd) throws NoSuchElementException {
+        if (i >= tuples.length)
+            throw new NoSuchElementException();
+        if (!isSlotUsed(i))
+            return null;
+
+        Tuple full = tuples[i];
+        Tuple t = new Tuple(projectedTd);
+        t.setRecordId(full != null ? full.getRecordId() : new RecordId(pid, i));
+        for (int k=0; k<fields.length; k++)
+            t.setField(k, full != null ? full.getField(fields[k]) : readField(i, fields[k]));
+        return t;
     }
     
     // protected method used by the iterator to get the ith tuple
@@ -369,6 +536,12 @@ public class HeapPage implements Page {
             }
 
             Debug.log(1, "HeapPage.getTuple: returning tuple %d", i);
+            if (tuples[i] == null) {
+                synchronized (this) {
+                    if (tuples[i] == null)
+                        tuples[i] = readTuple(i);
+                }
+            }
             return tuples[i];
 
         } catch (ArrayIndexOutOfBoundsException e) {
@@ -385,9 +558,21 @@ class HeapPageIterator implements Iterator<Tuple> {
     int curTuple = 0;
     Tuple nextToReturn = null;
     HeapPage p;
+    Predicate[] preds;
+    int[] fields;
+    TupleDesc projectedTd;
 
-    public HeapPageIterator(HeapPage p) {
+    /**
+     * @param preds if not null, only the tuples satisfying all of these
+     *   predicates are returned
+     * @param fields if not null, the returned tuples only hold these fields,
+     *   and are described by projectedTd
+     */
+    public HeapPageIterator(HeapPage p, Predicate[] preds, int[] fields, TupleDesc projectedTd) {
         this.p = p;
+        this.preds = preds;
+        this.fields = fields;
+        this.projectedTd = projectedTd;
     }
 
     public boolean hasNext() {
@@ -396,7 +581,12 @@ class HeapPageIterator implements Iterator<Tuple> {
 
         try {
             while (true) {
-                nextToReturn = p.getTuple(curTuple++);
+                int slot = curTuple++;
+                if (preds != null && slot < p.numSlots
+                        && (!p.isSlotUsed(slot) || !p.matches(slot, preds)))
+                    continue;
+                nextToReturn = fields == null ? p.getTuple(slot)
+                    : p.getTuple(slot, fields, projectedTd);
                 if(nextToReturn != null)
                     return true;
             }
@@ -0,0 +1,61 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * The interface for index files on disk.  An index maps the values of one
+ * field of a table, its key, to the RecordIds of the tuples holding them.
+ * Its pages are cached by the BufferPool like those of any other DbFile,
+ * and it is kept up to date by {@link BufferPool#insertTuple} and
+ * {@link BufferPool#deleteTuple} once it is added to the catalog.
+ * <p>
+ * The insertTuple and deleteTuple methods of an index add and remove the
+ * entry of a tuple that is already stored in (and not yet removed from) the
+ * indexed table.
+ *
+ * @see Catalog#addIndex
+ * @see IndexScan
+ * @see AbstractIndexFile
+ */
+public interface IndexFile extends DbFile {
+
+    /** @return the id of the table this index points into */
+    public int getTableId();
+
+    /** @return the index of the key field in the indexed table */
+    public int getKeyField();
+
+    /**
+     * @return true if {@link #indexIterator} can find the tuples that satisfy
+     *   a predicate with this operator without reading the whole index
+     */
+    public boolean supports(Predicate.Op op);
+
+    /** @return the number of pages in this index */
+    public int numPages();
+
+    /**
+     * Returns an iterator over the tuples of the indexed table that satisfy
+     * p.
+     *
+     * @param p a predicate over the key field of the indexed table, whose
+     *   operator is supported by this index
+     * @throws IllegalArgumentException if p is not over the key field or the
+     *   index can't serve its operator
+     */
+    public DbFileIterator indexIterator(TransactionId tid, Predicate p);
+
+    /**
+     * @return the estimated number of pages of this index read to find the
+     *   entries of one key
+     */
+    public double estimateLookupPages();
+
+    /**
+     * Adds an entry for every tuple of the indexed table to this index.
+     * Used to build an index over a table that already holds data; the
+     * modified pages are written to disk.
+     */
+    public void populate(TransactionId tid)
+        throws DbException, IOException, TransactionAbortedException;
+}
@@ -0,0 +1,112 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexNestedLoopJoin is a Join whose inner relation is an {@link IndexScan}
+ * over the inner join field.  Instead of rescanning the inner relation for
+ * each outer tuple, it probes the index with the join field of that tuple,
+ * so only the matching inner tuples are read.
+ *
+ * @see JoinOptimizer#instantiateJoin
+ */
+public class IndexNestedLoopJoin extends Join {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator outer;
+    private IndexScan inner;
+    private Tuple outerTuple;
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children;  its operator must
+     *            be indexable (see {@link #probeOp})
+     * @param outer
+     *            Iterator for the left(outer) relation to join
+     * @param inner
+     *            Scan of the right(inner) relation, whose index is keyed on
+     *            the field p.getField2() of the scan's table
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, DbIterator outer, IndexScan inner) {
+        super(p, outer, inner);
+        if (probeOp(p.getOperator()) == null)
+            throw new IllegalArgumentException("cannot probe an index with " + p.getOperator());
+        this.outer = outer;
+        this.inner = inner;
+    }
+
+    /**
+     * @return the operator to probe the inner index with, so that the inner
+     *         tuples whose key k satisfies <tt>k probeOp v</tt> are those
+     *         satisfying <tt>v op k</tt>, or null if op can't use the index
+     */
+    public static Predicate.Op probeOp(Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+            return Predicate.Op.EQUALS;
+        case LESS_THAN:
+            return Predicate.Op.GREATER_THAN;
+        case LESS_THAN_OR_EQ:
+            return Predicate.Op.GREATER_THAN_OR_EQ;
+        case GREATER_THAN:
+            return Predicate.Op.LESS_THAN;
+        case GREATER_THAN_OR_EQ:
+            return Predicate.Op.LESS_THAN_OR_EQ;
+        default:
+            return null;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        super.open();
+        outerTuple = null;
+    }
+
+    public void close() {
+        super.close();
+        outerTuple = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        outer.rewind();
+        outerTuple = null;
+    }
+
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        JoinPredicate p = getJoinPredicate();
+        while (true) {
+            while (outerTuple != null && inner.hasNext()) {
+                Tuple innerTuple = inner.next();
+                if (p.filter(outerTuple, innerTuple))
+                    return merge(outerTuple, innerTuple);
+            }
+            if (!outer.hasNext())
+                return null;
+            outerTuple = outer.next();
+            inner.close();
+            inner.probe(probeOp(p.getOperator()), outerTuple.getField(p.getField1()));
+            inner.open();
+        }
+    }
+
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int n1 = t1.getTupleDesc().numFields();
+        Tuple t = new Tuple(TupleDesc.merge(t1.getTupleDesc(), t2.getTupleDesc()));
+        for (int i = 0; i < n1; i++)
+            t.setField(i, t1.getField(i));
+        for (int i = 0; i < t2.getTupleDesc().numFields(); i++)
+            t.setField(n1 + i, t2.getField(i));
+        return t;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        super.setChildren(children);
+        this.outer = children[0];
+        this.inner = (IndexScan) children[1];
+    }
+}
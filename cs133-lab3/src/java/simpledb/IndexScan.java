@@ -0,0 +1,93 @@
+package simpledb;
+
+/**
+ * IndexScan is a SeqScan that reads its table through an {@link IndexFile}
+ * on one of its fields.  The first predicate pushed into the scan that the
+ * index can serve (see {@link IndexFile#supports}) over the key field selects
+ * the entries to read; the other predicates are checked on the tuples the
+ * index returns.  Without such a predicate the table is scanned as by a
+ * SeqScan.
+ * <p>
+ * An index nested-loop join probes the scan with {@link #probe} for each
+ * outer tuple instead.
+ *
+ * @see LogicalPlan#physicalPlan
+ * @see IndexNestedLoopJoin
+ */
+public class IndexScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    private final IndexFile index;
+    private Predicate probe = null;
+
+    /**
+     * Creates a scan of the specified table through the specified index.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, see {@link SeqScan#SeqScan}
+     * @param index
+     *            an index of the table
+     */
+    public IndexScan(TransactionId tid, int tableid, String tableAlias, IndexFile index) {
+        super(tid, tableid, tableAlias);
+        if (index.getTableId() != tableid)
+            throw new IllegalArgumentException("index is not over table " + tableid);
+        this.index = index;
+        makeIterator();
+    }
+
+    /** @return the index this scan reads the table through */
+    public IndexFile getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate that selects the index entries to read, or null
+     *         if the scan reads the whole table
+     */
+    public Predicate getIndexPredicate() {
+        if (index == null)
+            return null;
+        if (probe != null)
+            return probe;
+        for (Predicate p : getPredicates())
+            if (p.getField() == index.getKeyField() && index.supports(p.getOp()))
+                return p;
+        return null;
+    }
+
+    /**
+     * Restrict the scan to the tuples whose key satisfies <tt>key op
+     * value</tt>, in addition to the predicates added with addPredicate, and
+     * read them through the index, which must support op.  Replaces the
+     * previous probe.  The scan must be closed.
+     */
+    public void probe(Predicate.Op op, Field value) {
+        if (isOpen())
+            throw new IllegalStateException("cannot probe an open scan");
+        probe = new Predicate(index.getKeyField(), op, value);
+        makeIterator();
+    }
+
+    @Override
+    protected DbFileIterator createIterator(Predicate[] preds, int[] fields) {
+        Predicate ip = getIndexPredicate();
+        if (ip == null)
+            return super.createIterator(preds, fields);
+
+        Predicate[] residual = null;
+        if (preds != null && (probe != null || preds.length > 1)) {
+            residual = new Predicate[probe != null ? preds.length : preds.length - 1];
+            int n = 0;
+            for (Predicate p : preds)
+                if (p != ip)
+                    residual[n++] = p;
+        }
+        return filter(index.indexIterator(getTransactionId(), ip), residual, fields);
+    }
+}
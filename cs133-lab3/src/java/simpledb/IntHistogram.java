@@ -1,8 +1,12 @@
 package simpledb;
 
+import java.io.Serializable;
+
 /** A class to represent a fixed-width histogram over a single integer-based field.
  */
-public class IntHistogram {
+public class IntHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     /**
      * Create a new IntHistogram.
@@ -25,13 +29,15 @@ public class IntHistogram {
      */
 	private int min;
 	private int max;
-	private int[] buckets;  //If not all buckets can have the same width, the last one will have all the overflow
+	private int base;  //The min the buckets were laid out from; min and max widen the first and last buckets
+	private double[] buckets;  //If not all buckets can have the same width, the last one will have all the overflow
 	private int width;
-	private int totalVals;
+	private double totalVals;
     public IntHistogram(int buckets, int min, int max) {
     	this.min = min;
     	this.max = max;
-    	this.buckets = new int[buckets];
+    	this.base = min;
+    	this.buckets = new double[buckets];
     	width = (max - min + 1) / buckets;
     	if (width < 1) {
     		width = 1;
@@ -44,10 +50,77 @@ public class IntHistogram {
      * @param v Value to add to the histogram
      */
     public void addValue(int v) {
-    	int loc = (v-min)/width;
-    	loc = (loc < buckets.length? loc: buckets.length-1);
-    	buckets[loc]++;
-    	totalVals++;
+    	addValue(v, 1);
+    }
+
+    /**
+     * Add a value that stands for weight values, e.g. a tuple inserted into
+     * a table whose histogram was built from a sample of its tuples.
+     * @param v Value to add to the histogram
+     * @param weight Number of values v stands for
+     */
+    public void addValue(int v, double weight) {
+    	if (v > max) {
+    		max = v; //The last bucket takes all the overflow, so it just gets wider
+    	}
+    	if (v < min) {
+    		min = v; //Likewise, the first bucket takes all the underflow
+    	}
+    	buckets[bucket(v)] += weight;
+    	totalVals += weight;
+    }
+
+    /**
+     * Remove a value previously added with addValue(), e.g. because the
+     * tuple holding it was deleted.
+     * @param v Value to remove from the histogram
+     */
+    public void removeValue(int v) {
+    	removeValue(v, 1);
+    }
+
+    /**
+     * Remove a value previously added with addValue(int, double).
+     * @param v Value to remove from the histogram
+     * @param weight Number of values v stands for
+     */
+    public void removeValue(int v, double weight) {
+    	int loc = bucket(v);
+    	weight = Math.min(weight, buckets[loc]);
+    	buckets[loc] -= weight;
+    	totalVals -= weight;
+    }
+
+    /** @return the number of values in the histogram, counting their weights */
+    double count() {
+    	return totalVals;
+    }
+
+    /**
+     * @return the index of the bucket v falls into; values below the
+     *     original min are counted in the first bucket
+     */
+    private int bucket(int v) {
+    	if (v < base) {
+    		return 0;
+    	}
+    	int loc = (v-base)/width;
+    	return (loc < buckets.length? loc: buckets.length-1);
+    }
+
+    /** @return the smallest value of bucket loc */
+    private int low(int loc) {
+    	return (loc == 0? min: base + loc*width);
+    }
+
+    /** @return the largest value of bucket loc */
+    private int high(int loc) {
+    	return (loc == buckets.length-1? max: base + (loc+1)*width - 1);
+    }
+
+    /** @return the number of distinct values bucket loc covers */
+    private int bucketWidth(int loc) {
+    	return Math.max(1, high(loc) - low(loc) + 1);
     }
 
     /** 
@@ -57,9 +130,11 @@ public class IntHistogram {
      * @return the estimate
      */
     private double equals(int v) {
-    	int loc = (v-min)/width;
-    	loc = (loc < buckets.length? loc: buckets.length-1);
-    	return buckets[loc]/((double)width * totalVals);
+    	if (totalVals <= 0) {
+    		return 0;
+    	}
+    	int loc = bucket(v);
+    	return buckets[loc]/((double)bucketWidth(loc) * totalVals);
     }
     
     /**
@@ -68,10 +143,12 @@ public class IntHistogram {
      * @return the estimate
      */
     private double greater(int v) {
-    	int loc = (v-min)/width;
-    	loc = (loc < buckets.length? loc: buckets.length-1);
-    	double num = buckets[loc] * ((width - 1) - ((v-min) % width)/(double)width);
-		for(int i = (v - min)/width + 1; i < buckets.length; i++) {
+    	if (totalVals <= 0) {
+    		return 0;
+    	}
+    	int loc = bucket(v);
+    	double num = buckets[loc] * Math.max(0, high(loc) - v) / (double)bucketWidth(loc);
+		for(int i = loc + 1; i < buckets.length; i++) {
 			num += buckets[i];
 		}
 		return num / totalVals;
@@ -13,6 +13,8 @@ import javax.swing.tree.*;
 public class JoinOptimizer {
     LogicalPlan p;
     Vector<LogicalJoinNode> joins;
+    /** the cost and cardinality of each join instantiated so far */
+    private HashMap<DbIterator, CostCard> instantiated = new HashMap<DbIterator, CostCard>();
 
     /**
      * Constructor
@@ -44,8 +46,79 @@ public class JoinOptimizer {
     public static DbIterator instantiateJoin(LogicalJoinNode lj,
             DbIterator plan1, DbIterator plan2) throws ParsingException {
 
-        int t1id = 0, t2id = 0;
         DbIterator j;
+        j = new Join(joinPredicate(lj, plan1, plan2),plan1,plan2);
+
+        return j;
+
+    }
+
+    /**
+     * Return best iterator for computing a given logical join, like
+     * {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator)}, but
+     * choosing between a nested loops join and an {@link IndexNestedLoopJoin}
+     * by the same costs {@link #estimateJoinCost} compares.  The cost and
+     * cardinality of each subplan are those of the base table it scans, or
+     * those estimated for it if it is a join returned by an earlier call.
+     * 
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param stats
+     *            The table stats, referenced by table names, not alias
+     * @param filterSelectivities
+     *            the selectivities of the filters over each of the tables
+     *            (where tables are indentified by their alias or name if no
+     *            alias is given)
+     */
+    public DbIterator instantiateJoin(LogicalJoinNode lj, DbIterator plan1,
+            DbIterator plan2, Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) throws ParsingException {
+
+        if (lj instanceof LogicalSubplanJoinNode)
+            return instantiateJoin(lj, plan1, plan2);
+        CostCard left = costCard(plan1, lj.t1Alias, stats, filterSelectivities);
+        CostCard right = costCard(plan2, lj.t2Alias, stats, filterSelectivities);
+        if (left == null || right == null)
+            return instantiateJoin(lj, plan1, plan2);
+
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        double cost = estimateNestedLoopJoinCost(left.card, right.card,
+                left.cost, right.cost);
+        double indexCost = estimateIndexJoinCost(lj, left.card, left.cost);
+        IndexScan inner = indexCost < cost && plan2 instanceof SeqScan
+            ? indexScanOn((SeqScan) plan2, lj.f2PureName, lj.p) : null;
+        DbIterator j;
+        if (inner != null) {
+            j = new IndexNestedLoopJoin(p, plan1, inner);
+            cost = indexCost;
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
+
+        CostCard cc = new CostCard();
+        cc.card = estimateJoinCardinality(lj, left.card, right.card,
+                hasPkey(left.plan) || isPkey(lj.t1Alias, lj.f1PureName),
+                hasPkey(right.plan) || isPkey(lj.t2Alias, lj.f2PureName), stats);
+        cc.cost = cost;
+        cc.plan = new Vector<LogicalJoinNode>(left.plan);
+        cc.plan.addAll(right.plan);
+        cc.plan.addElement(lj);
+        instantiated.put(j, cc);
+        return j;
+    }
+
+    /**
+     * @return the predicate of the join lj of plan1 and plan2
+     * @throws ParsingException if a join field is not in its subplan
+     */
+    private static JoinPredicate joinPredicate(LogicalJoinNode lj,
+            DbIterator plan1, DbIterator plan2) throws ParsingException {
+
+        int t1id = 0, t2id = 0;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -65,12 +138,67 @@ public class JoinOptimizer {
             }
         }
 
-        JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
+        return new JoinPredicate(t1id, lj.p, t2id);
+    }
 
-        j = new Join(p,plan1,plan2);
+    /**
+     * @return the cost and cardinality of plan, a join returned by
+     *         {@link #instantiateJoin(LogicalJoinNode, DbIterator, DbIterator, Map, Map)}
+     *         or a scan of the table tableAlias, with the joins it performs;
+     *         or null if there are no estimates for it
+     */
+    private CostCard costCard(DbIterator plan, String tableAlias,
+            Map<String, TableStats> stats,
+            Map<String, Double> filterSelectivities) {
+        CostCard cc = instantiated.get(plan);
+        if (cc != null || !(plan instanceof SeqScan))
+            return cc;
+        Integer tableid = p.getTableId(tableAlias);
+        TableStats s = tableid == null ? null
+            : stats.get(Database.getCatalog().getTableName(tableid));
+        Double selectivity = filterSelectivities.get(tableAlias);
+        if (s == null || selectivity == null)
+            return null;
+        cc = new CostCard();
+        cc.cost = s.estimateScanCost(((SeqScan) plan).getFieldsRead());
+        cc.card = s.estimateTableCardinality(selectivity);
+        cc.plan = new Vector<LogicalJoinNode>();
+        return cc;
+    }
 
-        return j;
+    /**
+     * @return a scan returning the same tuples as ss, read through an index
+     *         on the field fieldName of its table that can be probed with
+     *         op, or null if there is no such index
+     */
+    private static IndexScan indexScanOn(SeqScan ss, String fieldName, Predicate.Op op) {
+        IndexFile index = indexOn(ss.getTableId(), fieldName, op);
+        if (index == null)
+            return null;
+        if (ss instanceof IndexScan && ((IndexScan) ss).getIndex() == index)
+            return (IndexScan) ss;
+
+        IndexScan is = new IndexScan(ss.getTransactionId(), ss.getTableId(),
+                ss.getAlias(), index);
+        for (Predicate pred : ss.getPredicates())
+            is.addPredicate(pred);
+        if (ss.getProjection() != null)
+            is.setProjection(ss.getProjection());
+        return is;
+    }
 
+    /**
+     * @return the index of the specified table on the field fieldName that
+     *         can serve op, or null if there is none
+     * @see Catalog#getIndex(int, int, Predicate.Op)
+     */
+    private static IndexFile indexOn(int tableid, String fieldName, Predicate.Op op) {
+        try {
+            int field = Database.getCatalog().getTupleDesc(tableid).fieldNameToIndex(fieldName);
+            return Database.getCatalog().getIndex(tableid, field, op);
+        } catch (NoSuchElementException e) {
+            return null;
+        }
     }
 
     /**
@@ -96,22 +224,70 @@ public class JoinOptimizer {
      * @param cost2
      *            Estimated cost of one full scan of the table on the right-hand
      *            side of the query
+     * If the right-hand table has an index on an equality join field, the
+     * join is an {@link IndexNestedLoopJoin} when cheaper: each left-hand
+     * tuple costs one index probe, reading the pages of one lookup of the
+     * index and the page of the match.
+     *
      * @return An estimate of the cost of this query, in terms of cost1 and
      *         cost2
      */
     public double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
             double cost1, double cost2) {
+        return estimateJoinCost(j, card1, card2, cost1, cost2, true);
+    }
+
+    /**
+     * Like {@link #estimateJoinCost(LogicalJoinNode, int, int, double, double)},
+     * for a right-hand side that may be a join of several tables rather than
+     * a table.
+     *
+     * @param innerIsTable
+     *            true if the right-hand side is a scan of the table of
+     *            j.t2Alias;  only then can the join probe an index of it
+     */
+    private double estimateJoinCost(LogicalJoinNode j, int card1, int card2,
+            double cost1, double cost2, boolean innerIsTable) {
         if (j instanceof LogicalSubplanJoinNode) {
             // A LogicalSubplanJoinNode represents a subquery.
             // You do not need to implement support for these for Lab 3
 	    // Just finish the else case below
             return card1 + cost1 + cost2;
         } else {
-        	return cost1 + card1 * cost2 //IO cost
-              + card1*card2;  //CPU cost
+        	double cost = estimateNestedLoopJoinCost(card1, card2, cost1, cost2);
+        	return innerIsTable ? Math.min(cost, estimateIndexJoinCost(j, card1, cost1))
+        	        : cost;
         }
     }
 
+    /**
+     * @return the cost of a nested loops join, in terms of the cardinality
+     *         and scan cost of each side (see {@link #estimateJoinCost})
+     */
+    private static double estimateNestedLoopJoinCost(int card1, int card2,
+            double cost1, double cost2) {
+        return cost1 + card1 * cost2 //IO cost
+            + card1*card2;  //CPU cost
+    }
+
+    /**
+     * @return the cost of the join j as an {@link IndexNestedLoopJoin}, in
+     *         terms of the cardinality and scan cost of its left-hand side,
+     *         or infinity if it is not an equality join on a field of the
+     *         right-hand table that has an index
+     */
+    private double estimateIndexJoinCost(LogicalJoinNode j, int card1,
+            double cost1) {
+        Integer t2id = p.getTableId(j.t2Alias);
+        IndexFile index = j.p == Predicate.Op.EQUALS && t2id != null
+            ? indexOn(t2id, j.f2PureName, j.p) : null;
+        if (index == null)
+            return Double.POSITIVE_INFINITY;
+        return cost1 + card1 * (double) TableStats.IOCOSTPERPAGE
+            * (index.estimateLookupPages() + 1) //IO cost
+            + card1;  //CPU cost
+    }
+
     /**
      * Estimate the cardinality of a join. The cardinality of a join is the
      * number of tuples produced by the join.
@@ -303,13 +479,12 @@ public class JoinOptimizer {
 
         if (news.isEmpty()) { // base case -- both are base relations
             prevBest = new Vector<LogicalJoinNode>();
-            t1cost = stats.get(table1Name).estimateScanCost();
+            t1cost = scanCost(stats.get(table1Name), j.t1Alias);
             t1card = stats.get(table1Name).estimateTableCardinality(
                     filterSelectivities.get(j.t1Alias));
             leftPkey = isPkey(j.t1Alias, j.f1PureName);
 
-            t2cost = table2Alias == null ? 0 : stats.get(table2Name)
-                    .estimateScanCost();
+            t2cost = table2Alias == null ? 0 : scanCost(stats.get(table2Name), j.t2Alias);
             t2card = table2Alias == null ? 0 : stats.get(table2Name)
                     .estimateTableCardinality(
                             filterSelectivities.get(j.t2Alias));
@@ -336,8 +511,7 @@ public class JoinOptimizer {
                 t1card = bestCard;
                 leftPkey = hasPkey(prevBest);
 
-                t2cost = j.t2Alias == null ? 0 : stats.get(table2Name)
-                        .estimateScanCost();
+                t2cost = j.t2Alias == null ? 0 : scanCost(stats.get(table2Name), j.t2Alias);
                 t2card = j.t2Alias == null ? 0 : stats.get(table2Name)
                         .estimateTableCardinality(
                                 filterSelectivities.get(j.t2Alias));
@@ -351,7 +525,7 @@ public class JoinOptimizer {
                 // subtree is
                 t2card = bestCard;
                 rightPkey = hasPkey(prevBest);
-                t1cost = stats.get(table1Name).estimateScanCost();
+                t1cost = scanCost(stats.get(table1Name), j.t1Alias);
                 t1card = stats.get(table1Name).estimateTableCardinality(
                         filterSelectivities.get(j.t1Alias));
                 leftPkey = isPkey(j.t1Alias, j.f1PureName);
@@ -363,11 +537,14 @@ public class JoinOptimizer {
             }
         }
 
-        // case where prevbest is left
-        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost);
+        // case where prevbest is left; an index can only be probed on the
+        // side that is a base relation
+        boolean t1Joined = doesJoin(prevBest, table1Alias);
+        double cost1 = estimateJoinCost(j, t1card, t2card, t1cost, t2cost,
+                news.isEmpty() || t1Joined);
 
         LogicalJoinNode j2 = j.swapInnerOuter();
-        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost);
+        double cost2 = estimateJoinCost(j2, t2card, t1card, t2cost, t1cost, !t1Joined);
         if (cost2 < cost1) {
             boolean tmp;
             j = j2;
@@ -389,6 +566,15 @@ public class JoinOptimizer {
         return cc;
     }
 
+    /**
+     * @return the cost of scanning the table tableAlias for the fields its
+     *         scan in the plan reads
+     * @see TableStats#estimateScanCost(int[])
+     */
+    private double scanCost(TableStats s, String tableAlias) {
+        return s.estimateScanCost(p.getFieldsRead(tableAlias));
+    }
+
     /**
      * Return true if the specified table is in the list of joins, false
      * otherwise
@@ -491,7 +677,7 @@ public class JoinOptimizer {
             if (n == null) { // never seen this table before
                 n = new DefaultMutableTreeNode(j.t1Alias
                         + " (Cost = "
-                        + stats.get(table1Name).estimateScanCost()
+                        + scanCost(stats.get(table1Name), j.t1Alias)
                         + ", card = "
                         + stats.get(table1Name).estimateTableCardinality(
                                 selectivities.get(j.t1Alias)) + ")");
@@ -510,8 +696,8 @@ public class JoinOptimizer {
                         j.t2Alias == null ? "Subplan"
                                 : (j.t2Alias
                                         + " (Cost = "
-                                        + stats.get(table2Name)
-                                                .estimateScanCost()
+                                        + scanCost(stats.get(table2Name),
+                                                j.t2Alias)
                                         + ", card = "
                                         + stats.get(table2Name)
                                                 .estimateTableCardinality(
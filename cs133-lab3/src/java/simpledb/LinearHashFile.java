@@ -0,0 +1,428 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * LinearHashFile is a disk-based linear hashing index over one field of a
+ * table, usually its primary key.  An equality lookup hashes the key to a
+ * bucket and reads the primary page of that bucket, and the overflow pages
+ * chained to it if any, so it reads a constant number of pages however
+ * large the table is.  The file is made of HashPages, which are cached by
+ * the BufferPool like any other page.
+ * <p>
+ * Page 0 is the meta page, and bucket b is always stored on page b+1.  The
+ * table starts with INITIAL_BUCKETS buckets; at level l bucket b holds the
+ * keys whose hash h has <tt>h mod (INITIAL_BUCKETS * 2^l) == b</tt>, except
+ * for the buckets before the split pointer, which have already been split
+ * with the hash function of level l+1.  Whenever the entries exceed
+ * MAX_LOAD of the capacity of the primary pages, the bucket at the split
+ * pointer is split, so chains stay short without ever rehashing the whole
+ * table.  Overflow pages are allocated from a free list, or at the end of
+ * the file; an overflow page in the way of a new bucket is moved.
+ * <p>
+ * Deletions only remove entries:  buckets are never merged.
+ *
+ * @see HashPage
+ * @see IndexFile
+ */
+public class LinearHashFile extends AbstractIndexFile {
+
+    /** The number of buckets of an empty index */
+    static final int INITIAL_BUCKETS = 4;
+    /** The fraction of the primary pages' capacity filled before a split */
+    static final double MAX_LOAD = 0.8;
+
+    /**
+     * Constructs a linear hash index backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this index
+     * @param tableId the id of the table this index points into
+     * @param keyField the index of the field of that table used as the key
+     * @param tableTd the TupleDesc of that table
+     */
+    public LinearHashFile(File f, int tableId, int keyField, TupleDesc tableTd) {
+        super(f, tableId, keyField, tableTd);
+    }
+
+    /** Write the meta page and the empty initial buckets of a new index */
+    protected synchronized void initialize() throws IOException {
+        if (numPages() > 0)
+            return;
+        HashPage meta = (HashPage) createPage(new HashPageId(getId(), 0), createEmptyPageData());
+        meta.type = HashPage.META;
+        meta.freeHead = -1;
+        writePage(meta);
+        for (int b = 0; b < INITIAL_BUCKETS; b++) {
+            HashPage p = (HashPage) createPage(new HashPageId(getId(), b + 1),
+                    createEmptyPageData());
+            p.type = HashPage.BUCKET;
+            p.bucket = b;
+            writePage(p);
+        }
+    }
+
+    protected Page createPage(PageId pid, byte[] data) throws IOException {
+        return new HashPage((HashPageId) pid, data, getKeyType(), getTableId());
+    }
+
+    protected byte[] createEmptyPageData() {
+        return HashPage.createEmptyPageData();
+    }
+
+    private HashPage getPage(TransactionId tid, int pgNo, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return (HashPage) Database.getBufferPool().getPage(tid, new HashPageId(getId(), pgNo), perm);
+    }
+
+    /** @return the hash of key, spreading its bits over the low order ones */
+    static int hash(Field key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & 0x7fffffff;
+    }
+
+    /** @return the number of buckets of the hash table described by meta */
+    static int numBuckets(HashPage meta) {
+        return (INITIAL_BUCKETS << meta.level) + meta.splitNext;
+    }
+
+    /** @return the bucket of key in the hash table described by meta */
+    static int bucketOf(HashPage meta, Field key) {
+        int h = hash(key);
+        int b = h % (INITIAL_BUCKETS << meta.level);
+        if (b < meta.splitNext)
+            b = h % (INITIAL_BUCKETS << (meta.level + 1));
+        return b;
+    }
+
+    /**
+     * Adds an entry for t, which must already be stored in the indexed
+     * table, to this index.
+     *
+     * @return the pages that were modified
+     */
+    public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        ArrayList<Page> dirtied = new ArrayList<Page>();
+        HashPage meta = getPage(tid, 0, Permissions.READ_WRITE);
+        Field key = t.getField(getKeyField());
+        add(tid, meta, bucketOf(meta, key), key, t.getRecordId(), dirtied);
+        meta.numEntries++;
+        markDirty(meta, tid, dirtied);
+        if (meta.numEntries > MAX_LOAD * numBuckets(meta) * HashPage.maxEntries(getKeyType()))
+            split(tid, meta, dirtied);
+        return dirtied;
+    }
+
+    /** Add (key, rid) to the first page of the chain of bucket with room */
+    private void add(TransactionId tid, HashPage meta, int bucket, Field key, RecordId rid,
+            ArrayList<Page> dirtied) throws DbException, IOException, TransactionAbortedException {
+        HashPage p = getPage(tid, bucket + 1, Permissions.READ_WRITE);
+        while (p.isFull() && p.nextPage != -1)
+            p = getPage(tid, p.nextPage, Permissions.READ_WRITE);
+        if (p.isFull()) {
+            HashPage q = allocatePage(tid, meta, bucket, dirtied);
+            p.nextPage = q.getId().pageNumber();
+            markDirty(p, tid, dirtied);
+            p = q;
+        }
+        p.keys.add(key);
+        p.rids.add(rid);
+        markDirty(p, tid, dirtied);
+    }
+
+    /**
+     * Split the bucket at the split pointer:  add a bucket, advance the
+     * split pointer, and move the entries of the split bucket that the hash
+     * function of the next level sends to the new bucket.
+     */
+    private void split(TransactionId tid, HashPage meta, ArrayList<Page> dirtied)
+            throws DbException, IOException, TransactionAbortedException {
+        int s = meta.splitNext;
+        int nb = numBuckets(meta);
+        HashPage p = claimPage(tid, meta, nb + 1, dirtied);
+        p.type = HashPage.BUCKET;
+        p.bucket = nb;
+        p.nextPage = -1;
+        p.clear();
+        markDirty(p, tid, dirtied);
+
+        meta.splitNext++;
+        if (meta.splitNext == INITIAL_BUCKETS << meta.level) {
+            meta.level++;
+            meta.splitNext = 0;
+        }
+        markDirty(meta, tid, dirtied);
+
+        // empty the chain of the split bucket, then add its entries back
+        ArrayList<Field> keys = new ArrayList<Field>();
+        ArrayList<RecordId> rids = new ArrayList<RecordId>();
+        int pgNo = s + 1;
+        while (pgNo != -1) {
+            p = getPage(tid, pgNo, Permissions.READ_WRITE);
+            keys.addAll(p.keys);
+            rids.addAll(p.rids);
+            p.clear();
+            int next = p.nextPage;
+            if (pgNo == s + 1)
+                p.nextPage = -1;
+            else
+                free(tid, meta, p, dirtied);
+            markDirty(p, tid, dirtied);
+            pgNo = next;
+        }
+        for (int i = 0; i < keys.size(); i++)
+            add(tid, meta, bucketOf(meta, keys.get(i)), keys.get(i), rids.get(i), dirtied);
+    }
+
+    /**
+     * Make page pgNo, the page of a new bucket, available:  append it, take
+     * it off the free list, or move the overflow page it holds elsewhere.
+     *
+     * @return the page, whose content is to be replaced
+     */
+    private HashPage claimPage(TransactionId tid, HashPage meta, int pgNo, ArrayList<Page> dirtied)
+            throws DbException, IOException, TransactionAbortedException {
+        if (pgNo == numPages())
+            return getPage(tid, appendEmptyPage(), Permissions.READ_WRITE);
+
+        HashPage p = getPage(tid, pgNo, Permissions.READ_WRITE);
+        if (p.type == HashPage.FREE) {
+            if (meta.freeHead == pgNo) {
+                meta.freeHead = p.nextPage;
+                markDirty(meta, tid, dirtied);
+            } else {
+                HashPage prev = getPage(tid, meta.freeHead, Permissions.READ_WRITE);
+                while (prev.nextPage != pgNo)
+                    prev = getPage(tid, prev.nextPage, Permissions.READ_WRITE);
+                prev.nextPage = p.nextPage;
+                markDirty(prev, tid, dirtied);
+            }
+            return getPage(tid, pgNo, Permissions.READ_WRITE);
+        }
+
+        // an overflow page of another bucket:  copy it to a new page, and
+        // point its predecessor in the chain to the copy
+        HashPage q = allocatePage(tid, meta, p.bucket, dirtied);
+        p = getPage(tid, pgNo, Permissions.READ_WRITE);
+        q.keys.addAll(p.keys);
+        q.rids.addAll(p.rids);
+        q.nextPage = p.nextPage;
+        markDirty(q, tid, dirtied);
+        HashPage prev = getPage(tid, p.bucket + 1, Permissions.READ_WRITE);
+        while (prev.nextPage != pgNo)
+            prev = getPage(tid, prev.nextPage, Permissions.READ_WRITE);
+        prev.nextPage = q.getId().pageNumber();
+        markDirty(prev, tid, dirtied);
+        return getPage(tid, pgNo, Permissions.READ_WRITE);
+    }
+
+    /** @return an empty overflow page of bucket, from the free list if possible */
+    private HashPage allocatePage(TransactionId tid, HashPage meta, int bucket,
+            ArrayList<Page> dirtied) throws DbException, IOException, TransactionAbortedException {
+        HashPage q;
+        if (meta.freeHead != -1) {
+            q = getPage(tid, meta.freeHead, Permissions.READ_WRITE);
+            meta.freeHead = q.nextPage;
+            markDirty(meta, tid, dirtied);
+        } else {
+            q = getPage(tid, appendEmptyPage(), Permissions.READ_WRITE);
+        }
+        q.type = HashPage.BUCKET;
+        q.bucket = bucket;
+        q.nextPage = -1;
+        q.clear();
+        markDirty(q, tid, dirtied);
+        return q;
+    }
+
+    /** Put the empty overflow page p on the free list */
+    private void free(TransactionId tid, HashPage meta, HashPage p, ArrayList<Page> dirtied) {
+        p.type = HashPage.FREE;
+        p.nextPage = meta.freeHead;
+        meta.freeHead = p.getId().pageNumber();
+        markDirty(meta, tid, dirtied);
+    }
+
+    /**
+     * Mark p dirty, and put it back in the BufferPool right away:  the
+     * following reads of the operation may evict it, and must then see it
+     * as modified when they read it again.
+     */
+    private void markDirty(HashPage p, TransactionId tid, ArrayList<Page> dirtied) {
+        p.markDirty(true, tid);
+        Database.getBufferPool().cachePage(p);
+        if (!dirtied.contains(p))
+            dirtied.add(p);
+    }
+
+    /**
+     * Removes the entry of t, which must still hold the RecordId it had in
+     * the indexed table, from this index.
+     *
+     * @return the pages that were modified
+     * @throws DbException if t has no entry in this index
+     */
+    public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        Field key = t.getField(getKeyField());
+        RecordId rid = t.getRecordId();
+        HashPage meta = getPage(tid, 0, Permissions.READ_WRITE);
+        int pgNo = bucketOf(meta, key) + 1;
+        while (pgNo != -1) {
+            HashPage p = getPage(tid, pgNo, Permissions.READ_WRITE);
+            for (int i = 0; i < p.keys.size(); i++) {
+                if (p.keys.get(i).equals(key) && p.rids.get(i).equals(rid)) {
+                    p.keys.remove(i);
+                    p.rids.remove(i);
+                    ArrayList<Page> dirtied = new ArrayList<Page>();
+                    markDirty(p, tid, dirtied);
+                    meta.numEntries--;
+                    markDirty(meta, tid, dirtied);
+                    return dirtied;
+                }
+            }
+            pgNo = p.nextPage;
+        }
+        throw new DbException("tuple " + rid + " is not in the index");
+    }
+
+    /**
+     * Returns an iterator over the entries of this index, bucket by bucket.
+     * Each entry is described by {@link #getTupleDesc}.
+     */
+    public DbFileIterator iterator(TransactionId tid) {
+        return new LinearHashFileIterator(this, tid, null);
+    }
+
+    /** @return true for EQUALS only:  hashing doesn't preserve key order */
+    public boolean supports(Predicate.Op op) {
+        return op == Predicate.Op.EQUALS;
+    }
+
+    /**
+     * @return one page:  the meta page stays in the BufferPool, and splits
+     *   keep overflow chains short
+     */
+    public double estimateLookupPages() {
+        return 1;
+    }
+
+    /**
+     * Returns an iterator over the tuples of the indexed table whose key
+     * equals the operand of p, reading only the chain of its bucket.
+     *
+     * @param p an EQUALS predicate over the key field of the indexed table
+     * @throws IllegalArgumentException if p is not an EQUALS predicate over
+     *   the key field
+     */
+    public DbFileIterator indexIterator(TransactionId tid, Predicate p) {
+        if (p.getField() != getKeyField())
+            throw new IllegalArgumentException("predicate is not over the key field " + getKeyField());
+        if (!supports(p.getOp()))
+            throw new IllegalArgumentException("a hash index cannot serve " + p.getOp());
+        return new LinearHashFileIterator(this, tid, p.getOperand());
+    }
+
+}
+
+/**
+ * Iterator over a LinearHashFile, returning either every index entry or
+ * the tuples the entries of one key point to.
+ */
+class LinearHashFileIterator implements DbFileIterator {
+
+    private final LinearHashFile hf;
+    private final TransactionId tid;
+    private final Field key;
+
+    private HashPage page;
+    private int pos;
+    private int numPages;
+    private boolean done;
+    private Tuple next;
+
+    /**
+     * @param key the key to look up, or null to return every index entry
+     */
+    public LinearHashFileIterator(LinearHashFile hf, TransactionId tid, Field key) {
+        this.hf = hf;
+        this.tid = tid;
+        this.key = key;
+        this.done = true;
+    }
+
+    private HashPage getPage(int pgNo) throws DbException, TransactionAbortedException {
+        return (HashPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        HashPage meta = getPage(0);
+        numPages = hf.numPages();
+        page = getPage(key == null ? 1 : LinearHashFile.bucketOf(meta, key) + 1);
+        pos = 0;
+        done = false;
+        next = null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (next == null) next = readNext();
+        return next != null;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (next == null) {
+            next = readNext();
+            if (next == null) throw new NoSuchElementException();
+        }
+
+        Tuple result = next;
+        next = null;
+        return result;
+    }
+
+    private Tuple readNext() throws DbException, TransactionAbortedException {
+        while (!done) {
+            if (pos >= page.keys.size()) {
+                // a lookup follows the chain of its bucket, a scan reads
+                // every page (free pages are empty)
+                int pgNo = key != null ? page.nextPage : page.getId().pageNumber() + 1;
+                if (pgNo == -1 || pgNo >= numPages) {
+                    done = true;
+                    break;
+                }
+                page = getPage(pgNo);
+                pos = 0;
+                continue;
+            }
+
+            Field k = page.keys.get(pos);
+            RecordId rid = page.rids.get(pos);
+            pos++;
+            if (key == null)
+                return hf.entry(k, rid);
+            if (!k.equals(key))
+                continue;
+            Tuple t = AbstractIndexFile.fetchTuple(tid, rid);
+            if (t != null)
+                return t;
+        }
+        return null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    public void close() {
+        next = null;
+        page = null;
+        done = true;
+    }
+}
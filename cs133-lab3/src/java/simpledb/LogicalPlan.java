@@ -2,6 +2,7 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
@@ -75,6 +76,18 @@ public class LogicalPlan {
     public Integer getTableId(String alias) {
         return tableMap.get(alias);
     }
+
+    /** Given a table alias, return the fields of the table its scan reads once
+        {@link #physicalPlan} has pushed the filters and projections down.
+
+        @return the fields read, or null if the scan reads them all or there is
+        no scan of alias yet
+        @see SeqScan#getFieldsRead
+     */
+    int[] getFieldsRead(String alias) {
+        DbIterator subplan = subplanMap.get(alias);
+        return subplan instanceof SeqScan ? ((SeqScan) subplan).getFieldsRead() : null;
+    }
     
     public HashMap<String,Integer> getTableAliasToIdMapping()
     {
@@ -334,7 +347,13 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (subplan instanceof SeqScan) {
+                // evaluate the predicate inside the scan, before tuples are
+                // decoded, rather than in a Filter on top of it
+                ((SeqScan) subplan).addPredicate(p);
+            } else {
+                subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            }
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
@@ -344,6 +363,9 @@ public class LogicalPlan {
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
         
+        pushDownProjections();
+        chooseAccessPaths(t, statsMap, explain);
+
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
@@ -382,7 +404,7 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
             
             DbIterator j;
-            j = jo.instantiateJoin(lj,plan1,plan2);
+            j = jo.instantiateJoin(lj,plan1,plan2,statsMap,filterSelectivities);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -481,6 +503,102 @@ public class LogicalPlan {
         return new Project(outFields, outTypes, node);
     }
 
+    /** Replace each scan in subplanMap by an {@link IndexScan} when one of
+     *   its predicates is over an indexed field and reading the matching
+     *   tuples through the index is estimated to be cheaper than scanning
+     *   the table.  Among several usable indexes, the cheapest is chosen.
+     *  @see TableStats#estimateIndexScanCost
+     */
+    private void chooseAccessPaths(TransactionId t, Map<String,TableStats> statsMap, boolean explain) {
+        for (Map.Entry<String,DbIterator> e : subplanMap.entrySet()) {
+            if (!(e.getValue() instanceof SeqScan))
+                continue;
+            SeqScan ss = (SeqScan) e.getValue();
+            TableStats s = statsMap.get(ss.getTableName());
+            if (s == null)
+                continue;
+
+            double bestCost = s.estimateScanCost(ss.getFieldsRead());
+            IndexFile best = null;
+            Predicate bestPred = null;
+            for (Predicate p : ss.getPredicates()) {
+                IndexFile index = Database.getCatalog().getIndex(ss.getTableId(), p.getField(), p.getOp());
+                if (index == null)
+                    continue;
+                double sel = s.estimateSelectivity(p.getField(), p.getOp(), p.getOperand());
+                double cost = s.estimateIndexScanCost(index, sel);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = index;
+                    bestPred = p;
+                }
+            }
+            if (best == null)
+                continue;
+
+            // add the chosen predicate first, so that the scan serves it
+            // through the index
+            IndexScan is = new IndexScan(t, ss.getTableId(), ss.getAlias(), best);
+            is.addPredicate(bestPred);
+            for (Predicate p : ss.getPredicates())
+                if (p != bestPred)
+                    is.addPredicate(p);
+            if (ss.getProjection() != null)
+                is.setProjection(ss.getProjection());
+            e.setValue(is);
+            if (explain)
+                System.out.println("Using index on " + ss.getAlias() + "."
+                        + Database.getCatalog().getTupleDesc(ss.getTableId()).getFieldName(best.getKeyField()));
+        }
+    }
+
+    /** Restrict each scan in subplanMap to the fields of its table that the
+     *   rest of the plan references (select list, aggregate, group by, order
+     *   by and join fields), so that the other fields are never decoded.
+     *   Filter fields don't need to be kept, as filters are evaluated inside
+     *   the scan.  Does nothing if the select list contains a "*".
+     */
+    private void pushDownProjections() {
+        HashSet<String> needed = new HashSet<String>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*"))
+                return;
+            needed.add(si.fname);
+        }
+        if (aggField != null)
+            needed.add(aggField);
+        if (groupByField != null)
+            needed.add(groupByField);
+        if (oByField != null)
+            needed.add(oByField);
+        for (LogicalJoinNode lj : joins) {
+            needed.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                needed.add(lj.f2QuantifiedName);
+        }
+
+        for (DbIterator subplan : subplanMap.values()) {
+            if (!(subplan instanceof SeqScan))
+                continue;
+            SeqScan ss = (SeqScan) subplan;
+            TupleDesc td = ss.getTupleDesc();
+            ArrayList<Integer> fields = new ArrayList<Integer>();
+            for (int i = 0; i < td.numFields(); i++) {
+                if (needed.contains(td.getFieldName(i)))
+                    fields.add(i);
+            }
+            if (fields.size() == td.numFields())
+                continue;
+            if (fields.isEmpty())
+                fields.add(0); // the scan still has to return one tuple per row
+
+            int[] projection = new int[fields.size()];
+            for (int i = 0; i < projection.length; i++)
+                projection[i] = fields.get(i);
+            ss.setProjection(projection);
+        }
+    }
+
     public static void main(String argv[]) {
         // construct a 3-column table schema
         Type types[] = new Type[]{ Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE };
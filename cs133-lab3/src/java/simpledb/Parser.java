@@ -585,7 +585,7 @@ public class Parser {
 
     public static void main(String argv[]) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -595,7 +595,7 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-sample pages] [-f queryFile]";
 
     protected void shutdown() {
         System.out.println("Bye");
@@ -606,7 +606,6 @@ public class Parser {
     protected void start(String[] argv) throws IOException {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
-        TableStats.computeStatistics();
 
         String queryFile = null;
 
@@ -615,6 +614,13 @@ public class Parser {
                 if (argv[i].equals("-explain")) {
                     explain = true;
                     System.out.println("Explain mode enabled.");
+                } else if (argv[i].equals("-sample")) {
+                    if (++i == argv.length) {
+                        System.out.println("Expected number of pages after -sample\n"
+                                + usage);
+                        System.exit(0);
+                    }
+                    TableStats.setSamplePages(Integer.parseInt(argv[i]));
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
@@ -630,6 +636,8 @@ public class Parser {
                 }
             }
         }
+        TableStats.computeStatistics(new File(argv[0] + TableStats.STATS_SUFFIX));
+
         if (!interactive) {
             try {
                 // curtrans = new Transaction();
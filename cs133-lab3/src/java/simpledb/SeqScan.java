@@ -17,6 +17,9 @@ public class SeqScan implements DbIterator {
     private transient DbFileIterator it;
     private String tablename;
     private String alias;
+    private int tableid;
+    private ArrayList<Predicate> predicates = new ArrayList<Predicate>();
+    private int[] projection = null;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -75,24 +78,210 @@ public class SeqScan implements DbIterator {
         this.isOpen=false;
         this.alias = tableAlias;
         this.tablename = Database.getCatalog().getTableName(tableid);
+        this.tableid = tableid;
+        this.predicates.clear();
+        this.projection = null;
         this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
-        myTd = Database.getCatalog().getTupleDesc(tableid);
-        String[] newNames = new String[myTd.numFields()];
-        Type[] newTypes = new Type[myTd.numFields()];
-        for (int i = 0; i < myTd.numFields(); i++) {
-            String name = myTd.getFieldName(i);
-            Type t = myTd.getFieldType(i);
-
-            newNames[i] = tableAlias + "." + name;
+        myTd = makeTupleDesc();
+    }
+
+    /**
+     * @return the TupleDesc of the table (restricted to the projected fields,
+     *         if any) with field names prefixed by the table alias
+     */
+    private TupleDesc makeTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableid);
+        int n = projection == null ? td.numFields() : projection.length;
+        String[] newNames = new String[n];
+        Type[] newTypes = new Type[n];
+        for (int i = 0; i < n; i++) {
+            int field = projection == null ? i : projection[i];
+            String name = td.getFieldName(field);
+            Type t = td.getFieldType(field);
+
+            newNames[i] = alias + "." + name;
             newTypes[i] = t;
         }
-        myTd = new TupleDesc(newTypes, newNames);
+        return new TupleDesc(newTypes, newNames);
+    }
+
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableid;
+    }
+
+    /**
+     * @return the transaction this scan is running as a part of
+     */
+    protected TransactionId getTransactionId() {
+        return this.tid;
+    }
+
+    /**
+     * @return true if this scan is open
+     */
+    protected boolean isOpen() {
+        return isOpen;
     }
 
     public SeqScan(TransactionId tid, int tableid) {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Push a selection predicate down into this scan, so that only tuples
+     * satisfying it (and any predicate added before) are returned.  For
+     * tables stored in a HeapFile or a ColumnFile the predicates are checked
+     * against the page contents before tuples are decoded; otherwise tuples
+     * are filtered as they are read.  Must be called before the scan is opened.
+     *
+     * @param p
+     *            the predicate; its field index refers to the fields of the
+     *            table, regardless of any projection set on this scan
+     */
+    public void addPredicate(Predicate p) {
+        if (isOpen)
+            throw new IllegalStateException("cannot add a predicate to an open scan");
+        predicates.add(p);
+        makeIterator();
+    }
+
+    /**
+     * @return the predicates pushed down into this scan with
+     *         {@link #addPredicate}
+     */
+    public List<Predicate> getPredicates() {
+        return Collections.unmodifiableList(predicates);
+    }
+
+    /**
+     * Restrict the tuples returned by this scan to the given fields of the
+     * table, in the given order.  Fields that are not projected are never
+     * decoded from HeapFile pages, nor read from ColumnFiles.  Must be called before the scan is opened;
+     * getTupleDesc() reflects the projection.
+     *
+     * @param fields
+     *            indices of the fields of the table to return
+     */
+    public void setProjection(int[] fields) {
+        if (isOpen)
+            throw new IllegalStateException("cannot project an open scan");
+        projection = fields.clone();
+        myTd = makeTupleDesc();
+        makeIterator();
+    }
+
+    /**
+     * @return the fields of the table returned by this scan, or null if it
+     *         returns all of them
+     */
+    public int[] getProjection() {
+        return projection == null ? null : projection.clone();
+    }
+
+    /**
+     * @return the fields of the table this scan reads, those it returns and
+     *         those of its predicates, or null if it reads all of them
+     * @see TableStats#estimateScanCost(int[])
+     */
+    public int[] getFieldsRead() {
+        if (projection == null)
+            return null;
+        LinkedHashSet<Integer> fields = new LinkedHashSet<Integer>();
+        for (int f : projection)
+            fields.add(f);
+        for (Predicate p : predicates)
+            fields.add(p.getField());
+        int[] result = new int[fields.size()];
+        int i = 0;
+        for (int f : fields)
+            result[i++] = f;
+        return result;
+    }
+
+    /**
+     * Recreates the underlying file iterator so that it applies the current
+     * predicates and projection.
+     */
+    protected void makeIterator() {
+        Predicate[] preds = predicates.isEmpty() ? null
+                : predicates.toArray(new Predicate[0]);
+        it = createIterator(preds, projection);
+    }
+
+    /**
+     * Creates the iterator this scan reads the table through.  Subclasses
+     * override it to read the table through another access path.
+     *
+     * @param preds
+     *            the predicates the returned tuples must satisfy, or null
+     * @param fields
+     *            the fields of the table to return, or null for all of them
+     */
+    protected DbFileIterator createIterator(Predicate[] preds, int[] fields) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        if (f instanceof HeapFile)
+            return ((HeapFile) f).iterator(tid, preds, fields);
+        if (f instanceof ColumnFile)
+            return ((ColumnFile) f).iterator(tid, preds, fields);
+        return filter(f.iterator(tid), preds, fields);
+    }
+
+    /**
+     * @return an iterator over the tuples of child that satisfy all of preds
+     *         (if not null), restricted to the given fields (if not null) and
+     *         described by getTupleDesc()
+     */
+    protected DbFileIterator filter(final DbFileIterator child,
+            final Predicate[] preds, final int[] fields) {
+        return new DbFileIterator() {
+            private Tuple next = null;
+
+            public void open() throws DbException, TransactionAbortedException {
+                child.open();
+            }
+
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                outer: while (next == null && child.hasNext()) {
+                    Tuple t = child.next();
+                    if (preds != null)
+                        for (Predicate p : preds)
+                            if (!p.filter(t))
+                                continue outer;
+                    if (fields != null) {
+                        Tuple projected = new Tuple(myTd);
+                        projected.setRecordId(t.getRecordId());
+                        for (int i = 0; i < fields.length; i++)
+                            projected.setField(i, t.getField(fields[i]));
+                        t = projected;
+                    }
+                    next = t;
+                }
+                return next != null;
+            }
+
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Tuple t = next;
+                next = null;
+                return t;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                next = null;
+                child.rewind();
+            }
+
+            public void close() {
+                next = null;
+                child.close();
+            }
+        };
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         if (isOpen)
@@ -0,0 +1,287 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+
+/**
+ * A SlottedPage is a HeapPage that stores its tuples as variable-length
+ * records, so that a string field only takes the bytes of its value
+ * instead of Type.STRING_LEN of them.
+ * <p>
+ * The page starts with the number n of entries of its slot directory, as an
+ * unsigned short, followed by the n entries:  the offset in the page and the
+ * length of the record of each slot, as unsigned shorts, or two zeros for an
+ * empty slot.  The records are packed at the end of the page.  A record
+ * holds the fields of its tuple in order:  an integer takes 4 bytes, and a
+ * string the 4 bytes of its length followed by its characters.
+ * <p>
+ * A slot keeps its number as long as its tuple is on the page, so RecordIds
+ * stay valid;  the records themselves are packed again each time the page
+ * is written.
+ *
+ * @see HeapFile#isSlotted
+ */
+public class SlottedPage extends HeapPage {
+
+    /** Bytes used by the count of directory entries */
+    static final int HEADER_SIZE = 2;
+    /** Bytes used by each entry of the slot directory */
+    static final int SLOT_SIZE = 4;
+
+    /** number of entries of the slot directory */
+    private int dirSize;
+    /** offsets and lengths in data of the records that were not modified */
+    private final int offsets[];
+    private final int lengths[];
+    /** total length of the records of the used slots */
+    private int recordBytes;
+
+    /**
+     * Create a SlottedPage from a set of bytes of data read from disk.
+     *
+     * @see #getPageData
+     */
+    public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+        super(id, data, maxSlots(Database.getCatalog().getTupleDesc(id.getTableId()), data.length));
+        offsets = new int[numSlots];
+        lengths = new int[numSlots];
+
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        dirSize = dis.readUnsignedShort();
+        for (int i=0; i<dirSize; i++) {
+            offsets[i] = dis.readUnsignedShort();
+            lengths[i] = dis.readUnsignedShort();
+            if (offsets[i] != 0) {
+                markSlotUsed(i, true);
+                recordBytes += lengths[i];
+            }
+        }
+        dis.close();
+
+        setBeforeImage();
+    }
+
+    /** @return the size of the smallest record of a tuple with this TupleDesc */
+    static int minRecordSize(TupleDesc td) {
+        return td.numFields() * 4;
+    }
+
+    /**
+     * @return the number of tuples with the smallest records that fit on a
+     *   page of pageSize bytes, which is the number of slots of a page
+     */
+    static int maxSlots(TupleDesc td, int pageSize) {
+        return (pageSize - HEADER_SIZE) / (minRecordSize(td) + SLOT_SIZE);
+    }
+
+    /** @return the size of the record of t */
+    static int recordSize(Tuple t) {
+        int size = 0;
+        for (int j=0; j<t.getTupleDesc().numFields(); j++) {
+            Field f = t.getField(j);
+            size += f.getType() == Type.STRING_TYPE
+                ? 4 + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN) : 4;
+        }
+        return size;
+    }
+
+    /** @return the number of bytes of the page that are not used */
+    private int freeBytes() {
+        return data.length - HEADER_SIZE - dirSize * SLOT_SIZE - recordBytes;
+    }
+
+    /** @return the first slot that is not used, or numSlots if all are */
+    private int freeSlot() {
+        for (int i=0; i<numSlots; i++)
+            if (!isSlotUsed(i))
+                return i;
+        return numSlots;
+    }
+
+    public SlottedPage getBeforeImage() {
+        try {
+            return new SlottedPage(pid, oldData.clone());
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    /** @return a stream over the record of slot slotId, at field 0 */
+    private DataInputStream record(int slotId) {
+        return new DataInputStream(new ByteArrayInputStream(data, offsets[slotId], lengths[slotId]));
+    }
+
+    private static Field parse(Type type, DataInputStream dis) throws IOException {
+        if (type == Type.INT_TYPE)
+            return new IntField(dis.readInt());
+        byte bs[] = new byte[dis.readInt()];
+        dis.readFully(bs);
+        return new StringField(new String(bs), Type.STRING_LEN);
+    }
+
+    Tuple readTuple(int slotId) throws NoSuchElementException {
+        DataInputStream dis = record(slotId);
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, slotId));
+        try {
+            for (int j=0; j<td.numFields(); j++)
+                t.setField(j, parse(td.getFieldType(j), dis));
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+        return t;
+    }
+
+    Field readField(int slotId, int j) throws NoSuchElementException {
+        DataInputStream dis = record(slotId);
+        try {
+            for (int k=0; k<j; k++)
+                dis.skipBytes(td.getFieldType(k) == Type.INT_TYPE ? 4 : dis.readInt());
+            return parse(td.getFieldType(j), dis);
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Returns true if the tuple in slot slotId satisfies all of preds.  Only
+     * the compared fields of tuples that have not been decoded yet are
+     * decoded.
+     */
+    boolean matches(int slotId, Predicate[] preds) {
+        Tuple t = tuples[slotId];
+        for (int k=0; k<preds.length; k++) {
+            Predicate p = preds[k];
+            Field f = t != null ? t.getField(p.getField()) : readField(slotId, p.getField());
+            if (!f.compare(p.getOp(), p.getOperand()))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page, with
+     * the records of the used slots packed at the end of the page.  Passing
+     * it to the SlottedPage constructor produces an identical page.
+     */
+    public byte[] getPageData() {
+        byte[] page = new byte[data.length];
+        int end = page.length;
+        int[] newOffsets = new int[dirSize];
+        int[] newLengths = new int[dirSize];
+        try {
+            for (int i=0; i<dirSize; i++) {
+                if (!isSlotUsed(i))
+                    continue;
+                byte[] rec;
+                if (tuples[i] == null) {
+                    rec = Arrays.copyOfRange(data, offsets[i], offsets[i] + lengths[i]);
+                } else {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream(recordSize(tuples[i]));
+                    DataOutputStream dos = new DataOutputStream(baos);
+                    for (int j=0; j<td.numFields(); j++) {
+                        Field f = tuples[i].getField(j);
+                        if (f.getType() == Type.INT_TYPE) {
+                            f.serialize(dos);
+                        } else {
+                            String s = ((StringField) f).getValue();
+                            dos.writeInt(s.length());
+                            dos.writeBytes(s);
+                        }
+                    }
+                    dos.flush();
+                    rec = baos.toByteArray();
+                }
+                end -= rec.length;
+                System.arraycopy(rec, 0, page, end, rec.length);
+                newOffsets[i] = end;
+                newLengths[i] = rec.length;
+            }
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_SIZE + dirSize * SLOT_SIZE);
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeShort(dirSize);
+            for (int i=0; i<dirSize; i++) {
+                dos.writeShort(newOffsets[i]);
+                dos.writeShort(newLengths[i]);
+            }
+            dos.flush();
+            byte[] dir = baos.toByteArray();
+            System.arraycopy(dir, 0, page, 0, dir.length);
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return page;
+    }
+
+    /**
+     * Delete the specified tuple from the page.  Its slot can be reused by
+     * another tuple.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(pid) || rid.tupleno() >= dirSize
+                || !isSlotUsed(rid.tupleno()))
+            throw new DbException("The tuple you tried to delete doesn't exist.");
+        int i = rid.tupleno();
+        recordBytes -= tuples[i] != null ? recordSize(tuples[i]) : lengths[i];
+        tuples[i] = null;
+        lengths[i] = 0;
+        markSlotUsed(i, false);
+        while (dirSize > 0 && !isSlotUsed(dirSize - 1))
+            dirSize--;
+    }
+
+    /**
+     * Adds the specified tuple to the first empty slot of the page.
+     * @throws DbException if the record of the tuple doesn't fit
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!hasRoomFor(t))
+            throw new DbException("no room for the tuple on page " + pid.pageNumber());
+        int i = freeSlot();
+        if (i >= dirSize)
+            dirSize = i + 1;
+        tuples[i] = t;
+        recordBytes += recordSize(t);
+        markSlotUsed(i, true);
+        t.setRecordId(new RecordId(pid, i));
+    }
+
+    /**
+     * Returns true if the record of t fits in the free space of the page,
+     * with a new directory entry if no entry is free.
+     */
+    public boolean hasRoomFor(Tuple t) {
+        int i = freeSlot();
+        if (i >= numSlots)
+            return false;
+        return recordSize(t) + (i >= dirSize ? SLOT_SIZE : 0) <= freeBytes();
+    }
+
+    /**
+     * Returns the number of tuples with the smallest records that can still
+     * be added to the page.
+     */
+    public int getNumEmptySlots() {
+        int used = 0;
+        for (int i=0; i<dirSize; i++)
+            if (isSlotUsed(i))
+                used++;
+        int reusable = dirSize - used;
+        int free = freeBytes();
+        int min = minRecordSize(td);
+        if (free < reusable * min)
+            return free / min;
+        return Math.min(numSlots - used,
+                reusable + (free - reusable * min) / (min + SLOT_SIZE));
+    }
+}
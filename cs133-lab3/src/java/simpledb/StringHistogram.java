@@ -1,10 +1,15 @@
 package simpledb;
 
+import java.io.Serializable;
+
 /**
  * A class to represent a fixed-width histogram over a single String-based
  * field.
  */
-public class StringHistogram {
+public class StringHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
     final IntHistogram hist;
 
     /**
@@ -61,8 +66,24 @@ public class StringHistogram {
 
     /** Add a new value to thte histogram */
     public void addValue(String s) {
+        addValue(s, 1);
+    }
+
+    /** Add a new value that stands for weight values */
+    public void addValue(String s, double weight) {
+        int val = stringToInt(s);
+        hist.addValue(val, weight);
+    }
+
+    /** Remove a value previously added with addValue() */
+    public void removeValue(String s) {
+        removeValue(s, 1);
+    }
+
+    /** Remove a value previously added with addValue(String, double) */
+    public void removeValue(String s, double weight) {
         int val = stringToInt(s);
-        hist.addValue(val);
+        hist.removeValue(val, weight);
     }
 
     /**
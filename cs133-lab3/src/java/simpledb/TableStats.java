@@ -1,10 +1,21 @@
 package simpledb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -13,12 +24,58 @@ import java.util.concurrent.ConcurrentHashMap;
  * 
  * This class is not needed in implementing lab1 and lab2.
  */
-public class TableStats {
+public class TableStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private static final ConcurrentHashMap<String, TableStats> statsMap = new ConcurrentHashMap<String, TableStats>();
 
     static final int IOCOSTPERPAGE = 1000;
 
+    /** Suffix appended to the catalog file name to get its statistics file */
+    public static final String STATS_SUFFIX = ".stats";
+
+    /** Bumped whenever the layout of the statistics file changes */
+    static final int STATS_FILE_VERSION = 4;
+
+    /**
+     * Fraction of the analyzed tuples that may be inserted or deleted before
+     * the statistics of a table are recomputed in the background.
+     */
+    static final double STALE_FRACTION = 0.2;
+
+    /** Tables with few tuples are re-analyzed after this many changes */
+    static final int MIN_STALE_MODIFICATIONS = 1000;
+
+    /**
+     * Number of consecutive pages read per sampled block.  Sampling whole
+     * blocks instead of single pages keeps the sample reads sequential.
+     */
+    static final int SAMPLE_BLOCK_PAGES = 8;
+
+    /** z-value used for the 95% confidence bounds of sampled statistics */
+    static final double CONFIDENCE_Z = 1.96;
+
+    // pages to sample per table in computeStatistics; 0 means exact stats
+    private static int samplePages = 0;
+
+    /**
+     * Makes {@link #computeStatistics} build statistics from a sample of
+     * about numPages pages for every table larger than that, instead of
+     * scanning the whole table.
+     *
+     * @param numPages
+     *            the number of pages to sample, or 0 to compute exact
+     *            statistics
+     */
+    public static void setSamplePages(int numPages) {
+        samplePages = numPages;
+    }
+
+    public static int getSamplePages() {
+        return samplePages;
+    }
+
     public static TableStats getTableStats(String tablename) {
         return statsMap.get(tablename);
     }
@@ -55,12 +112,124 @@ public class TableStats {
         System.out.println("Computing table stats.");
         while (tableIt.hasNext()) {
             int tableid = tableIt.next();
-            TableStats s = new TableStats(tableid, IOCOSTPERPAGE);
+            TableStats s = new TableStats(tableid, IOCOSTPERPAGE, samplePages);
             setTableStats(Database.getCatalog().getTableName(tableid), s);
         }
         System.out.println("Done.");
     }
 
+    /**
+     * Called by the BufferPool after tuple t was inserted into table tableid.
+     * Updates the tuple count and histograms of the table's statistics, if
+     * any, and schedules a re-analyze once too many tuples have changed.
+     */
+    public static void tupleInserted(int tableid, Tuple t) {
+        TableStats s = getTableStats(Database.getCatalog().getTableName(tableid));
+        if (s != null && s.tableid == tableid)
+            s.addTuple(t, 1);
+    }
+
+    /**
+     * Called by the BufferPool after tuple t was deleted from table tableid.
+     * @see #tupleInserted
+     */
+    public static void tupleDeleted(int tableid, Tuple t) {
+        TableStats s = getTableStats(Database.getCatalog().getTableName(tableid));
+        if (s != null && s.tableid == tableid)
+            s.addTuple(t, -1);
+    }
+
+    /**
+     * Like {@link #computeStatistics()}, but reuses the statistics saved in
+     * statsFile by a previous run.  Only tables whose backing file changed
+     * since (see {@link #isStale}) or that have no saved statistics are
+     * scanned; the refreshed statistics are written back to statsFile.
+     *
+     * @param statsFile
+     *            the statistics file, usually the catalog file name followed
+     *            by {@link #STATS_SUFFIX}
+     */
+    public static void computeStatistics(File statsFile) {
+        Map<String, TableStats> saved = loadStatistics(statsFile);
+        Iterator<Integer> tableIt = Database.getCatalog().tableIdIterator();
+        int recomputed = 0;
+
+        System.out.println("Loading table stats.");
+        while (tableIt.hasNext()) {
+            int tableid = tableIt.next();
+            String name = Database.getCatalog().getTableName(tableid);
+            TableStats s = saved.get(name);
+            if (s == null || s.isStale(tableid)) {
+                s = new TableStats(tableid, IOCOSTPERPAGE, samplePages);
+                recomputed++;
+            }
+            setTableStats(name, s);
+        }
+        System.out.println("Done (" + recomputed + " table(s) recomputed).");
+
+        if (recomputed > 0 || saved.size() != statsMap.size()) {
+            saveStatistics(statsFile);
+        }
+    }
+
+    /**
+     * Reads the statistics written by {@link #saveStatistics}.
+     *
+     * @return a map from table name to statistics; empty if the file does not
+     *         exist or can't be read
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, TableStats> loadStatistics(File statsFile) {
+        HashMap<String, TableStats> saved = new HashMap<String, TableStats>();
+        if (!statsFile.exists()) {
+            return saved;
+        }
+
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(statsFile)));
+            if (ois.readInt() != STATS_FILE_VERSION) {
+                System.out.println("Ignoring out of date statistics file " + statsFile);
+                return saved;
+            }
+            saved.putAll((HashMap<String, TableStats>) ois.readObject());
+        } catch (IOException e) {
+            System.out.println("Unable to read statistics file " + statsFile + ": " + e);
+        } catch (ClassNotFoundException e) {
+            System.out.println("Unable to read statistics file " + statsFile + ": " + e);
+        } finally {
+            try {
+                if (ois != null)
+                    ois.close();
+            } catch (IOException ioe) {
+                // Ignore failures closing the file
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * Writes the statistics of every table in the stats map to statsFile, so
+     * that a later {@link #computeStatistics(File)} can skip unchanged tables.
+     */
+    public static void saveStatistics(File statsFile) {
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(statsFile)));
+            oos.writeInt(STATS_FILE_VERSION);
+            oos.writeObject(new HashMap<String, TableStats>(statsMap));
+        } catch (IOException e) {
+            System.out.println("Unable to write statistics file " + statsFile + ": " + e);
+        } finally {
+            try {
+                if (oos != null)
+                    oos.close();
+            } catch (IOException ioe) {
+                // Ignore failures closing the file
+            }
+        }
+    }
+
     /**
      * Number of bins for the histogram. Feel free to increase this value over
      * 100, though our tests assume that you have at least 100 bins in your
@@ -74,6 +243,34 @@ public class TableStats {
     private int numTuples;
     
     private TupleDesc desc;
+
+    // length and modification time of the table's file when the stats were
+    // computed; used to decide whether saved stats are still valid
+    private long fileLength;
+    private long fileModified;
+
+    // number of pages the stats were computed from (all pages unless sampled)
+    // and the standard error of the estimated number of tuples
+    private int pagesRead;
+    private double numTuplesStdError;
+
+    // tuple count when the stats were computed, and the number of tuples
+    // inserted or deleted since then
+    private int analyzedTuples;
+    private int modifications;
+    private transient volatile boolean reanalyzing = false;
+
+    // modifications when the last re-analyze started, and the statistics it
+    // is building, to which this object forwards the changes it is told of
+    private transient int reanalyzedAt;
+    private transient TableStats successor;
+
+    // while this object is being built by a re-analyze:  the last page of
+    // the table it read, the pages it samples (null unless sampled), and
+    // the forwarded changes to apply once it is done
+    private transient volatile int scanned = -1;
+    private transient boolean[] sampledPages;
+    private transient ArrayList<Change> pending;
     
     private Object[] histograms; //Since both histogram types inherit directly from object we'll need to cast them after taking them out
     /**
@@ -87,6 +284,25 @@ public class TableStats {
      *            sequential-scan IO and disk seeks.
      */
     public TableStats(int tableid, int ioCostPerPage) {
+        this(tableid, ioCostPerPage, 0);
+    }
+
+    /**
+     * Create a new TableStats object from a sample of the pages of a table.
+     * The sample is made of randomly chosen blocks of
+     * {@link #SAMPLE_BLOCK_PAGES} consecutive pages, and the tuple count is
+     * scaled up to the size of the table.  The histograms are built from the
+     * sampled tuples only.
+     * 
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param samplePages
+     *            The number of pages to sample; if 0, or if the table has no
+     *            more pages than this, the whole table is scanned.
+     */
+    public TableStats(int tableid, int ioCostPerPage, int samplePages) {
         // For this function, you'll have to get the
         // DbFile for the table in question,
         // then scan through its tuples and calculate
@@ -98,53 +314,141 @@ public class TableStats {
 	
         this.tableid = tableid;
         this.ioCostPerPage = ioCostPerPage;
-        
+        try {
+            analyzeTable(samplePages);
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Create empty statistics for the table of stale, which
+     * {@link #reanalyze} fills in with {@link #analyzeTable}.  Until then,
+     * the changes stale forwards are kept in pending.
+     */
+    private TableStats(TableStats stale) {
+        this.tableid = stale.tableid;
+        this.ioCostPerPage = stale.ioCostPerPage;
+        this.pending = new ArrayList<Change>();
+    }
+
+    /**
+     * Create a new TableStats object for a table that was just filled by the
+     * {@link BulkLoader}, from the tuples it kept while writing the table
+     * rather than from a new scan.
+     *
+     * @param tableid
+     *            The table over which to compute statistics
+     * @param ioCostPerPage
+     *            The cost per page of IO.
+     * @param numTuples
+     *            The number of tuples of the table
+     * @param sample
+     *            The tuples of the table, or a uniform sample of them;  the
+     *            histograms are built from it
+     */
+    TableStats(int tableid, int ioCostPerPage, int numTuples, DbIterator sample) {
+        this.tableid = tableid;
+        this.ioCostPerPage = ioCostPerPage;
+        this.fileLength = fileLength(tableid);
+        this.fileModified = fileModified(tableid);
+        this.pagesRead = numPages(Database.getCatalog().getDatabaseFile(tableid));
+        try {
+            analyze(sample);
+        } catch (DbException e) {
+            e.printStackTrace();
+        } catch (TransactionAbortedException e) {
+            e.printStackTrace();
+        }
+        this.numTuples = numTuples;
+        analyzedTuples = numTuples;
+    }
+
+    /**
+     * Computes the statistics of the table, from a sample of about
+     * samplePages of its pages if samplePages is not 0.
+     *
+     * @throws DbException if the table can't be read;  the statistics are
+     *   then incomplete
+     */
+    private void analyzeTable(int samplePages)
+            throws DbException, TransactionAbortedException {
+        this.fileLength = fileLength(tableid);
+        this.fileModified = fileModified(tableid);
+
         Transaction t = new Transaction(); 
         t.start(); 
-        SeqScan s = new SeqScan(t.getId(), tableid, "t"); 
+        try {
+            DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+            int numPages = numPages(file);
+            if (samplePages > 0 && numPages > samplePages && file instanceof HeapFile) {
+                int[] blockTuples = new int[(samplePages + SAMPLE_BLOCK_PAGES - 1) / SAMPLE_BLOCK_PAGES];
+                analyze(new TupleIterator(file.getTupleDesc(),
+                        sample(t.getId(), (HeapFile) file, blockTuples)));
+                scaleSample(blockTuples, numPages);
+            } else if (file instanceof HeapFile) {
+                createHistograms(new SeqScan(t.getId(), tableid, "t"));
+                fill(t.getId(), (HeapFile) file);
+                pagesRead = numPages;
+            } else {
+                analyze(new SeqScan(t.getId(), tableid, "t"));
+                pagesRead = numPages;
+            }
+        } finally {
+            scanned = Integer.MAX_VALUE;
+            try {
+                t.commit();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        analyzedTuples = numTuples;
+    }
+
+    /**
+     * Sets the TupleDesc, the tuple count and the histograms from the
+     * tuples of s, which is read twice:  once for the range of the integer
+     * fields, and once to fill the histograms.
+     */
+    private void analyze(DbIterator s) throws DbException, TransactionAbortedException {
+        createHistograms(s);
+        s.rewind();
+        numTuples = 0;
+        while (s.hasNext()) {
+            numTuples++;
+            addValues(s.next(), 1, 1);
+        }
+    }
+
+    /**
+     * Sets the TupleDesc, and creates empty histograms over the range of
+     * the values of the tuples of s.
+     */
+    private void createHistograms(DbIterator s) throws DbException, TransactionAbortedException {
         desc = s.getTupleDesc();
         Integer[] min;
         Integer[] max;
         min = new Integer[desc.numFields()];
         max = new Integer[desc.numFields()];
-        try {
-			s.open();
-		} catch (DbException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (TransactionAbortedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
+        s.open();
         
-        numTuples = 0;
         // Figure out the min and max values for each int field
-        try {
-			while(s.hasNext()) {
-				numTuples++;
-				Tuple tup = s.next();
-				for(int i = 0; i < desc.numFields(); ++i) {
-					if(desc.getFieldType(i).equals(Type.INT_TYPE)) {
-						int val = ((IntField)tup.getField(i)).getValue();
-						if(min[i] == null || val < min[i]) {
-							min[i] = val;
-						}
-						if(max[i] == null || val > max[i]) {
-							max[i] = val;
-						}
-					}
-				}
-			}
-		} catch (NoSuchElementException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (TransactionAbortedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (DbException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
+        while(s.hasNext()) {
+            Tuple tup = s.next();
+            for(int i = 0; i < desc.numFields(); ++i) {
+                if(desc.getFieldType(i).equals(Type.INT_TYPE)) {
+                    int val = ((IntField)tup.getField(i)).getValue();
+                    if(min[i] == null || val < min[i]) {
+                        min[i] = val;
+                    }
+                    if(max[i] == null || val > max[i]) {
+                        max[i] = val;
+                    }
+                }
+            }
+        }
         
         // Create the Histograms
         histograms = new Object[desc.numFields()];
@@ -156,49 +460,324 @@ public class TableStats {
         		histograms[i] = new StringHistogram(NUM_HIST_BINS);
         	}
         }
-        
-        //Populate the histograms
-        try {
-			s.rewind();
-		} catch (NoSuchElementException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (DbException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (TransactionAbortedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-        try {
-			while(s.hasNext()) {
-				Tuple tup = s.next();
-				for(int i = 0; i < desc.numFields(); ++i) {
-					//Handle int fields
-					if(desc.getFieldType(i).equals(Type.INT_TYPE)) {
-						IntHistogram hist = (IntHistogram)histograms[i];
-						hist.addValue(((IntField)tup.getField(i)).getValue());
-					} else {
-						StringHistogram hist = (StringHistogram)histograms[i];
-						hist.addValue(((StringField)tup.getField(i)).getValue());
-					}
-				}
-			}
-		} catch (TransactionAbortedException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		} catch (DbException e1) {
-			// TODO Auto-generated catch block
-			e1.printStackTrace();
-		}
-        try {
-			t.commit();
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-        
-        
+    }
+
+    /**
+     * Sets the tuple count and fills the histograms from the tuples of hf,
+     * read one page at a time.
+     */
+    private void fill(TransactionId tid, HeapFile hf)
+            throws DbException, TransactionAbortedException {
+        numTuples = 0;
+        ArrayList<Tuple> tuples;
+        for (int pgno = 0; (tuples = readPage(tid, hf, pgno)) != null; pgno++) {
+            numTuples += tuples.size();
+            for (Tuple tup : tuples)
+                addValues(tup, 1, 1);
+        }
+    }
+
+    /**
+     * Reads the tuples of page pgno of hf, and records it as read in
+     * scanned.  Inserts and deletes through the BufferPool hold it while
+     * they change a page and report the change, so a change is reported
+     * either before its page is read, and is seen by the read, or after it
+     * is recorded as read.
+     *
+     * @return the tuples of the page, or null if hf has no page pgno;  the
+     *   whole file is then recorded as read
+     */
+    private ArrayList<Tuple> readPage(TransactionId tid, HeapFile hf, int pgno)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        BufferPool bp = Database.getBufferPool();
+        synchronized (bp) {
+            if (pgno >= hf.numPages()) {
+                scanned = Integer.MAX_VALUE;
+                return null;
+            }
+            HeapPage p = (HeapPage) bp.getPage(tid,
+                    new HeapPageId(hf.getId(), pgno), Permissions.READ_ONLY);
+            Iterator<Tuple> it = p.iterator();
+            while (it.hasNext())
+                tuples.add(it.next());
+            scanned = pgno;
+        }
+        return tuples;
+    }
+
+    /**
+     * Reads the tuples of blockTuples.length randomly chosen blocks of
+     * {@link #SAMPLE_BLOCK_PAGES} pages of hf, in file order.
+     *
+     * @param blockTuples
+     *            filled in with the number of tuples found in each block
+     * @return the sampled tuples
+     */
+    private ArrayList<Tuple> sample(TransactionId tid, HeapFile hf, int[] blockTuples)
+            throws DbException, TransactionAbortedException {
+        int numPages = hf.numPages();
+        int numBlocks = (numPages + SAMPLE_BLOCK_PAGES - 1) / SAMPLE_BLOCK_PAGES;
+        int[] blocks = new int[Math.min(blockTuples.length, numBlocks)];
+
+        // Floyd's algorithm: pick blocks.length distinct blocks
+        HashMap<Integer, Boolean> chosen = new HashMap<Integer, Boolean>();
+        Random rand = new Random();
+        int n = 0;
+        for (int j = numBlocks - blocks.length; j < numBlocks; j++) {
+            int b = rand.nextInt(j + 1);
+            if (chosen.containsKey(b))
+                b = j;
+            chosen.put(b, true);
+            blocks[n++] = b;
+        }
+        Arrays.sort(blocks); // read the blocks sequentially
+        sampledPages = new boolean[numPages];
+        for (int i = 0; i < blocks.length; i++)
+            for (int pgno = blocks[i] * SAMPLE_BLOCK_PAGES;
+                    pgno < Math.min((blocks[i] + 1) * SAMPLE_BLOCK_PAGES, numPages); pgno++)
+                sampledPages[pgno] = true;
+
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+        pagesRead = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            int first = blocks[i] * SAMPLE_BLOCK_PAGES;
+            int last = Math.min(first + SAMPLE_BLOCK_PAGES, numPages);
+            for (int pgno = first; pgno < last; pgno++) {
+                ArrayList<Tuple> page = readPage(tid, hf, pgno);
+                tuples.addAll(page);
+                blockTuples[i] += page.size();
+                pagesRead++;
+            }
+        }
+        return tuples;
+    }
+
+    /**
+     * Scales the number of sampled tuples up to the whole table, and computes
+     * its standard error from the spread of the per-block tuple counts.
+     */
+    private void scaleSample(int[] blockTuples, int numPages) {
+        double blockPages = (double) pagesRead / blockTuples.length;
+        double numBlocks = numPages / blockPages;
+        double mean = (double) numTuples / blockTuples.length;
+
+        double var = 0;
+        for (int i = 0; i < blockTuples.length; i++) {
+            var += (blockTuples[i] - mean) * (blockTuples[i] - mean);
+        }
+        if (blockTuples.length > 1)
+            var /= blockTuples.length - 1;
+
+        // finite population correction: the error vanishes as the sample
+        // approaches the whole table
+        double fpc = Math.max(0, 1 - blockTuples.length / numBlocks);
+        numTuplesStdError = numBlocks * Math.sqrt(var / blockTuples.length * fpc);
+        numTuples = (int) Math.round(mean * numBlocks);
+    }
+
+    /**
+     * Adds (delta = 1) or removes (delta = -1) tuple t from the tuple count
+     * and the histograms, and starts a background re-analyze of the table if
+     * more than {@link #STALE_FRACTION} of it changed since it was analyzed.
+     * Histograms built from a sample count t with the weight of a sampled
+     * tuple, so that it changes them in proportion to the table.
+     */
+    synchronized void addTuple(Tuple t, int delta) {
+        if (successor != null)
+            successor.forward(t, delta);
+        double weight = histogramWeight();
+        numTuples = Math.max(0, numTuples + delta);
+        addValues(t, delta, weight);
+
+        modifications++;
+        if (!reanalyzing && modifications - reanalyzedAt > Math.max(MIN_STALE_MODIFICATIONS,
+                STALE_FRACTION * analyzedTuples)) {
+            reanalyzing = true;
+            reanalyze();
+        }
+    }
+
+    /**
+     * Adds (delta = 1) or removes (delta = -1) the values of tuple t to or
+     * from the histograms, as weight values each.
+     */
+    private void addValues(Tuple t, int delta, double weight) {
+        for (int i = 0; i < desc.numFields(); ++i) {
+            if (desc.getFieldType(i).equals(Type.INT_TYPE)) {
+                IntHistogram hist = (IntHistogram)histograms[i];
+                int val = ((IntField)t.getField(i)).getValue();
+                if (delta > 0)
+                    hist.addValue(val, weight);
+                else
+                    hist.removeValue(val, weight);
+            } else {
+                StringHistogram hist = (StringHistogram)histograms[i];
+                String val = ((StringField)t.getField(i)).getValue();
+                if (delta > 0)
+                    hist.addValue(val, weight);
+                else
+                    hist.removeValue(val, weight);
+            }
+        }
+    }
+
+    /**
+     * @return the number of values the histograms hold per tuple of the
+     *         table:  1 for exact statistics, the sampled fraction of the
+     *         table for sampled ones
+     */
+    private double histogramWeight() {
+        if (histograms.length == 0 || numTuples == 0)
+            return 1;
+        double count = histograms[0] instanceof IntHistogram
+            ? ((IntHistogram) histograms[0]).count()
+            : ((StringHistogram) histograms[0]).hist.count();
+        return count > 0 ? count / numTuples : 1;
+    }
+
+    /**
+     * @return the number of tuples inserted or deleted since these statistics
+     *         were computed
+     */
+    public int modifications() {
+        return modifications;
+    }
+
+    /**
+     * Recomputes the statistics of this table on a background thread, and
+     * installs them in the stats map in place of this object.  Changes made
+     * meanwhile are forwarded to the new statistics, which apply those the
+     * scan missed once it is done.  If the table can't be read, this object
+     * is kept, and tries again after as many changes.
+     */
+    private void reanalyze() {
+        final TableStats fresh = new TableStats(this);
+        successor = fresh;
+        reanalyzedAt = modifications;
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                boolean analyzed = false;
+                try {
+                    fresh.analyzeTable(samplePages);
+                    analyzed = true;
+                } catch (DbException e) {
+                    System.out.println("Unable to re-analyze table " + tableid + ": " + e);
+                } catch (TransactionAbortedException e) {
+                    System.out.println("Unable to re-analyze table " + tableid + ": " + e);
+                } finally {
+                    install(fresh, analyzed);
+                }
+            }
+        }, "reanalyze-" + tableid);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Replaces this object with fresh in the stats map if analyzed, after
+     * applying the changes fresh was forwarded; otherwise stops forwarding
+     * changes to it.
+     */
+    private synchronized void install(TableStats fresh, boolean analyzed) {
+        if (!analyzed) {
+            successor = null;
+            reanalyzing = false;
+            return;
+        }
+        fresh.applyPending();
+        String name = Database.getCatalog().getTableName(tableid);
+        if (name != null)
+            statsMap.replace(name, this, fresh);
+    }
+
+    /**
+     * Called by the statistics this object replaces for each tuple they
+     * add or remove.  Until the analysis is done, the change is kept unless
+     * the analysis has yet to read the page of t, and will see it there.
+     */
+    private synchronized void forward(Tuple t, int delta) {
+        if (pending == null)
+            addTuple(t, delta);
+        else if (!willRead(t))
+            pending.add(new Change(t, delta));
+    }
+
+    /**
+     * @return true if the analysis of this table has not read the page of
+     *   t yet and will read it;  tables not stored in a HeapFile are taken
+     *   to be read as a whole once the analysis ends
+     */
+    private boolean willRead(Tuple t) {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            return rid != null && scanned < Integer.MAX_VALUE;
+        int pgno = rid.getPageId().pageNumber();
+        return pgno > scanned && (sampledPages == null
+                || pgno < sampledPages.length && sampledPages[pgno]);
+    }
+
+    /** Applies the changes kept by {@link #forward} once the analysis is done */
+    private synchronized void applyPending() {
+        ArrayList<Change> changes = pending;
+        pending = null;
+        for (Change c : changes)
+            addTuple(c.t, c.delta);
+    }
+
+    /** A tuple added (delta = 1) or removed (delta = -1) from a table */
+    private static class Change {
+        final Tuple t;
+        final int delta;
+
+        Change(Tuple t, int delta) {
+            this.t = t;
+            this.delta = delta;
+        }
+    }
+
+    /**
+     * Returns true if these statistics no longer describe table tableid,
+     * i.e. if the table's file was written to (or replaced) after they were
+     * computed.  Tables that are not stored in a HeapFile or a ColumnFile
+     * are always stale.
+     */
+    public boolean isStale(int tableid) {
+        return tableid != this.tableid
+            || fileLength(tableid) != fileLength
+            || fileModified(tableid) != fileModified
+            || fileLength < 0;
+    }
+
+    private static long fileLength(int tableid) {
+        File f = getFile(Database.getCatalog().getDatabaseFile(tableid));
+        return f == null ? -1 : f.length();
+    }
+
+    private static long fileModified(int tableid) {
+        File f = getFile(Database.getCatalog().getDatabaseFile(tableid));
+        return f == null ? -1 : f.lastModified();
+    }
+
+    /**
+     * @return the file of a HeapFile, or the file of a ColumnFile that
+     *   records its rows, or null for other DbFiles
+     */
+    private static File getFile(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).getFile();
+        if (file instanceof ColumnFile)
+            return ((ColumnFile) file).getFile();
+        return null;
+    }
+
+    /** @return the number of pages a scan of the whole file reads */
+    private static int numPages(DbFile file) {
+        if (file instanceof HeapFile)
+            return ((HeapFile) file).numPages();
+        if (file instanceof ColumnFile)
+            return ((ColumnFile) file).numPages();
+        return 0;
     }
 
     /**
@@ -211,12 +790,61 @@ public class TableStats {
      * expensive to read as a full page. (Most real hard drives can't
      * efficiently address regions smaller than a page at a time.)
      * 
+     * For a ColumnFile this is the cost of reading every column; see
+     * {@link #estimateScanCost(int[])} for a scan of some of them.
+     * 
      * @return The estimated cost of scanning the table.
      */
     public double estimateScanCost() {
         //Returns the number of pages times the cost per page
-    	HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
-        return file.numPages()*ioCostPerPage;
+        return numPages(Database.getCatalog().getDatabaseFile(tableid))*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of sequentially scanning the file for the specified
+     * fields only, like {@link #estimateScanCost()}.  A scan of a ColumnFile
+     * reads the pages of those columns and of the file recording which rows
+     * hold a tuple; a scan of a HeapFile reads every page whatever the fields.
+     * 
+     * @param fields
+     *            the fields read by the scan, or null for all of them
+     * @return The estimated cost of scanning those fields of the table.
+     * @see SeqScan#getFieldsRead
+     */
+    public double estimateScanCost(int[] fields) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (fields == null || !(file instanceof ColumnFile))
+            return estimateScanCost();
+        ColumnFile cf = (ColumnFile) file;
+        boolean[] read = new boolean[cf.getTupleDesc().numFields()];
+        int pages = cf.numPages(-1);
+        for (int f : fields) {
+            if (!read[f])
+                pages += cf.numPages(f);
+            read[f] = true;
+        }
+        return pages*ioCostPerPage;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate with
+     * the given selectivity through an index of this table.  The pages of
+     * one lookup are read, then the matching fraction of the index pages,
+     * and as the index is not clustered each match may be on a different
+     * page of the table, up to the number of pages of the table.
+     *
+     * @param index
+     *            an index of this table
+     * @param selectivity
+     *            The selectivity of the predicate served by the index
+     * @return The estimated cost of the index scan
+     * @see #estimateScanCost
+     */
+    public double estimateIndexScanCost(IndexFile index, double selectivity) {
+        int indexPages = Math.max(1, index.numPages());
+        double heapPages = Math.min(selectivity * numTuples,
+                numPages(Database.getCatalog().getDatabaseFile(tableid)));
+        return (index.estimateLookupPages() + selectivity * indexPages + heapPages) * ioCostPerPage;
     }
 
     /**
@@ -280,4 +908,36 @@ public class TableStats {
         return numTuples;
     }
 
+    /**
+     * @return true if these statistics were computed from a sample of the
+     *         table rather than a full scan
+     */
+    public boolean isSampled() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        return pagesRead < numPages(file);
+    }
+
+    /**
+     * @return the number of pages read to compute these statistics
+     */
+    public int pagesRead() {
+        return pagesRead;
+    }
+
+    /**
+     * Returns 95% confidence bounds on the number of tuples in the table
+     * after applying a predicate with the given selectivity.  For exact
+     * statistics both bounds equal {@link #estimateTableCardinality}.
+     *
+     * @param selectivityFactor
+     *            The selectivity of any predicates over the table
+     * @return a two-element array holding the lower and upper bound
+     */
+    public int[] estimateTableCardinalityBounds(double selectivityFactor) {
+        double halfWidth = CONFIDENCE_Z * numTuplesStdError * selectivityFactor;
+        int est = estimateTableCardinality(selectivityFactor);
+        return new int[] { (int) Math.max(0, Math.floor(est - halfWidth)),
+                (int) Math.ceil(est + halfWidth) };
+    }
+
 }
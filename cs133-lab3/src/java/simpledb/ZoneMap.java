@@ -0,0 +1,135 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * A ZoneMap records, for each page of a HeapFile, the smallest and largest
+ * value of each field among the tuples of the page.  A scan with predicates
+ * skips the pages whose range of values can't satisfy them without reading
+ * them, which turns a range scan of a table sorted (or roughly sorted) on
+ * the predicate field into a partial scan.
+ * <p>
+ * The ranges are kept in memory and filled in lazily, one field of one page
+ * at a time, the first time a scan with a predicate on that field reads the
+ * page.  Inserts through {@link HeapFile#insertTuple} widen the ranges they
+ * fall out of; deletes leave them as they are, so a recorded range always
+ * contains the values of its page, but may be wider than needed.
+ *
+ * @see HeapFile#iterator(TransactionId, Predicate[], int[])
+ */
+public class ZoneMap {
+
+    private final int numFields;
+    private final ArrayList<Field[]> mins = new ArrayList<Field[]>();
+    private final ArrayList<Field[]> maxs = new ArrayList<Field[]>();
+    private final ArrayList<boolean[]> known = new ArrayList<boolean[]>();
+
+    /**
+     * Create an empty zone map.
+     * @param td the TupleDesc of the tuples of the file
+     */
+    public ZoneMap(TupleDesc td) {
+        this.numFields = td.numFields();
+    }
+
+    private void ensurePage(int pgNo) {
+        while (known.size() <= pgNo) {
+            mins.add(new Field[numFields]);
+            maxs.add(new Field[numFields]);
+            known.add(new boolean[numFields]);
+        }
+    }
+
+    /** @return true if the range of field on page pgNo has been recorded */
+    public synchronized boolean isKnown(int pgNo, int field) {
+        return pgNo < known.size() && known.get(pgNo)[field];
+    }
+
+    /**
+     * @return the smallest recorded value of field on page pgNo, or null if
+     *   the page is empty or the range is not known
+     */
+    public synchronized Field getMin(int pgNo, int field) {
+        return pgNo < mins.size() ? mins.get(pgNo)[field] : null;
+    }
+
+    /**
+     * @return the largest recorded value of field on page pgNo, or null if
+     *   the page is empty or the range is not known
+     */
+    public synchronized Field getMax(int pgNo, int field) {
+        return pgNo < maxs.size() ? maxs.get(pgNo)[field] : null;
+    }
+
+    /** Record the range of field among the tuples of p */
+    public synchronized void record(HeapPage p, int field) {
+        int pgNo = p.getId().pageNumber();
+        ensurePage(pgNo);
+        Field[] range = p.range(field);
+        mins.get(pgNo)[field] = range[0];
+        maxs.get(pgNo)[field] = range[1];
+        known.get(pgNo)[field] = true;
+    }
+
+    /** Widen the known ranges of page pgNo to hold t, just added to it */
+    public synchronized void add(int pgNo, Tuple t) {
+        if (pgNo >= known.size())
+            return;
+        for (int j=0; j<numFields; j++) {
+            if (!known.get(pgNo)[j])
+                continue;
+            Field f = t.getField(j);
+            Field min = mins.get(pgNo)[j], max = maxs.get(pgNo)[j];
+            if (min == null || f.compare(Predicate.Op.LESS_THAN, min))
+                mins.get(pgNo)[j] = f;
+            if (max == null || f.compare(Predicate.Op.GREATER_THAN, max))
+                maxs.get(pgNo)[j] = f;
+        }
+    }
+
+    /**
+     * @return false if the known ranges of page pgNo show that none of its
+     *   tuples satisfies all of preds;  true if some might, or if the
+     *   ranges are not known.  Only EQUALS and the range operators are
+     *   checked.
+     */
+    public synchronized boolean mayMatch(int pgNo, Predicate[] preds) {
+        if (pgNo >= known.size())
+            return true;
+        for (Predicate p : preds) {
+            int j = p.getField();
+            if (!known.get(pgNo)[j])
+                continue;
+            Field min = mins.get(pgNo)[j], max = maxs.get(pgNo)[j];
+            if (min == null)
+                return false;  // no tuples on the page
+            Field v = p.getOperand();
+            switch (p.getOp()) {
+            case EQUALS:
+                if (min.compare(Predicate.Op.GREATER_THAN, v) || max.compare(Predicate.Op.LESS_THAN, v))
+                    return false;
+                break;
+            case LESS_THAN:
+            case LESS_THAN_OR_EQ:
+                if (!min.compare(p.getOp(), v))
+                    return false;
+                break;
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQ:
+                if (!max.compare(p.getOp(), v))
+                    return false;
+                break;
+            default:
+                break;
+            }
+        }
+        return true;
+    }
+
+    /** Forget every recorded range */
+    public synchronized void clear() {
+        mins.clear();
+        maxs.clear();
+        known.clear();
+    }
+}
@@ -0,0 +1,194 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BTreeFileTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "name" });
+
+    private TransactionId tid;
+    private HeapFile table;
+
+    @Before public void createTable() throws Exception {
+        table = SystemTestUtil.createEmptyHeapFile("t", TD);
+        tid = new TransactionId();
+    }
+
+    private BTreeFile createIndex(int field) throws Exception {
+        File f = SystemTestUtil.createTempFile("btree", ".btree");
+        f.delete();
+        BTreeFile index = new BTreeFile(f, table.getId(), field, TD);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    private static String name(int i) {
+        return "name" + (i * 7919 % 10007);
+    }
+
+    private Tuple insert(int id) throws Exception {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name(id), Type.STRING_LEN));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        return t;
+    }
+
+    /**
+     * Unit test for BTreeFile.insertTuple():  the entries come back in key
+     * order once the tree has split into several levels.
+     */
+    @Test public void insertSplits() throws Exception {
+        BTreeFile index = createIndex(1);
+        for (int i = 0; i < 2000; i++)
+            insert(i);
+
+        // string keys fit about 30 to a page, so the tree has three levels
+        BTreePage root = (BTreePage) Database.getBufferPool().getPage(tid,
+                new BTreePageId(index.getId(), 0), Permissions.READ_ONLY);
+        assertFalse(root.leaf);
+        BTreePage child = (BTreePage) Database.getBufferPool().getPage(tid,
+                new BTreePageId(index.getId(), root.children.get(0)), Permissions.READ_ONLY);
+        assertFalse(child.leaf);
+
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        String last = "";
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple e = it.next();
+            String key = ((StringField) e.getField(0)).getValue();
+            assertTrue(last.compareTo(key) <= 0);
+            last = key;
+            count++;
+        }
+        it.close();
+        assertEquals(2000, count);
+    }
+
+    /**
+     * Unit test for BTreeFile.indexIterator() with point and range
+     * predicates, including duplicate keys.
+     */
+    @Test public void lookups() throws Exception {
+        BTreeFile index = createIndex(0);
+        for (int i = 0; i < 3000; i++)
+            insert(i % 1000);
+
+        assertEquals(Arrays.asList(42, 42, 42), SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(42))), 0));
+        assertEquals(0, SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(1000))), 0).size());
+
+        List<Integer> gt = SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(989))), 0);
+        assertEquals(30, gt.size());
+        assertEquals(990, (int) gt.get(0));
+        assertEquals(999, (int) gt.get(29));
+
+        assertEquals(33, SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(989))), 0).size());
+        assertEquals(30, SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10))), 0).size());
+        assertEquals(33, SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.LESS_THAN_OR_EQ, new IntField(10))), 0).size());
+        assertEquals(2997, SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(10))), 0).size());
+
+        // the returned tuples are the tuples of the table
+        DbFileIterator it = index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(7)));
+        it.open();
+        Tuple t = it.next();
+        assertEquals(name(7), ((StringField) t.getField(1)).getValue());
+        assertEquals(table.getId(), t.getRecordId().getPageId().getTableId());
+        it.close();
+    }
+
+    /**
+     * Unit test for BTreeFile.deleteTuple(), through BufferPool.deleteTuple()
+     */
+    @Test public void delete() throws Exception {
+        BTreeFile index = createIndex(0);
+        for (int i = 0; i < 1000; i++)
+            insert(i);
+
+        DbFileIterator it = index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500)));
+        List<Tuple> victims = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            victims.add(it.next());
+        it.close();
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+
+        assertEquals(0, SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500))), 0).size());
+        assertEquals(500, SystemTestUtil.readInts(index.iterator(tid), 0).size());
+        assertEquals(Arrays.asList(500), SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(500))), 0));
+
+        try {
+            index.deleteTuple(tid, victims.get(0));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for a btree annotation in the catalog file:  the index is
+     * built from the existing contents of the table.
+     */
+    @Test public void catalogIndex() throws Exception {
+        File dir = File.createTempFile("btree", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        HeapFile hf = new HeapFile(new File(dir, "s.dat"), TD);
+        Database.getCatalog().addTable(hf, "s");
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(name(i), Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        File catalog = new File(dir, "catalog.txt");
+        FileWriter w = new FileWriter(catalog);
+        w.write("s (id int pk btree, name string)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        new File(dir, "s.id.btree").deleteOnExit();
+        new File(dir, "s.dat").deleteOnExit();
+        catalog.deleteOnExit();
+
+        int tableId = Database.getCatalog().getTableId("s");
+        assertEquals("id", Database.getCatalog().getPrimaryKey(tableId));
+        IndexFile index = Database.getCatalog().getIndex(tableId, 0);
+        assertTrue(index instanceof BTreeFile);
+        assertNull(Database.getCatalog().getIndex(tableId, 1));
+        assertEquals(600, SystemTestUtil.readInts(index.iterator(tid), 0).size());
+        assertEquals(Arrays.asList(123), SystemTestUtil.readInts(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(123))), 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeFileTest.class);
+    }
+}
@@ -0,0 +1,182 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BulkLoaderTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "name", "price" });
+
+    private TransactionId tid;
+    private HeapFile table;
+
+    @Before public void createTable() throws Exception {
+        table = SystemTestUtil.createEmptyHeapFile("load", TD);
+        tid = new TransactionId();
+    }
+
+    /** @return a file with lines from to to - 1, separated by separator */
+    private static File writeLines(int from, int to, char separator) throws Exception {
+        File f = SystemTestUtil.createTempFile("load", ".txt");
+        FileWriter w = new FileWriter(f);
+        for (int i = from; i < to; i++) {
+            w.write(i + "" + separator + " item" + i + separator + (i % 100) + "\n");
+            if (i % 1000 == 0)
+                w.write("\n");
+        }
+        w.close();
+        return f;
+    }
+
+    private LinearHashFile createIndex() throws Exception {
+        File f = SystemTestUtil.createTempFile("load", ".hash");
+        f.delete();
+        LinearHashFile index = new LinearHashFile(f, table.getId(), 0, TD);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    /**
+     * Unit test for BulkLoader.load():  the loaded tuples are read back in
+     * order from packed pages, found through the index of the table, and
+     * described by the statistics of the table.
+     */
+    @Test public void loadIndexAndStats() throws Exception {
+        LinearHashFile index = createIndex();
+
+        assertEquals(5000, BulkLoader.load(table.getId(), writeLines(0, 5000, ',')));
+        assertFalse(TableStats.getTableStats("load").isStale(table.getId()));
+        int perPage = (BufferPool.getPageSize() * 8) / (TD.getSize() * 8 + 1);
+        assertEquals((5000 + perPage - 1) / perPage, table.numPages());
+
+        List<Tuple> tuples = SystemTestUtil.readTuples(table.iterator(tid));
+        assertEquals(5000, tuples.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(new IntField(i), tuples.get(i).getField(0));
+            assertEquals(new StringField("item" + i, Type.STRING_LEN), tuples.get(i).getField(1));
+        }
+
+        List<Tuple> found = SystemTestUtil.readTuples(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(4321))));
+        assertEquals(1, found.size());
+        assertEquals(new IntField(21), found.get(0).getField(2));
+
+        TableStats stats = TableStats.getTableStats("load");
+        assertEquals(5000, stats.totalTuples());
+        assertFalse(stats.isSampled());
+        assertEquals(0.1, stats.estimateSelectivity(2, Predicate.Op.LESS_THAN, new IntField(10)), 0.02);
+
+        // a second load appends, and updates the statistics
+        assertEquals(100, BulkLoader.load(table.getId(), writeLines(5000, 5100, '|'),
+                new BulkLoader.SeparatedValuesParser('|')));
+        assertEquals(5100, SystemTestUtil.readTuples(table.iterator(tid)).size());
+        assertEquals(5100, TableStats.getTableStats("load").totalTuples());
+    }
+
+    /**
+     * Unit test for BulkLoader.load():  a malformed line is reported with
+     * its line number.
+     */
+    @Test public void malformedLine() throws Exception {
+        File f = SystemTestUtil.createTempFile("load", ".txt");
+        FileWriter w = new FileWriter(f);
+        w.write("1,a,2\n2,b\n");
+        w.close();
+        try {
+            BulkLoader.load(table.getId(), f);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("line 2 "));
+        }
+    }
+
+    /**
+     * Unit test for BulkLoader.load():  the lines before a malformed one
+     * are loaded, including those of the last page it was filling, and
+     * every index entry points to a loaded tuple.
+     */
+    @Test public void malformedLineLoadsLinesBefore() throws Exception {
+        LinearHashFile index = createIndex();
+        File f = SystemTestUtil.createTempFile("load", ".txt");
+        FileWriter w = new FileWriter(f);
+        for (int i = 0; i < 1000; i++)
+            w.write(i + ",item" + i + "," + (i % 100) + "\n");
+        w.write("1000,item1000\n1001,item1001,1\n");
+        w.close();
+        try {
+            BulkLoader.load(table.getId(), f);
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().startsWith("line 1001 "));
+        }
+
+        assertEquals(1000, SystemTestUtil.readTuples(table.iterator(tid)).size());
+        List<Tuple> entries = SystemTestUtil.readTuples(index.iterator(tid));
+        assertEquals(1000, entries.size());
+        for (Tuple e : entries) {
+            RecordId rid = new RecordId(new HeapPageId(table.getId(),
+                    ((IntField) e.getField(1)).getValue()), ((IntField) e.getField(2)).getValue());
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+                    Permissions.READ_ONLY);
+            assertEquals(e.getField(0), p.getTuple(rid.tupleno()).getField(0));
+        }
+        assertEquals(1000, TableStats.getTableStats("load").totalTuples());
+    }
+
+    /**
+     * Unit test for BulkLoader.load():  the tuples of a clustered table
+     * are placed on the pages of their cluster keys, not appended in input
+     * order.
+     */
+    @Test public void loadClustered() throws Exception {
+        HeapFile clustered = SystemTestUtil.createEmptyHeapFile("clustered", TD, 0);
+        int perPage = (BufferPool.getPageSize() * 8) / (TD.getSize() * 8 + 1);
+        for (int i = 0; i < 2 * perPage; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField("item", Type.STRING_LEN));
+            t.setField(2, new IntField(0));
+            Database.getBufferPool().insertTuple(tid, clustered.getId(), t);
+        }
+        assertEquals(2, clustered.numPages());
+        // leave only the smallest key of each page
+        for (Tuple u : SystemTestUtil.readTuples(clustered.iterator(tid))) {
+            int key = ((IntField) u.getField(0)).getValue();
+            if (key % perPage != 0)
+                Database.getBufferPool().deleteTuple(tid, u);
+        }
+
+        File f = SystemTestUtil.createTempFile("load", ".txt");
+        FileWriter w = new FileWriter(f);
+        for (int i = 1; i < 10; i++)
+            w.write((perPage + i) + ",item,0\n" + i + ",item,0\n");
+        w.close();
+        assertEquals(18, BulkLoader.load(clustered.getId(), f));
+
+        assertEquals(2, clustered.numPages());
+        List<Tuple> tuples = SystemTestUtil.readTuples(clustered.iterator(tid));
+        assertEquals(20, tuples.size());
+        for (Tuple u : tuples) {
+            int key = ((IntField) u.getField(0)).getValue();
+            assertEquals(key / perPage, u.getRecordId().getPageId().pageNumber());
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BulkLoaderTest.class);
+    }
+}
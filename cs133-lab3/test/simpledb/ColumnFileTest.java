@@ -0,0 +1,151 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ColumnFileTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "name", "price" });
+
+    private TransactionId tid;
+    private ColumnFile cf;
+
+    @Before public void createTable() throws Exception {
+        tid = new TransactionId();
+        cf = SystemTestUtil.createEmptyColumnFile("columns", TD);
+    }
+
+    private static Tuple tuple(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("item" + i, Type.STRING_LEN));
+        t.setField(2, new IntField(i % 100));
+        return t;
+    }
+
+    private void insert(int n) throws Exception {
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(tid, cf.getId(), tuple(i));
+    }
+
+    /**
+     * Unit test for ColumnFile.iterator():  the tuples come back in
+     * insertion order, after the pages are written and read back.
+     */
+    @Test public void insertAndScan() throws Exception {
+        insert(1000);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(1, cf.numPages(-1));
+        assertEquals(1000 / ColumnPage.capacity(Type.STRING_TYPE) + 1, cf.numPages(1));
+
+        List<Tuple> tuples = SystemTestUtil.readTuples(cf.iterator(tid));
+        assertEquals(1000, tuples.size());
+        for (int i = 0; i < 1000; i++)
+            assertEquals(tuple(i).toString(), tuples.get(i).toString());
+    }
+
+    /**
+     * Unit test for ColumnFile.iterator(tid, preds, fields):  a projected
+     * scan only reads the files of the fields it needs, so it still works
+     * once the file of another field is gone.
+     */
+    @Test public void projectionReadsOnlyItsColumns() throws Exception {
+        insert(1000);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertTrue(cf.getFile(1).delete());
+
+        Predicate[] preds = new Predicate[] {
+            new Predicate(2, Predicate.Op.LESS_THAN, new IntField(10)) };
+        List<Tuple> tuples = SystemTestUtil.readTuples(cf.iterator(tid, preds, new int[] { 2, 0 }));
+        assertEquals(100, tuples.size());
+        for (Tuple t : tuples) {
+            assertEquals(2, t.getTupleDesc().numFields());
+            assertEquals("price", t.getTupleDesc().getFieldName(0));
+            int id = ((IntField) t.getField(1)).getValue();
+            assertEquals(new IntField(id % 100), t.getField(0));
+            assertTrue(id % 100 < 10);
+        }
+
+        // the same through a scan with a pushed-down projection
+        SeqScan ss = new SeqScan(tid, cf.getId(), "c");
+        ss.setProjection(new int[] { 0 });
+        ss.addPredicate(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(990)));
+        ss.open();
+        int n = 0;
+        while (ss.hasNext()) {
+            assertEquals(new IntField(990 + n), ss.next().getField(0));
+            n++;
+        }
+        ss.close();
+        assertEquals(10, n);
+    }
+
+    /**
+     * Unit test for TableStats.estimateScanCost(fields):  a scan of a
+     * ColumnFile is charged for the columns it reads only.
+     */
+    @Test public void scanCostOfColumnsRead() throws Exception {
+        insert(1000);
+        Database.getBufferPool().flushAllPages();
+        TableStats s = new TableStats(cf.getId(), 1000);
+        assertEquals(cf.numPages() * 1000, s.estimateScanCost(), 0.0);
+        assertEquals(s.estimateScanCost(), s.estimateScanCost(null), 0.0);
+        assertEquals((cf.numPages(-1) + cf.numPages(0) + cf.numPages(2)) * 1000,
+                s.estimateScanCost(new int[] { 2, 0, 2 }), 0.0);
+
+        SeqScan ss = new SeqScan(tid, cf.getId(), "c");
+        ss.setProjection(new int[] { 0 });
+        ss.addPredicate(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(10)));
+        assertEquals(s.estimateScanCost(new int[] { 0, 2 }),
+                s.estimateScanCost(ss.getFieldsRead()), 0.0);
+        assertTrue(s.estimateScanCost(ss.getFieldsRead()) < s.estimateScanCost());
+    }
+
+    /**
+     * Unit test for ColumnFile.deleteTuple():  deleted tuples are skipped by
+     * scans, and can't be deleted twice.
+     */
+    @Test public void delete() throws Exception {
+        insert(300);
+        List<Tuple> tuples = SystemTestUtil.readTuples(cf.iterator(tid));
+        for (Tuple t : tuples)
+            if (((IntField) t.getField(0)).getValue() % 3 == 0)
+                Database.getBufferPool().deleteTuple(tid, t);
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        List<Tuple> left = SystemTestUtil.readTuples(cf.iterator(tid));
+        assertEquals(200, left.size());
+        for (Tuple t : left)
+            assertTrue(((IntField) t.getField(0)).getValue() % 3 != 0);
+        try {
+            cf.deleteTuple(tid, tuples.get(0));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // new tuples go after the deleted ones
+        insert(1);
+        left = SystemTestUtil.readTuples(cf.iterator(tid));
+        assertEquals(201, left.size());
+        assertEquals(300, left.get(200).getRecordId().tupleno());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ColumnFileTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedColumnPageTest extends SimpleDbTestBase {
+    private static final String[] DIRECTIONS = { "north", "south", "east", "west" };
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "time", "direction", "speed" });
+
+    private TransactionId tid;
+
+    @Before public void createTransaction() {
+        tid = new TransactionId();
+    }
+
+    private static Tuple tuple(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(1000000 + i / 40));
+        t.setField(1, new StringField(DIRECTIONS[i * 7 % 4], Type.STRING_LEN));
+        t.setField(2, new IntField(i * 31 % 120));
+        return t;
+    }
+
+    /** @return a page of the given column filled with the values of tuple(i) */
+    private static CompressedColumnPage fill(int column, Type type) throws Exception {
+        ColumnPageId pid = new ColumnPageId(0, column, 0);
+        CompressedColumnPage p = new CompressedColumnPage(pid,
+                CompressedColumnPage.createEmptyPageData(0), type);
+        int n = 0;
+        while (n < 2000 && p.hasRoomFor(tuple(n).getField(column)))
+            p.setValue(n, tuple(n++).getField(column));
+        return p;
+    }
+
+    /**
+     * Unit test for CompressedColumnPage.getPageData():  sorted integers
+     * are run-length encoded, others bit-packed, strings go through a
+     * dictionary, and a page read back from its data holds the same values.
+     */
+    @Test public void encodings() throws Exception {
+        for (int j = 0; j < TD.numFields(); j++) {
+            CompressedColumnPage p = fill(j, TD.getFieldType(j));
+            assertEquals(2000, p.getCount());
+            byte[] data = p.getPageData();
+            assertEquals(j == 0 ? CompressedColumnPage.RLE : 0, data[8]);
+            CompressedColumnPage q = new CompressedColumnPage(p.getId(), data, TD.getFieldType(j));
+            assertEquals(2000, q.getCount());
+            for (int i = 0; i < 2000; i++)
+                assertEquals(tuple(i).getField(j), q.getValue(i));
+        }
+
+        // a predicate over strings is checked against the dictionary
+        CompressedColumnPage p = fill(1, Type.STRING_TYPE);
+        Predicate pred = new Predicate(1, Predicate.Op.EQUALS,
+                new StringField("east", Type.STRING_LEN));
+        for (int i = 0; i < 2000; i++)
+            assertEquals(DIRECTIONS[i * 7 % 4].equals("east"), p.matches(i, pred));
+    }
+
+    /**
+     * Unit test for a compressed ColumnFile:  its columns take far fewer
+     * pages, and scans with predicates return the same tuples.
+     */
+    @Test public void fewerPagesSameTuples() throws Exception {
+        ColumnFile plain = SystemTestUtil.createEmptyColumnFile("plain", TD, false);
+        ColumnFile packed = SystemTestUtil.createEmptyColumnFile("packed", TD, true);
+        for (int i = 0; i < 20000; i++) {
+            Database.getBufferPool().insertTuple(tid, plain.getId(), tuple(i));
+            Database.getBufferPool().insertTuple(tid, packed.getId(), tuple(i));
+        }
+        Database.getBufferPool().flushAllPages();
+        for (int j = 0; j < TD.numFields(); j++)
+            assertTrue(packed.numPages(j) * 3 <= plain.numPages(j));
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(20000, SystemTestUtil.readTuples(packed.iterator(tid)).size());
+        Predicate[] preds = new Predicate[] {
+            new Predicate(1, Predicate.Op.EQUALS, new StringField("west", Type.STRING_LEN)),
+            new Predicate(2, Predicate.Op.LESS_THAN, new IntField(20)) };
+        int[] fields = new int[] { 0, 2 };
+        List<Tuple> expected = SystemTestUtil.readTuples(plain.iterator(tid, preds, fields));
+        List<Tuple> actual = SystemTestUtil.readTuples(packed.iterator(tid, preds, fields));
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals(expected.get(i).toString(), actual.get(i).toString());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedColumnPageTest.class);
+    }
+}
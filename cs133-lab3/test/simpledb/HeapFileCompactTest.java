@@ -0,0 +1,145 @@
+package simpledb;
+
+import java.io.File;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class HeapFileCompactTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.INT_TYPE }, new String[] { "id", "value" });
+
+    private TransactionId tid;
+
+    @Before public void createTransaction() {
+        tid = new TransactionId();
+    }
+
+    private void insert(HeapFile hf, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new IntField(i * 3));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+    }
+
+    /** Delete the tuples of hf whose id is not a multiple of k */
+    private void deleteAllBut(HeapFile hf, int k) throws Exception {
+        for (Tuple t : SystemTestUtil.readTuples(hf.iterator(tid)))
+            if (((IntField) t.getField(0)).getValue() % k != 0)
+                Database.getBufferPool().deleteTuple(tid, t);
+    }
+
+    private static LinearHashFile createIndex(HeapFile hf) throws Exception {
+        File f = SystemTestUtil.createTempFile("compact", ".hash");
+        f.delete();
+        LinearHashFile index = new LinearHashFile(f, hf.getId(), 0, TD);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    private static int pagesFor(int numTuples) {
+        int perPage = (BufferPool.getPageSize() * 8) / (TD.getSize() * 8 + 1);
+        return (numTuples + perPage - 1) / perPage;
+    }
+
+    /**
+     * Unit test for HeapFile.compact():  after most tuples are deleted, the
+     * remaining ones fill the first pages, the file is truncated, and the
+     * index of the table finds the moved tuples.
+     */
+    @Test public void compactAfterDeletes() throws Exception {
+        HeapFile hf = SystemTestUtil.createEmptyHeapFile("compact", TD);
+        LinearHashFile index = createIndex(hf);
+
+        insert(hf, 5000);
+        deleteAllBut(hf, 5);
+        int before = hf.numPages();
+        assertEquals(pagesFor(5000), before);
+        assertEquals(before - pagesFor(1000), hf.compact(tid));
+        assertEquals(pagesFor(1000), hf.numPages());
+
+        Database.getBufferPool().flushAllPages();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(pagesFor(1000), hf.numPages());
+        List<Integer> ids = SystemTestUtil.readInts(hf.iterator(tid), 0);
+        assertEquals(1000, new HashSet<Integer>(ids).size());
+
+        for (int id = 0; id < 5000; id += 5) {
+            List<Tuple> found = SystemTestUtil.readTuples(index.indexIterator(tid,
+                    new Predicate(0, Predicate.Op.EQUALS, new IntField(id))));
+            assertEquals(1, found.size());
+            assertEquals(new IntField(id * 3), found.get(0).getField(1));
+        }
+        assertEquals(0, SystemTestUtil.readTuples(index.indexIterator(tid,
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(1)))).size());
+    }
+
+    /**
+     * Unit test for HeapFile.compact():  the moved tuples and their index
+     * entries are on disk once it returns, so a table read back without
+     * flushing the BufferPool holds every tuple.
+     */
+    @Test public void compactWritesMovedTuples() throws Exception {
+        HeapFile hf = SystemTestUtil.createEmptyHeapFile("moved", TD);
+        LinearHashFile index = createIndex(hf);
+        insert(hf, 3000);
+        deleteAllBut(hf, 3);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(hf.compact(tid) > 0);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        List<Integer> ids = SystemTestUtil.readInts(hf.iterator(tid), 0);
+        assertEquals(1000, new HashSet<Integer>(ids).size());
+        for (int id = 0; id < 3000; id += 3)
+            assertEquals(Arrays.asList(id), SystemTestUtil.readInts(index.indexIterator(tid,
+                    new Predicate(0, Predicate.Op.EQUALS, new IntField(id))), 0));
+    }
+
+    /**
+     * Unit test for HeapFile.compact():  the tuples of a clustered file keep
+     * the order of their pages, and a compacted file with no tuple left is
+     * empty.
+     */
+    @Test public void clusteredOrder() throws Exception {
+        HeapFile hf = SystemTestUtil.createEmptyHeapFile("ordered", TD, 0);
+        insert(hf, 3000);
+        deleteAllBut(hf, 2);
+        hf.compact(tid);
+        assertEquals(pagesFor(1500), hf.numPages());
+        int previous = -1;
+        int pgNo = -1;
+        int pageMin = Integer.MAX_VALUE;
+        for (Tuple t : SystemTestUtil.readTuples(hf.iterator(tid))) {
+            int id = ((IntField) t.getField(0)).getValue();
+            if (t.getRecordId().getPageId().pageNumber() != pgNo) {
+                // every tuple of a page comes after those of the pages before
+                assertTrue(id > previous);
+                pgNo = t.getRecordId().getPageId().pageNumber();
+                pageMin = id;
+            }
+            assertTrue(id >= pageMin);
+            previous = Math.max(previous, id);
+        }
+
+        for (Tuple t : SystemTestUtil.readTuples(hf.iterator(tid)))
+            Database.getBufferPool().deleteTuple(tid, t);
+        hf.compact(tid);
+        assertEquals(0, hf.numPages());
+        assertEquals(0, SystemTestUtil.readTuples(hf.iterator(tid)).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(HeapFileCompactTest.class);
+    }
+}
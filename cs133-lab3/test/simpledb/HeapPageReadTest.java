@@ -99,6 +99,53 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(Predicate[])
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+            new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, new IntField(44947))
+        };
+        Iterator<Tuple> it = page.iterator(preds);
+
+        for (int[] tuple : EXAMPLE_VALUES) {
+            if (tuple[0] <= 20000 || tuple[1] > 44947)
+                continue;
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(tuple[0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(tuple[1], ((IntField) tup.getField(1)).getValue());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(Predicate[], int[])
+     */
+    @Test public void testProjectedIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000))
+        };
+        Iterator<Tuple> it = page.iterator(preds, new int[] { 1 });
+
+        int row = 0;
+        for (int[] tuple : EXAMPLE_VALUES) {
+            if (tuple[0] <= 20000) {
+                row++;
+                continue;
+            }
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(1, tup.getTupleDesc().numFields());
+            assertEquals(tuple[1], ((IntField) tup.getField(0)).getValue());
+            assertEquals(row++, tup.getRecordId().tupleno());
+        }
+        assertFalse(it.hasNext());
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
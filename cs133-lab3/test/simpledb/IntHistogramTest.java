@@ -174,4 +174,30 @@ public class IntHistogramTest {
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 3) < 0.001);
 		Assert.assertTrue(h.estimateSelectivity(Op.NOT_EQUALS, 8) > 0.01);
 	}
+
+	/**
+	 * Test that values added below the min or above the max widen the
+	 * first and last buckets, and are estimated over their real width.
+	 */
+	@Test public void widenedRangeTest() {
+		IntHistogram h = new IntHistogram(10, 1, 10);
+		for (int c = 1; c <= 10; c++) {
+			h.addValue(c);
+		}
+		h.addValue(-5);
+		h.addValue(20);
+		
+		// The first bucket now spans -5..1, the last one 10..20
+		Assert.assertEquals(2.0 / (7 * 12), h.estimateSelectivity(Op.EQUALS, -5), 1e-9);
+		Assert.assertEquals(2.0 / (7 * 12), h.estimateSelectivity(Op.EQUALS, 0), 1e-9);
+		Assert.assertEquals(2.0 / (11 * 12), h.estimateSelectivity(Op.EQUALS, 20), 1e-9);
+		Assert.assertEquals(0.0, h.estimateSelectivity(Op.EQUALS, -6), 0.0);
+		Assert.assertTrue(h.estimateSelectivity(Op.LESS_THAN, 1) > 0.0);
+		Assert.assertTrue(h.estimateSelectivity(Op.LESS_THAN_OR_EQ, -5) > 0.0);
+		Assert.assertEquals(2.0 * 5 / 11 / 12, h.estimateSelectivity(Op.GREATER_THAN, 15), 1e-9);
+		
+		h.removeValue(-5);
+		h.removeValue(20);
+		Assert.assertEquals(0.1, h.estimateSelectivity(Op.EQUALS, 5), 1e-9);
+	}
 }
@@ -0,0 +1,219 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LinearHashFileTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE }, new String[] { "id", "name" });
+
+    private TransactionId tid;
+    private HeapFile table;
+
+    @Before public void createTable() throws Exception {
+        table = SystemTestUtil.createEmptyHeapFile("t", TD);
+        tid = new TransactionId();
+    }
+
+    private LinearHashFile createIndex(int field) throws Exception {
+        File f = SystemTestUtil.createTempFile("hash", ".hash");
+        f.delete();
+        LinearHashFile index = new LinearHashFile(f, table.getId(), field, TD);
+        Database.getCatalog().addIndex(index);
+        return index;
+    }
+
+    private static String name(int i) {
+        return "name" + (i * 7919 % 10007);
+    }
+
+    private Tuple insert(int id) throws Exception {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name(id), Type.STRING_LEN));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        return t;
+    }
+
+    private static DbFileIterator lookup(IndexFile index, TransactionId tid, int field, Field key) {
+        return index.indexIterator(tid, new Predicate(field, Predicate.Op.EQUALS, key));
+    }
+
+    /**
+     * Unit test for LinearHashFile.insertTuple():  the table splits its
+     * buckets as it grows, and every key is still found in its bucket, also
+     * when the BufferPool is too small to hold the index.
+     */
+    @Test public void insertSplits() throws Exception {
+        Database.resetBufferPool(20);
+        LinearHashFile index = createIndex(1);
+        for (int i = 0; i < 2000; i++)
+            insert(i);
+
+        // string keys fit about 30 to a page
+        HashPage meta = (HashPage) Database.getBufferPool().getPage(tid,
+                new HashPageId(index.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(2000, meta.numEntries);
+        assertTrue(LinearHashFile.numBuckets(meta) > 2000 / HashPage.maxEntries(Type.STRING_TYPE));
+        DbFileIterator it = index.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(2000, count);
+
+        for (int i = 0; i < 2000; i++)
+            assertEquals(Arrays.asList(i), SystemTestUtil.readInts(lookup(index, tid, 1,
+                    new StringField(name(i), Type.STRING_LEN)), 0));
+    }
+
+    /**
+     * Unit test for LinearHashFile.indexIterator() with duplicate and
+     * missing keys, and operators it cannot serve.
+     */
+    @Test public void lookups() throws Exception {
+        LinearHashFile index = createIndex(0);
+        for (int i = 0; i < 3000; i++)
+            insert(i % 1000);
+
+        assertEquals(Arrays.asList(42, 42, 42),
+                SystemTestUtil.readInts(lookup(index, tid, 0, new IntField(42)), 0));
+        assertEquals(0,
+                SystemTestUtil.readInts(lookup(index, tid, 0, new IntField(1000)), 0).size());
+        assertEquals(3000, SystemTestUtil.readInts(index.iterator(tid), 0).size());
+
+        // the returned tuples are the tuples of the table
+        DbFileIterator it = lookup(index, tid, 0, new IntField(7));
+        it.open();
+        Tuple t = it.next();
+        assertEquals(name(7), ((StringField) t.getField(1)).getValue());
+        assertEquals(table.getId(), t.getRecordId().getPageId().getTableId());
+        it.close();
+
+        assertTrue(index.supports(Predicate.Op.EQUALS));
+        assertFalse(index.supports(Predicate.Op.LESS_THAN));
+        try {
+            index.indexIterator(tid, new Predicate(0, Predicate.Op.LESS_THAN, new IntField(10)));
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for LinearHashFile.deleteTuple(), through
+     * BufferPool.deleteTuple()
+     */
+    @Test public void delete() throws Exception {
+        LinearHashFile index = createIndex(0);
+        List<Tuple> victims = new ArrayList<Tuple>();
+        for (int i = 0; i < 1000; i++) {
+            Tuple t = insert(i);
+            if (i % 2 == 0)
+                victims.add(t);
+        }
+        for (Tuple t : victims)
+            Database.getBufferPool().deleteTuple(tid, t);
+
+        assertEquals(500, SystemTestUtil.readInts(index.iterator(tid), 0).size());
+        assertEquals(0,
+                SystemTestUtil.readInts(lookup(index, tid, 0, new IntField(500)), 0).size());
+        assertEquals(Arrays.asList(501),
+                SystemTestUtil.readInts(lookup(index, tid, 0, new IntField(501)), 0));
+
+        try {
+            index.deleteTuple(tid, victims.get(0));
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Unit test for a hash annotation on the primary key in the catalog
+     * file:  the index is built from the existing contents of the table,
+     * is found again on disk when the catalog is reloaded, and is rebuilt
+     * if the table was written to without it.
+     */
+    @Test public void catalogIndex() throws Exception {
+        File dir = SystemTestUtil.createTempFile("hash", "");
+        dir.delete();
+        dir.mkdir();
+        HeapFile hf = new HeapFile(new File(dir, "s.dat"), TD);
+        Database.getCatalog().addTable(hf, "s");
+        for (int i = 0; i < 600; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(name(i), Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+
+        File catalog = new File(dir, "catalog.txt");
+        FileWriter w = new FileWriter(catalog);
+        w.write("s (id int pk hash btree, name string)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        new File(dir, "s.id.hash").deleteOnExit();
+        new File(dir, "s.id.btree").deleteOnExit();
+        new File(dir, "s.dat").deleteOnExit();
+        catalog.deleteOnExit();
+
+        int tableId = Database.getCatalog().getTableId("s");
+        assertEquals(2, Database.getCatalog().getIndexes(tableId).size());
+        // equality lookups go to the hash index, range lookups to the tree
+        assertTrue(Database.getCatalog().getIndex(tableId, 0, Predicate.Op.EQUALS)
+                instanceof LinearHashFile);
+        assertTrue(Database.getCatalog().getIndex(tableId, 0, Predicate.Op.LESS_THAN)
+                instanceof BTreeFile);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        tableId = Database.getCatalog().getTableId("s");
+        IndexFile index = Database.getCatalog().getIndex(tableId, 0, Predicate.Op.EQUALS);
+        assertEquals(600, SystemTestUtil.readInts(index.iterator(tid), 0).size());
+        assertEquals(Arrays.asList(123),
+                SystemTestUtil.readInts(lookup(index, tid, 0, new IntField(123)), 0));
+
+        // append to the table while its indexes are not loaded
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().clear();
+        hf = new HeapFile(new File(dir, "s.dat"), TD);
+        Database.getCatalog().addTable(hf, "s");
+        for (int i = 600; i < 700; i++) {
+            Tuple t = new Tuple(TD);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(name(i), Type.STRING_LEN));
+            Database.getBufferPool().insertTuple(tid, hf.getId(), t);
+        }
+        Database.getBufferPool().flushAllPages();
+        hf.getFile().setLastModified(new File(dir, "s.id.hash").lastModified() + 1000);
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        tableId = Database.getCatalog().getTableId("s");
+        index = Database.getCatalog().getIndex(tableId, 0, Predicate.Op.EQUALS);
+        assertEquals(700, SystemTestUtil.readInts(index.iterator(tid), 0).size());
+        assertEquals(Arrays.asList(654),
+                SystemTestUtil.readInts(lookup(index, tid, 0, new IntField(654)), 0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LinearHashFileTest.class);
+    }
+}
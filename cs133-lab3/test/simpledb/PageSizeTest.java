@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageSizeTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = Utility.getTupleDesc(3);
+
+    private TransactionId tid;
+
+    @Before public void createTransaction() {
+        tid = new TransactionId();
+    }
+
+    @After public void restorePageSize() {
+        BufferPool.resetPageSize();
+    }
+
+    private void insert(HeapFile hf, int n) throws Exception {
+        for (int i = 0; i < n; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 3));
+    }
+
+    /** @return the number of tuples of it, checking that field 0 counts them */
+    private static int count(DbFileIterator it) throws Exception {
+        List<Integer> ids = SystemTestUtil.readInts(it, 0);
+        for (int i = 0; i < ids.size(); i++)
+            assertEquals(i, (int) ids.get(i));
+        return ids.size();
+    }
+
+    /**
+     * Unit test for HeapFile.getPageSize():  a table with larger pages holds
+     * as many tuples on fewer pages, and its pages are read back whole.
+     */
+    @Test public void largerPages() throws Exception {
+        for (boolean slotted : new boolean[] { false, true }) {
+            HeapFile small = SystemTestUtil.createEmptyHeapFile("small" + slotted, TD, -1,
+                    slotted, 4096);
+            HeapFile large = SystemTestUtil.createEmptyHeapFile("large" + slotted, TD, -1,
+                    slotted, 16384);
+            insert(small, 3000);
+            insert(large, 3000);
+            Database.getBufferPool().flushAllPages();
+            assertEquals(0, large.getFile().length() % 16384);
+            assertTrue(large.numPages() * 4 <= small.numPages() + 3);
+
+            Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            assertEquals(3000, count(large.iterator(tid)));
+            assertEquals(3000, count(small.iterator(tid)));
+        }
+    }
+
+    /**
+     * Unit test for BufferPool:  a page of a table with larger pages takes
+     * as many frames as it is larger than the page size of the database.
+     */
+    @Test public void framesSizedToPages() throws Exception {
+        HeapFile large = SystemTestUtil.createEmptyHeapFile("large", TD, -1, false, 16384);
+        insert(large, 5000);
+        Database.getBufferPool().flushAllPages();
+        assertTrue(large.numPages() > 2);
+
+        Database.resetBufferPool(8);
+        assertEquals(5000, count(large.iterator(tid)));
+        assertTrue(Database.getBufferPool().pages.size() <= 2);
+    }
+
+    /**
+     * Unit test for BufferPool.setPageSize() and the pagesize option of the
+     * catalog.
+     */
+    @Test public void databaseAndCatalogPageSizes() throws Exception {
+        BufferPool.setPageSize(8192);
+        File f = SystemTestUtil.createTempFile("pages", ".dat");
+        assertEquals(8192, new HeapFile(f, TD).getPageSize());
+        assertEquals(8192, HeapPage.createEmptyPageData().length);
+        BufferPool.resetPageSize();
+
+        File catalog = SystemTestUtil.createTempFile("pages", ".txt");
+        FileWriter w = new FileWriter(catalog);
+        w.write("wide (a int, b int) pagesize=65536\nnarrow (a int, b int)\n");
+        w.close();
+        Database.getCatalog().loadSchema(catalog.getAbsolutePath());
+        Catalog c = Database.getCatalog();
+        assertEquals(65536, ((HeapFile) c.getDatabaseFile(c.getTableId("wide"))).getPageSize());
+        assertEquals(BufferPool.PAGE_SIZE,
+                ((HeapFile) c.getDatabaseFile(c.getTableId("narrow"))).getPageSize());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageSizeTest.class);
+    }
+}
@@ -0,0 +1,110 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedPageTest extends SimpleDbTestBase {
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[] { Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE },
+            new String[] { "id", "plate", "year" });
+
+    private TransactionId tid;
+
+    @Before public void createTransaction() {
+        tid = new TransactionId();
+    }
+
+    private static String plate(int i) {
+        return "P" + Integer.toString(i * 7919 % 1000003, 36).toUpperCase();
+    }
+
+    private static Tuple tuple(int i) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(plate(i), Type.STRING_LEN));
+        t.setField(2, new IntField(1990 + i % 30));
+        return t;
+    }
+
+    /**
+     * Unit test for SlottedPage.getPageData():  a page read back from its
+     * data holds the same tuples in the same slots, and a deleted slot is
+     * reused.
+     */
+    @Test public void roundTrip() throws Exception {
+        HeapFile hf = SystemTestUtil.createEmptyHeapFile("slots", TD, -1, true);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        SlottedPage p = new SlottedPage(pid, HeapPage.createEmptyPageData());
+        int n = 0;
+        while (p.hasRoomFor(tuple(n)))
+            p.insertTuple(tuple(n++));
+        assertTrue(n > 100);
+        assertEquals(0, p.getNumEmptySlots());
+
+        SlottedPage q = new SlottedPage(pid, p.getPageData());
+        Iterator<Tuple> it = q.iterator();
+        for (int i = 0; i < n; i++) {
+            Tuple t = it.next();
+            assertEquals(i, t.getRecordId().tupleno());
+            assertEquals(tuple(i).toString(), t.toString());
+        }
+        assertFalse(it.hasNext());
+
+        // free a slot in the middle, and fill it with a new tuple
+        q.deleteTuple(q.getTuple(5));
+        assertNull(q.getTuple(5));
+        Tuple t = tuple(1000);
+        assertTrue(q.hasRoomFor(t));
+        q.insertTuple(t);
+        assertEquals(5, t.getRecordId().tupleno());
+        SlottedPage r = new SlottedPage(pid, q.getPageData());
+        assertEquals(tuple(1000).toString(), r.getTuple(5).toString());
+        assertEquals(tuple(6).toString(), r.getTuple(6).toString());
+        assertEquals(new IntField(1990 + 6), r.getTuple(6).getField(2));
+    }
+
+    /**
+     * Unit test for a slotted HeapFile:  short strings take far fewer pages
+     * than fixed-size slots, and scans with predicates return the same
+     * tuples.
+     */
+    @Test public void denserThanHeapPages() throws Exception {
+        HeapFile fixed = SystemTestUtil.createEmptyHeapFile("fixed", TD, -1, false);
+        HeapFile slotted = SystemTestUtil.createEmptyHeapFile("slotted", TD, -1, true);
+        for (int i = 0; i < 3000; i++) {
+            Database.getBufferPool().insertTuple(tid, fixed.getId(), tuple(i));
+            Database.getBufferPool().insertTuple(tid, slotted.getId(), tuple(i));
+        }
+        Database.getBufferPool().flushAllPages();
+        assertTrue(slotted.numPages() * 5 <= fixed.numPages());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(3000, SystemTestUtil.readTuples(slotted.iterator(tid)).size());
+        Predicate[] preds = new Predicate[] {
+            new Predicate(2, Predicate.Op.EQUALS, new IntField(2000)),
+            new Predicate(1, Predicate.Op.GREATER_THAN, new StringField("P5", Type.STRING_LEN)) };
+        List<Tuple> expected = SystemTestUtil.readTuples(fixed.iterator(tid, preds));
+        List<Tuple> actual = SystemTestUtil.readTuples(
+                slotted.iterator(tid, preds, new int[] { 1, 0 }));
+        assertTrue(expected.size() > 0);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getField(0), actual.get(i).getField(1));
+            assertEquals(expected.get(i).getField(1), actual.get(i).getField(0));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedPageTest.class);
+    }
+}
@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -151,4 +153,103 @@ public class TableStatsTest extends SimpleDbTestBase {
 			Assert.assertEquals(0.0, s.estimateSelectivity(col, Predicate.Op.LESS_THAN_OR_EQ, belowMin), 0.001);
 		}
 	}
+
+	/**
+	 * Verify that saved statistics are reused until the table's file changes.
+	 */
+	@Test public void persistentStatsTest() throws IOException {
+		File statsFile = File.createTempFile("catalog", TableStats.STATS_SUFFIX);
+		statsFile.deleteOnExit();
+		
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		TableStats.saveStatistics(statsFile);
+		
+		Map<String, TableStats> saved = TableStats.loadStatistics(statsFile);
+		TableStats loaded = saved.get(tableName);
+		Assert.assertNotNull(loaded);
+		Assert.assertFalse(loaded.isStale(this.tableId));
+		Assert.assertEquals(s.totalTuples(), loaded.totalTuples());
+		Assert.assertEquals(s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)),
+				loaded.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)), 0.0);
+		
+		// appending a page makes the saved statistics stale
+		HeapPage p = new HeapPage(new HeapPageId(tableId, f.numPages()), HeapPage.createEmptyPageData());
+		f.writePage(p);
+		Assert.assertTrue(loaded.isStale(this.tableId));
+	}
+
+	/**
+	 * Verify that sampled statistics only read the sampled pages and scale the
+	 * tuple count up to the whole table.
+	 */
+	@Test public void sampledStatsTest() throws IOException, DbException, TransactionAbortedException {
+		HeapFile hf = SystemTestUtil.createRandomHeapFile(1, 992*40, 32, null, tuples);
+		Assert.assertEquals(40, hf.numPages());
+		String tableName = SystemTestUtil.getUUID();
+		Database.getCatalog().addTable(hf, tableName);
+		int tableId = Database.getCatalog().getTableId(tableName);
+		
+		TableStats s = new TableStats(tableId, IO_COST, 16);
+		Assert.assertTrue(s.isSampled());
+		Assert.assertEquals(16, s.pagesRead());
+		Assert.assertEquals(992*40, s.totalTuples(), 992);
+		int[] bounds = s.estimateTableCardinalityBounds(1.0);
+		Assert.assertTrue(bounds[0] <= s.totalTuples() && s.totalTuples() <= bounds[1]);
+		Assert.assertEquals(0.5, s.estimateSelectivity(0, Predicate.Op.LESS_THAN, new IntField(16)), 0.1);
+		
+		// tables no bigger than the sample are scanned exactly
+		TableStats exact = new TableStats(tableId, IO_COST, 40);
+		Assert.assertFalse(exact.isSampled());
+		Assert.assertEquals(992*40, exact.totalTuples());
+		Assert.assertEquals(992*40, exact.estimateTableCardinalityBounds(1.0)[1]);
+		
+		// inserted tuples weigh as much in the sampled histograms as in the
+		// table: a tenth of the table is zeros once 992*4 of them are added
+		TableStats.setTableStats(tableName, s);
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < 992*4; i++)
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(0, 1));
+		Assert.assertEquals((40.0/32 + 4) / 44, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(0)), 0.02);
+	}
+
+	/**
+	 * Verify that inserts and deletes through the BufferPool keep the
+	 * statistics up to date, and that enough of them trigger a re-analyze.
+	 */
+	@Test public void incrementalStatsTest() throws Exception {
+		TableStats s = new TableStats(this.tableId, IO_COST);
+		TableStats.setTableStats(tableName, s);
+		TransactionId tid = new TransactionId();
+		
+		Assert.assertEquals(0.0, s.estimateSelectivity(0, Predicate.Op.EQUALS, new IntField(100)), 0.001);
+		for (int i = 0; i < 10; i++)
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(100, 10));
+		Assert.assertEquals(1030, s.totalTuples());
+		Assert.assertEquals(10, s.modifications());
+		Assert.assertTrue(s.estimateSelectivity(0, Predicate.Op.GREATER_THAN, new IntField(32)) > 0.0);
+		
+		ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+		DbIterator it = new Filter(new Predicate(0, Predicate.Op.EQUALS, new IntField(100)),
+				new SeqScan(tid, tableId));
+		it.open();
+		while (it.hasNext())
+			inserted.add(it.next());
+		it.close();
+		for (Tuple t : inserted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Assert.assertEquals(1020, s.totalTuples());
+		Assert.assertEquals(20, s.modifications());
+		
+		// past the staleness threshold, fresh stats replace the old ones;
+		// the inserts made while they are computed are not lost
+		for (int i = 0; i < TableStats.MIN_STALE_MODIFICATIONS; i++)
+			Database.getBufferPool().insertTuple(tid, tableId, Utility.getHeapTuple(i, 10));
+		for (int i = 0; i < 100 && TableStats.getTableStats(tableName) == s; i++)
+			Thread.sleep(100);
+		TableStats fresh = TableStats.getTableStats(tableName);
+		Assert.assertNotSame(s, fresh);
+		Assert.assertEquals(1020 + TableStats.MIN_STALE_MODIFICATIONS, fresh.totalTuples());
+		Assert.assertTrue(fresh.modifications() < TableStats.MIN_STALE_MODIFICATIONS);
+	}
 }
@@ -0,0 +1,101 @@
+package simpledb;
+
+import java.util.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 5000;
+
+    private TransactionId tid;
+
+    @Before public void createTransaction() {
+        tid = new TransactionId();
+    }
+
+    private static Tuple tuple(int v0, int v1) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(v0));
+        t.setField(1, new IntField(v1));
+        return t;
+    }
+
+    /** @return field 0 of the tuples of hf satisfying preds */
+    private List<Integer> scan(HeapFile hf, Predicate... preds) throws Exception {
+        return SystemTestUtil.readInts(hf.iterator(tid, preds), 0);
+    }
+
+    /** @return the number of pages of hf a scan with preds has to read */
+    private static int pagesRead(HeapFile hf, Predicate... preds) {
+        int n = 0;
+        for (int i = 0; i < hf.numPages(); i++)
+            if (hf.getZoneMap().mayMatch(i, preds))
+                n++;
+        return n;
+    }
+
+    /**
+     * Unit test for a clustered HeapFile:  keys inserted nearly in order
+     * leave the pages nearly sorted, so a range scan reads only the pages that
+     * hold the range.
+     */
+    @Test public void clusteredRangeScan() throws Exception {
+        HeapFile hf = SystemTestUtil.createEmptyHeapFile("t", Utility.getTupleDesc(2), 0);
+        // time-ordered keys, with some late arrivals
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(),
+                    tuple(i % 100 == 99 ? i - 50 : i, i));
+        assertTrue(hf.numPages() >= 10);
+
+        Predicate lo = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(2000));
+        Predicate hi = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(2400));
+        List<Integer> result = scan(hf, lo, hi);
+        assertEquals(400, result.size());
+        assertTrue(pagesRead(hf, lo, hi) <= 2);
+        assertEquals(1, scan(hf, new Predicate(0, Predicate.Op.EQUALS, new IntField(3000))).size());
+        assertEquals(1, pagesRead(hf, new Predicate(0, Predicate.Op.EQUALS, new IntField(3000))));
+    }
+
+    /**
+     * Unit test for zone maps over an unclustered HeapFile:  pages are
+     * skipped once their ranges are known, and inserts widen the ranges.
+     */
+    @Test public void insertsWidenZones() throws Exception {
+        HeapFile hf = SystemTestUtil.createEmptyHeapFile("t", Utility.getTupleDesc(2));
+        for (int i = 0; i < ROWS; i++)
+            Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(i, i % 7));
+
+        Predicate big = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(ROWS));
+        assertEquals(hf.numPages(), pagesRead(hf, big));
+        assertEquals(0, scan(hf, big).size());
+        assertEquals(0, pagesRead(hf, big));
+
+        // make room on the first page, and add a matching tuple there
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(ROWS + 1, 0));
+        assertEquals(1, pagesRead(hf, big));
+        assertEquals(Arrays.asList(ROWS + 1), scan(hf, big));
+
+        // predicates on fields without a known range don't skip pages
+        Predicate other = new Predicate(1, Predicate.Op.EQUALS, new IntField(3));
+        assertEquals(hf.numPages(), pagesRead(hf, other));
+        assertEquals(714, scan(hf, other).size());
+        assertEquals(0, scan(hf, big, other).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import simpledb.*;
+
+public class IndexScanTest extends SimpleDbTestBase {
+    private static final int ROWS = 10000;
+    private static final int IO_COST = 1000;
+
+    private final HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+
+    /** Create a 2-column table with the given prefix and compute its stats */
+    private HeapFile createTable(int rows, String prefix, ArrayList<ArrayList<Integer>> tuples)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, rows, ROWS, null, tuples, prefix);
+        stats.put(Database.getCatalog().getTableName(hf.getId()),
+                new TableStats(hf.getId(), IO_COST));
+        return hf;
+    }
+
+    /** Build an index on field 0 of hf */
+    private void createIndex(HeapFile hf) throws Exception {
+        createIndex(hf, false);
+    }
+
+    /** Build a B+ tree or hash index on field 0 of hf */
+    private void createIndex(HeapFile hf, boolean hash) throws Exception {
+        File f = File.createTempFile("index", hash ? ".hash" : ".btree");
+        f.delete();
+        f.deleteOnExit();
+        IndexFile index = hash ? new LinearHashFile(f, hf.getId(), 0, hf.getTupleDesc())
+            : new BTreeFile(f, hf.getId(), 0, hf.getTupleDesc());
+        Database.getCatalog().addIndex(index);
+        TransactionId tid = new TransactionId();
+        index.populate(tid);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** @return the operators of the plan that are instances of c */
+    private static int count(DbIterator plan, Class<?> c) {
+        int n = c.isInstance(plan) ? 1 : 0;
+        if (plan instanceof Operator)
+            for (DbIterator child : ((Operator) plan).getChildren())
+                if (child != null)
+                    n += count(child, c);
+        return n;
+    }
+
+    private DbIterator filterPlan(TransactionId tid, HeapFile hf, Predicate.Op op, int value)
+            throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "a");
+        lp.addFilter("a.c0", op, Integer.toString(value));
+        lp.addProjectField("a.c0", null);
+        lp.addProjectField("a.c1", null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    private static ArrayList<ArrayList<Integer>> select(ArrayList<ArrayList<Integer>> tuples,
+            Predicate.Op op, int value) {
+        ArrayList<ArrayList<Integer>> result = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples)
+            if (new IntField(t.get(0)).compare(op, new IntField(value)))
+                result.add(t);
+        return result;
+    }
+
+    @Test public void selectiveFilterUsesIndex() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = createTable(ROWS, "c", tuples);
+        createIndex(hf);
+        int value = tuples.get(ROWS / 2).get(0);
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = filterPlan(tid, hf, Predicate.Op.EQUALS, value);
+        assertEquals(1, count(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, select(tuples, Predicate.Op.EQUALS, value));
+
+        // a predicate most tuples satisfy is cheaper to evaluate in a scan
+        plan = filterPlan(tid, hf, Predicate.Op.GREATER_THAN, 10);
+        assertEquals(0, count(plan, IndexScan.class));
+        assertEquals(1, count(plan, SeqScan.class));
+        SystemTestUtil.matchTuples(plan, select(tuples, Predicate.Op.GREATER_THAN, 10));
+
+        plan = filterPlan(tid, hf, Predicate.Op.LESS_THAN, 5);
+        assertEquals(1, count(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, select(tuples, Predicate.Op.LESS_THAN, 5));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void noIndexNoIndexScan() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = createTable(ROWS, "c", tuples);
+        int value = tuples.get(0).get(0);
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = filterPlan(tid, hf, Predicate.Op.EQUALS, value);
+        assertEquals(0, count(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, select(tuples, Predicate.Op.EQUALS, value));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void hashIndexLookup() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = createTable(ROWS, "c", tuples);
+        createIndex(hf, true);
+        int value = tuples.get(ROWS / 3).get(0);
+
+        TransactionId tid = new TransactionId();
+        DbIterator plan = filterPlan(tid, hf, Predicate.Op.EQUALS, value);
+        assertEquals(1, count(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, select(tuples, Predicate.Op.EQUALS, value));
+
+        // a hash index can't serve a range
+        plan = filterPlan(tid, hf, Predicate.Op.LESS_THAN, 20);
+        assertEquals(0, count(plan, IndexScan.class));
+        SystemTestUtil.matchTuples(plan, select(tuples, Predicate.Op.LESS_THAN, 20));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void indexNestedLoopJoin() throws Exception {
+        checkIndexNestedLoopJoin(false);
+    }
+
+    @Test public void hashIndexNestedLoopJoin() throws Exception {
+        checkIndexNestedLoopJoin(true);
+    }
+
+    private void checkIndexNestedLoopJoin(boolean hash) throws Exception {
+        ArrayList<ArrayList<Integer>> inner = new ArrayList<ArrayList<Integer>>();
+        HeapFile a = createTable(ROWS, "c", inner);
+        createIndex(a, hash);
+        // the outer table joins with some tuples of the inner one
+        ArrayList<ArrayList<Integer>> outer = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < 200; i++)
+            outer.add(new ArrayList<Integer>(Arrays.asList(inner.get(i * 7).get(0) + i % 2, i)));
+        File f = File.createTempFile("table", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(outer, f, BufferPool.getPageSize(), 2);
+        HeapFile b = Utility.openHeapFile(2, "d", f);
+        stats.put(Database.getCatalog().getTableName(b.getId()),
+                new TableStats(b.getId(), IO_COST));
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t1 : outer)
+            for (ArrayList<Integer> t2 : inner)
+                if (t1.get(0).equals(t2.get(0))) {
+                    ArrayList<Integer> t = new ArrayList<Integer>(t1);
+                    t.addAll(t2);
+                    expected.add(t);
+                }
+        assertTrue(expected.size() >= 100);
+
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(b.getId(), "b");
+        lp.addScan(a.getId(), "a");
+        lp.addJoin("b.d0", "a.c0", Predicate.Op.EQUALS);
+        lp.addProjectField("b.d0", null);
+        lp.addProjectField("b.d1", null);
+        lp.addProjectField("a.c0", null);
+        lp.addProjectField("a.c1", null);
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertEquals(1, count(plan, IndexNestedLoopJoin.class));
+        SystemTestUtil.matchTuples(plan, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A join is only planned as an IndexNestedLoopJoin when it is an
+     * equality join that costs less than the nested loops join.
+     */
+    @Test public void joinWithoutIndexNestedLoopJoin() throws Exception {
+        HeapFile a = createTable(ROWS, "e", new ArrayList<ArrayList<Integer>>());
+        createIndex(a);
+        HeapFile small = createTable(50, "g", new ArrayList<ArrayList<Integer>>());
+        createIndex(small);
+        HeapFile b = createTable(200, "f", new ArrayList<ArrayList<Integer>>());
+
+        TransactionId tid = new TransactionId();
+        assertEquals(1, count(joinPlan(tid, b, a, Predicate.Op.EQUALS), IndexNestedLoopJoin.class));
+        assertEquals(0, count(joinPlan(tid, b, a, Predicate.Op.LESS_THAN), IndexNestedLoopJoin.class));
+        assertEquals(0, count(joinPlan(tid, b, small, Predicate.Op.EQUALS), IndexNestedLoopJoin.class));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private DbIterator joinPlan(TransactionId tid, HeapFile outer, HeapFile inner, Predicate.Op op)
+            throws ParsingException {
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(outer.getId(), "b");
+        lp.addScan(inner.getId(), "a");
+        lp.addJoin("b." + outer.getTupleDesc().getFieldName(0),
+                "a." + inner.getTupleDesc().getFieldName(0), op);
+        lp.addProjectField("b." + outer.getTupleDesc().getFieldName(0), null);
+        return lp.physicalPlan(tid, stats, false);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(IndexScanTest.class);
+    }
+}
@@ -0,0 +1,60 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import simpledb.*;
+
+public class ScanPredicateTest extends FilterBase {
+    @Override
+    protected int applyPredicate(HeapFile table, TransactionId tid, Predicate predicate)
+            throws DbException, TransactionAbortedException, IOException {
+        SeqScan ss = new SeqScan(tid, table.getId(), "");
+        ss.addPredicate(predicate);
+        ss.open();
+
+        int resultCount = 0;
+        while (ss.hasNext()) {
+            Tuple t = ss.next();
+            assertNotNull(t);
+            assertTrue(predicate.filter(t));
+            resultCount += 1;
+        }
+
+        ss.close();
+        return resultCount;
+    }
+
+    @Test public void testProjection()
+            throws DbException, TransactionAbortedException, IOException {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(4, 1000, null, tuples, "c");
+
+        // project columns 3 and 1, in that order, of the rows with column 0 > 500
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) > 500) {
+                ArrayList<Integer> row = new ArrayList<Integer>();
+                row.add(t.get(3));
+                row.add(t.get(1));
+                expected.add(row);
+            }
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan ss = new SeqScan(tid, table.getId(), "t");
+        ss.addPredicate(new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(500)));
+        ss.setProjection(new int[] { 3, 1 });
+        assertEquals(2, ss.getTupleDesc().numFields());
+        assertEquals("t.c3", ss.getTupleDesc().getFieldName(0));
+        SystemTestUtil.matchTuples(ss, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ScanPredicateTest.class);
+    }
+}
@@ -85,6 +85,100 @@ public class SystemTestUtil {
         return temp;
     }
 
+    /**
+     * @return a new temporary file, which is deleted when the JVM exits
+     */
+    public static File createTempFile(String prefix, String suffix) throws IOException {
+        File f = File.createTempFile(prefix, suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * Creates an empty HeapFile of tuples described by td in a temporary
+     * file, and adds it to the catalog as table name.
+     */
+    public static HeapFile createEmptyHeapFile(String name, TupleDesc td) throws IOException {
+        return createEmptyHeapFile(name, td, -1);
+    }
+
+    /**
+     * Creates an empty HeapFile like {@link #createEmptyHeapFile(String, TupleDesc)},
+     * clustered on clusterField (-1 for none).
+     */
+    public static HeapFile createEmptyHeapFile(String name, TupleDesc td, int clusterField)
+            throws IOException {
+        return createEmptyHeapFile(name, td, clusterField, false);
+    }
+
+    /**
+     * Creates an empty HeapFile like {@link #createEmptyHeapFile(String, TupleDesc, int)},
+     * stored on SlottedPages if slotted is true.
+     */
+    public static HeapFile createEmptyHeapFile(String name, TupleDesc td, int clusterField,
+            boolean slotted) throws IOException {
+        return createEmptyHeapFile(name, td, clusterField, slotted, BufferPool.getPageSize());
+    }
+
+    /**
+     * Creates an empty HeapFile like
+     * {@link #createEmptyHeapFile(String, TupleDesc, int, boolean)}, whose
+     * pages are pageSize bytes long.
+     */
+    public static HeapFile createEmptyHeapFile(String name, TupleDesc td, int clusterField,
+            boolean slotted, int pageSize) throws IOException {
+        HeapFile hf = new HeapFile(createTempFile("table", ".dat"), td, clusterField, slotted,
+                pageSize);
+        Database.getCatalog().addTable(hf, name);
+        return hf;
+    }
+
+    /**
+     * Creates an empty ColumnFile of tuples described by td in temporary
+     * files, and adds it to the catalog as table name.
+     */
+    public static ColumnFile createEmptyColumnFile(String name, TupleDesc td) throws IOException {
+        return createEmptyColumnFile(name, td, false);
+    }
+
+    /**
+     * Creates an empty ColumnFile like {@link #createEmptyColumnFile(String, TupleDesc)},
+     * whose columns are stored on CompressedColumnPages if compressed is true.
+     */
+    public static ColumnFile createEmptyColumnFile(String name, TupleDesc td, boolean compressed)
+            throws IOException {
+        ColumnFile cf = new ColumnFile(createTempFile("columns", ".dat"), td, compressed);
+        for (int j = 0; j < td.numFields(); j++)
+            cf.getFile(j).deleteOnExit();
+        Database.getCatalog().addTable(cf, name);
+        return cf;
+    }
+
+    /**
+     * @return the tuples returned by it, which is opened and closed
+     */
+    public static List<Tuple> readTuples(DbFileIterator it)
+            throws DbException, TransactionAbortedException {
+        List<Tuple> tuples = new ArrayList<Tuple>();
+        it.open();
+        while (it.hasNext())
+            tuples.add(it.next());
+        it.close();
+        return tuples;
+    }
+
+    /**
+     * @return the values of the integer field of the tuples returned by
+     *         it, which is opened and closed
+     */
+    public static List<Integer> readInts(DbFileIterator it, int field)
+            throws DbException, TransactionAbortedException {
+        List<Integer> values = new ArrayList<Integer>();
+        for (Tuple t : readTuples(it))
+            values.add(((IntField) t.getField(field)).getValue());
+        return values;
+    }
+
     public static ArrayList<Integer> tupleToList(Tuple tuple) {
         ArrayList<Integer> list = new ArrayList<Integer>();
         for (int i = 0; i < tuple.getTupleDesc().numFields(); ++i) {
@@ -5,8 +5,11 @@ import java.io.*;
 import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Set;
@@ -34,8 +37,33 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
+    /** Default number of milliseconds between two rounds of the
+        background page writer. */
+    public static final long DEFAULT_WRITER_DELAY = 100;
+
+    /** Maximum number of pages written by one round of the background
+        page writer. */
+    static final int WRITER_BATCH = 8;
+    
+    /** By default, the background page writer keeps one frame in this
+        many clean or free. */
+    static final int CLEAN_FRAMES_FRACTION = 8;
+
     final int numPages;
     final ConcurrentHashMap<PageId,Page> pages; // hash table storing current pages in memory
+    // dirty-page table: page -> offset in the log of the first change to
+    // the page since it was last written (its recLSN)
+    final ConcurrentHashMap<PageId,Long> recLSNs;
+    private long writerDelay = DEFAULT_WRITER_DELAY;
+    private int cleanFrames; // clean or free frames the writer keeps ready
+    private final Object writerSignal = new Object(); // wakes the writer up
+    // STEAL: dirty pages of running transactions may be evicted.
+    // FORCE: the pages of a transaction are written when it commits.
+    // Both are safe because every change is logged first, and the log is
+    // forced up to a page's LSN before the page is written.
+    private volatile boolean steal = true;
+    private volatile boolean force = false;
+    private Thread writer = null;
     private final Random random = new Random(); // for choosing random pages for eviction
 
     private final LockManager lockmgr; // Added for Lab 4
@@ -51,6 +79,8 @@ public class BufferPool {
 	// some code goes here
 	this.numPages = numPages;
 	this.pages = new ConcurrentHashMap<PageId, Page>();
+	this.recLSNs = new ConcurrentHashMap<PageId, Long>();
+	this.cleanFrames = Math.max(1, numPages / CLEAN_FRAMES_FRACTION);
 	
 	lockmgr = new LockManager(); // Added for Lab 4
     }
@@ -75,6 +105,24 @@ public class BufferPool {
 	BufferPool.pageSize = pageSize;
     }
     
+    /**
+     * Set whether dirty pages of transactions that are still running may
+     * be evicted (STEAL) or not (NO-STEAL).  The default is STEAL.
+     */
+    public void setSteal(boolean steal) {
+	this.steal = steal;
+    }
+    
+    /**
+     * Set whether the pages of a transaction are written to disk when it
+     * commits (FORCE) or left to eviction and the background page writer
+     * (NO-FORCE), in which case the log alone makes the commit durable.
+     * The default is NO-FORCE.
+     */
+    public void setForce(boolean force) {
+	this.force = force;
+    }
+    
     /**
      * Retrieve the specified page with the associated permissions.
      * Will acquire a lock and may block if that lock is held by another
@@ -106,7 +154,7 @@ public class BufferPool {
 	    p = pages.get(pid);
 	    if(p == null) {
 		if(pages.size() >= numPages) {
-		    evictPage();// added for lab 2
+		    evictPage(tid);// added for lab 2
 		    // throw new DbException("Out of buffer pages");
 		}
 		
@@ -161,6 +209,11 @@ public class BufferPool {
     /**
      * Commit or abort a given transaction; release all locks associated to
      * the transaction.
+     * <p>
+     * On commit, the pages of the transaction are only written out in
+     * FORCE mode.  On abort, the pages it left dirty are thrown out; pages
+     * that were already rolled back by the log, or that hold changes of
+     * other transactions only, are kept.
      *
      * @param tid the ID of the transaction requesting the unlock
      * @param commit a flag indicating whether we should commit or abort
@@ -169,12 +222,15 @@ public class BufferPool {
 	throws IOException {
 	    Iterator<PageId> iter = lockmgr.getPIDs(tid).iterator();
 	    if(commit) {
-	    	while (iter.hasNext()) {
+	    	while (force && iter.hasNext()) {
 	    		flushPage(iter.next());
 	    	}
 	    } else { //The transaction is aborting so we throw out the changes.
 	    	while (iter.hasNext()) { 
-	    		pages.remove(iter.next());
+	    		PageId pid = iter.next();
+	    		Page p = pages.get(pid);
+	    		if (p != null && p.isDirty() != null && p.isDirty().equals(tid))
+	    		    discardPage(pid);
 	    	}
 	    }
     	lockmgr.releaseAllLocks(tid, commit); // Added for Lab 4
@@ -203,10 +259,18 @@ public class BufferPool {
 	
 	// let the specific implementation of the file decide which page to add it to
 	ArrayList<Page> dirtypages = file.insertTuple(tid, t);
+	// note the pages as dirty before logging the change, so that a
+	// checkpoint taken in between cannot miss them
+	noteDirty(dirtypages, Database.getLogFile().logEnd());
+	long lsn = Database.getLogFile().logInsert(tid, t);
+	noteDirty(dirtypages, lsn);
 	
 	synchronized(this) {
+	    startWriter();
 	    for (Page p : dirtypages){
 		p.markDirty(true, tid);
+		if (p instanceof HeapPage)
+		    ((HeapPage) p).setLSN(lsn);
 		
 		// if page in pool already, done.
 		if(pages.get(p.getId()) != null) {
@@ -216,7 +280,7 @@ public class BufferPool {
 		else {
 		    // put page in pool
 		    if(pages.size() >= numPages)
-			evictPage();
+			evictPage(tid);
 		    pages.put(p.getId(), p);
 		}
 	    }
@@ -242,10 +306,16 @@ public class BufferPool {
 	
 	DbFile file = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
 	ArrayList<Page> dirtypages = file.deleteTuple(tid, t);
+	noteDirty(dirtypages, Database.getLogFile().logEnd());
+	long lsn = Database.getLogFile().logDelete(tid, t);
+	noteDirty(dirtypages, lsn);
 	
 	synchronized(this) {
+	    startWriter();
 	    for (Page p : dirtypages){
 		p.markDirty(true, tid);
+		if (p instanceof HeapPage)
+		    ((HeapPage) p).setLSN(lsn);
 	    }
 	}
     }
@@ -273,10 +343,13 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) {
 	// some code goes here
 	// not necessary for labs 1--4
+	pages.remove(pid);
+	recLSNs.remove(pid);
     }
     
     /**
-     * Flushes a certain page to disk
+     * Flushes a certain page to disk.  The log is forced first, up to the
+     * last record that changed the page (write-ahead logging).
      * @param pid an ID indicating the page to flush
      */
     private synchronized  void flushPage(PageId pid) throws IOException {
@@ -284,12 +357,21 @@ public class BufferPool {
 	// not necessary for lab1
 	
 	Page p = pages.get(pid);
-	if (p == null)
+	if (p == null) {
+	    recLSNs.remove(pid);
 	    return; //not in buffer pool -- doesn't need to be flushed
+	}
 	
+	if (p.isDirty() != null) {
+	    if (p instanceof HeapPage)
+		Database.getLogFile().forceUpTo(((HeapPage) p).getLSN());
+	    else
+		Database.getLogFile().force();
+	}
 	DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
 	file.writePage(p);
 	p.markDirty(false, null);
+	recLSNs.remove(pid);
     }
     
     /** Write all pages of the specified transaction to disk.
@@ -297,13 +379,207 @@ public class BufferPool {
     public synchronized  void flushPages(TransactionId tid) throws IOException {
 	// some code goes here
 	// not necessary for labs 1--4
+	for (Page p : pages.values()) {
+	    if (p.isDirty() != null && p.isDirty().equals(tid))
+		flushPage(p.getId());
+	}
+    }
+    
+    /**
+     * Record in the dirty-page table that the specified pages are changed
+     * by a log record at or after offset lsn of the log.
+     */
+    private void noteDirty(ArrayList<Page> dirtypages, long lsn) {
+	for (Page p : dirtypages) {
+	    PageId pid = p.getId();
+	    Long recLSN = recLSNs.putIfAbsent(pid, lsn);
+	    while (recLSN != null && recLSN > lsn && !recLSNs.replace(pid, recLSN, lsn))
+		recLSN = recLSNs.putIfAbsent(pid, lsn);
+	}
+    }
+    
+    /**
+     * @return a copy of the dirty-page table, mapping each page changed
+     *         since it was last written to the offset in the log of the
+     *         first of those changes
+     */
+    public Map<PageId,Long> dirtyPageTable() {
+	return new HashMap<PageId,Long>(recLSNs);
+    }
+    
+    /**
+     * Set the number of milliseconds between two rounds of the
+     * background page writer.
+     */
+    public void setWriterDelay(long millis) {
+	writerDelay = millis;
+    }
+    
+    /**
+     * Set the number of clean or free frames the background page writer
+     * tries to keep in the pool, so that eviction seldom has to write a
+     * dirty page on the thread of a query.
+     */
+    public void setCleanFrames(int frames) {
+	cleanFrames = frames;
+    }
+    
+    /** Start the background page writer, if it is not running yet. */
+    private synchronized void startWriter() {
+	if (writer != null)
+	    return;
+	writer = new Thread("PageWriter") {
+		public void run() { writeBehind(); }
+	    };
+	writer.setDaemon(true);
+	writer.start();
+    }
+    
+    /** Wake the background page writer up before its delay is over. */
+    private void wakeWriter() {
+	synchronized (writerSignal) {
+	    writerSignal.notify();
+	}
+    }
+    
+    /**
+     * Body of the background page writer: trickle dirty pages out to disk,
+     * a few at a time, until this is no longer the buffer pool of the
+     * database.  This keeps the dirty-page table short, so checkpoints
+     * need not write any page and recovery has little to redo.  When
+     * fewer than cleanFrames frames are clean or free, enough pages are
+     * written to make up for it.
+     */
+    private void writeBehind() {
+	while (Database.getBufferPool() == this) {
+	    try {
+		synchronized (writerSignal) {
+		    writerSignal.wait(writerDelay);
+		}
+		writeDirtyPages(Math.max(WRITER_BATCH, cleanFrames - cleanFrames()));
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+    
+    /** @return the number of frames of the pool that are free or hold
+        a clean page */
+    private int cleanFrames() {
+	int clean = numPages - pages.size();
+	for (Page p : pages.values())
+	    if (p.isDirty() == null)
+		clean++;
+	return clean;
+    }
+    
+    /**
+     * Write up to max dirty pages to disk, oldest recLSN first.  Pages
+     * write-locked by a transaction are skipped, since they may be in the
+     * middle of a change.  The pages of each HeapFile are written
+     * together, in page number order, after the log is forced up to the
+     * last change to any of them.
+     *
+     * @return the number of pages written
+     */
+    int writeDirtyPages(int max) throws IOException {
+	ArrayList<Map.Entry<PageId,Long>> dirty =
+	    new ArrayList<Map.Entry<PageId,Long>>(dirtyPageTable().entrySet());
+	if (dirty.isEmpty())
+	    return 0;
+	Collections.sort(dirty, new Comparator<Map.Entry<PageId,Long>>() {
+		public int compare(Map.Entry<PageId,Long> a, Map.Entry<PageId,Long> b) {
+		    return a.getValue().compareTo(b.getValue());
+		}
+	    });
+	// table id -> the pages of that table to write
+	HashMap<Integer,ArrayList<PageId>> batches = new HashMap<Integer,ArrayList<PageId>>();
+	int chosen = 0;
+	for (int i = 0; i < dirty.size() && chosen < max; i++) {
+	    PageId pid = dirty.get(i).getKey();
+	    if (lockmgr.isWriteLocked(pid))
+		continue;
+	    chosen++;
+	    ArrayList<PageId> batch = batches.get(pid.getTableId());
+	    if (batch == null) {
+		batch = new ArrayList<PageId>();
+		batches.put(pid.getTableId(), batch);
+	    }
+	    batch.add(pid);
+	}
+	int written = 0;
+	for (Map.Entry<Integer,ArrayList<PageId>> e : batches.entrySet())
+	    written += writeBatch(e.getKey(), e.getValue());
+	return written;
+    }
+    
+    /**
+     * Write the specified pages of a table to disk, skipping the ones
+     * that are write-locked, no longer cached, or already clean.
+     *
+     * @return the number of pages written
+     */
+    private int writeBatch(int tableId, ArrayList<PageId> pids) throws IOException {
+	// holding the lock manager keeps transactions from locking the
+	// pages while they are written; the buffer pool is locked first,
+	// as in evictPage
+	synchronized (this) {
+	    synchronized (lockmgr) {
+		ArrayList<Page> batch = new ArrayList<Page>();
+		long lastLSN = -1;
+		boolean unknownLSN = false;
+		for (PageId pid : pids) {
+		    Page p = pages.get(pid);
+		    if (p == null || p.isDirty() == null) {
+			if (p == null)
+			    recLSNs.remove(pid);
+			continue;
+		    }
+		    if (lockmgr.isWriteLocked(pid))
+			continue;
+		    if (p instanceof HeapPage)
+			lastLSN = Math.max(lastLSN, ((HeapPage) p).getLSN());
+		    else
+			unknownLSN = true;
+		    batch.add(p);
+		}
+		DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+		if (batch.isEmpty() || file == null)
+		    return 0; // nothing to write, or the table is gone
+		
+		if (unknownLSN)
+		    Database.getLogFile().force();
+		else
+		    Database.getLogFile().forceUpTo(lastLSN);
+		if (file instanceof HeapFile) {
+		    ((HeapFile) file).writePages(batch);
+		} else {
+		    for (Page p : batch)
+			file.writePage(p);
+		}
+		for (Page p : batch) {
+		    p.markDirty(false, null);
+		    recLSNs.remove(p.getId());
+		}
+		return batch.size();
+	    }
+	}
     }
     
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * Clean pages are evicted first.  In STEAL mode, a dirty page is
+     * evicted otherwise, as long as no transaction but tid has it
+     * write-locked: such a page may be in the middle of a change that is
+     * not logged yet.
+     *
+     * @param tid the transaction that needs a free buffer page
      */
-    private synchronized void evictPage() throws DbException {
+    private synchronized void evictPage(TransactionId tid) throws DbException {
     	/*Iterator<PageId> iter = pages.keySet().iterator();
     	while(iter.hasNext()) {
     		PageId next = iter.next();
@@ -336,7 +612,23 @@ public class BufferPool {
     		    	pages.remove(pid);
     		    	return;
     		    }
-    		}throw new DbException("could not evict page");
+    		}
+    		if (steal) {
+    		    // holding the lock manager keeps other transactions from
+    		    // locking the page while it is written
+    		    synchronized (lockmgr) {
+    			for (PageId pg : pages.keySet()) {
+    			    if (lockmgr.isWriteLocked(pg) && !lockmgr.holdsLock(tid, pg))
+    				continue;
+    			    flushPage(pg);
+    			    pages.remove(pg);
+    			    // the writer fell behind; have it clean some frames
+    			    wakeWriter();
+    			    return;
+    			}
+    		    }
+    		}
+    		throw new DbException("could not evict page");
     	} catch (IOException e) {
     	    throw new DbException("could not evict page");
     	}
@@ -382,11 +674,14 @@ public class BufferPool {
 	public boolean acquireLock(TransactionId tid, PageId pid, Permissions perm)
 	    throws DeadlockException {
 	    int i = 0;
+	    // randomize the timeout, so that transactions deadlocked on the same
+	    // page don't all give up at once and deadlock again when they retry
+	    int attempts = lockAttempts + random.nextInt(lockAttempts);
 	    while(!lock(tid, pid, perm)) { // keep trying to get the lock
 		
 		synchronized(this) {
 		    // some code here for Exercise 5, deadlock detection
-		    if (i++ >= lockAttempts) {
+		    if (i++ >= attempts) {
 		    	throw new DeadlockException();
 		    }
 		}
@@ -412,6 +707,9 @@ public class BufferPool {
 	 * Check lab description to make sure you clean up appropriately depending on whether transaction commits or aborts
 	 */
 	public synchronized void releaseAllLocks(TransactionId tid, boolean commit) {
+	    if (!locks.containsKey(tid)) {
+	    	return; // the transaction never locked a page
+	    }
 	    PageId[] pids = new PageId[locks.get(tid).size()];
 	    getPIDs(tid).toArray(pids);
 	    for(int i = 0; i < pids.length; ++i) {
@@ -526,11 +824,20 @@ public class BufferPool {
 	    return true;
     }
 	
+	/** Return true if some transaction holds a write lock on the specified page */
+	public synchronized boolean isWriteLocked(PageId pid) {
+	    Integer c = count.get(pid);
+	    return c != null && c == 0;
+	}
+	
 	/**
 	 * Returns the pid for every page in use by a specific transaction
 	 *
 	 */
 	public synchronized Set<PageId> getPIDs(TransactionId tid) {
+		if (!locks.containsKey(tid)) {
+			return Collections.emptySet();
+		}
 		return locks.get(tid).keySet();
 	}
     }
@@ -75,7 +75,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._logfile.stopFlusher();
     }
 
 }
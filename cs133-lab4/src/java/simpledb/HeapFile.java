@@ -75,19 +75,20 @@ public class HeapFile implements DbFile {
 
         try {
             bis = new BufferedInputStream(new FileInputStream(f));
-            byte pageBuf[] = new byte[BufferPool.PAGE_SIZE];
-            if (bis.skip(id.pageNumber() * BufferPool.PAGE_SIZE) != id
-                    .pageNumber() * BufferPool.PAGE_SIZE) {
+            int pageSize = BufferPool.getPageSize();
+            byte pageBuf[] = new byte[pageSize];
+            if (bis.skip((long) id.pageNumber() * pageSize) != (long) id
+                    .pageNumber() * pageSize) {
                 throw new IllegalArgumentException(
                         "Unable to seek to correct place in heapfile");
             }
-            int retval = bis.read(pageBuf, 0, BufferPool.PAGE_SIZE);
+            int retval = bis.read(pageBuf, 0, pageSize);
             if (retval == -1) {
                 throw new IllegalArgumentException("Read past end of table");
             }
-            if (retval < BufferPool.PAGE_SIZE) {
+            if (retval < pageSize) {
                 throw new IllegalArgumentException("Unable to read "
-                        + BufferPool.PAGE_SIZE + " bytes from heapfile");
+                        + pageSize + " bytes from heapfile");
             }
             HeapPage p = new HeapPage(id, pageBuf);
             return p;
@@ -121,16 +122,56 @@ public class HeapFile implements DbFile {
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
+		} finally {
+			fIO.close();
 		}
     	
     }
 
+    /**
+     * Push several pages of this file to disk at once.  The pages are
+     * written in page number order through a single open file, and runs
+     * of consecutive pages are written with one write each.
+     *
+     * @param pages the pages to write, in any order
+     * @throws IOException if a write fails
+     */
+    public void writePages(List<Page> pages) throws IOException {
+    	if (pages.isEmpty())
+    	    return;
+    	ArrayList<Page> sorted = new ArrayList<Page>(pages);
+    	Collections.sort(sorted, new Comparator<Page>() {
+    		public int compare(Page a, Page b) {
+    		    return a.getId().pageNumber() - b.getId().pageNumber();
+    		}
+    	    });
+    	int pageSize = BufferPool.getPageSize();
+    	RandomAccessFile fIO = new RandomAccessFile(f, "rw");
+    	try {
+    	    int i = 0;
+    	    while (i < sorted.size()) {
+    		int first = sorted.get(i).getId().pageNumber();
+    		int j = i + 1;
+    		while (j < sorted.size() && sorted.get(j).getId().pageNumber() == first + (j - i))
+    		    j++;
+    		byte[] run = new byte[(j - i) * pageSize];
+    		for (int k = i; k < j; k++)
+    		    System.arraycopy(sorted.get(k).getPageData(), 0, run, (k - i) * pageSize, pageSize);
+    		fIO.seek((long) first * pageSize);
+    		fIO.write(run);
+    		i = j;
+    	    }
+    	} finally {
+    	    fIO.close();
+    	}
+    }
+
     /**
      * Returns the number of pages in this HeapFile.
      */
     public int numPages() {
         // some code goes here
-    	return (int) (f.length() / BufferPool.PAGE_SIZE);
+    	return (int) (f.length() / BufferPool.getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -145,21 +186,26 @@ public class HeapFile implements DbFile {
 			if(pg.getNumEmptySlots()>0){
 	    		pg.insertTuple(t);
 	    		pg.markDirty(true, tid);
-	    		writePage(pg);
 	    		affectedPages.add(pg);
 	    		return affectedPages;
 			}
     		
     		
     	}
+    	// extend the file with an empty page, then fill it through the
+    	// BufferPool like any other page:  it is only written once the log
+    	// holds the insert
+    	HeapPageId newPid;
     	synchronized (this) {
-    		HeapPageId newPid = new HeapPageId(getId(), numPages());
-        	HeapPage newPage = new HeapPage(newPid, HeapPage.createEmptyPageData());
-    		newPage.insertTuple(t);
-        	newPage.markDirty(true, tid);
-        	writePage(newPage);
-        	affectedPages.add(newPage);
+    		newPid = new HeapPageId(getId(), numPages());
+    		writePage(new HeapPage(newPid, HeapPage.createEmptyPageData()));
 		}
+    	HeapPage newPage = (HeapPage) Database.getBufferPool().getPage(tid, newPid, Permissions.READ_WRITE);
+    	if (newPage.getNumEmptySlots() == 0)
+    		return insertTuple(tid, t); // filled by other transactions meanwhile
+    	newPage.insertTuple(t);
+    	newPage.markDirty(true, tid);
+    	affectedPages.add(newPage);
     	return affectedPages;
     	
     }
@@ -22,6 +22,27 @@ public class HeapPage implements Page {
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
+    /** Rebuilds HeapPages and HeapPageIds read back from the log */
+    static final PageCodec CODEC = new PageCodec() {
+            public Class<? extends Page> pageClass() {
+                return HeapPage.class;
+            }
+
+            public Class<? extends PageId> pageIdClass() {
+                return HeapPageId.class;
+            }
+
+            public PageId readPageId(int[] data) throws IOException {
+                if (data.length != 2)
+                    throw new IOException("bad HeapPageId of length " + data.length);
+                return new HeapPageId(data[0], data[1]);
+            }
+
+            public Page readPage(PageId pid, byte[] data) throws IOException {
+                return new HeapPage((HeapPageId) pid, data);
+            }
+        };
+
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
      * The format of a HeapPage is a set of header bytes indicating
@@ -71,7 +92,7 @@ public class HeapPage implements Page {
     private int getNumTuples() {        
         // some code goes here
         int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-        int tuplesPerPage = (BufferPool.PAGE_SIZE*8) / bitsPerTupleIncludingHeader; //round down
+        int tuplesPerPage = (BufferPool.getPageSize()*8) / bitsPerTupleIncludingHeader; //round down
         return tuplesPerPage;
 
     }
@@ -252,17 +273,15 @@ public class HeapPage implements Page {
      * @param t The tuple to delete
      */
     public void deleteTuple(Tuple t) throws DbException {
-        //Iterate until we find the tuple to delete and update the header to show that the slot is now empty
-    	for(int i = 0; i < numSlots; i++) {
-    		if (isSlotUsed(i)) {
-    			if (tuples[i].equals(t)) {
-    				tuples[i] = null;
-    				markSlotUsed(i, false);
-    				return;
-    			}
-    		}
-    	}
-    	throw new DbException("The tuple you tried to delete doesn't exist.");
+        // find the tuple's slot from its RecordId, rather than by comparing
+        // Tuple objects: the page may have been reloaded (e.g. by a rollback)
+        // since t was read from it
+        RecordId rid = t.getRecordId();
+        if (rid == null || !pid.equals(rid.getPageId()) || rid.tupleno() >= numSlots
+                || !isSlotUsed(rid.tupleno()))
+            throw new DbException("The tuple you tried to delete doesn't exist.");
+        tuples[rid.tupleno()] = null;
+        markSlotUsed(rid.tupleno(), false);
     }
 
     /**
@@ -285,8 +304,38 @@ public class HeapPage implements Page {
         throw new DbException(null);
     }
     
+    /**
+     * Puts t in the specified slot, or empties the slot if t is null,
+     * whatever the slot held before.  Used to replay log records.
+     * @see TupleLogRecord
+     */
+    void setSlot(int slot, Tuple t) {
+        tuples[slot] = t;
+        markSlotUsed(slot, t != null);
+        if (t != null)
+            t.setRecordId(new RecordId(pid, slot));
+    }
+
     private boolean isDirty;
     private TransactionId dirtyTransaction;
+    private long lsn = -1;
+
+    /**
+     * Returns the offset in the log (LSN) of the last log record that
+     * changed this page, or -1 if it is not known.  The LSN is kept in
+     * memory only, so that the on-disk layout of the page (and the number
+     * of slots it holds) is unchanged.
+     */
+    public long getLSN() {
+        return lsn;
+    }
+
+    /**
+     * Records that the log record at the given offset changed this page.
+     */
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
 
     /**
      * Marks this page as dirty/not dirty and record that transaction
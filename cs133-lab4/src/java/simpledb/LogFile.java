@@ -2,8 +2,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
-import java.lang.reflect.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -35,14 +40,23 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The log is stored in a control file, named by the File given to the
+constructor, and a sequence of segment files of equal size, named after
+the control file followed by a dot and the number of the segment.  Log
+records are addressed by their offset in the log, which never changes:
+segment n holds offsets n * segmentSize to (n + 1) * segmentSize - 1,
+and a record may span two segments.  Truncating the log deletes the
+segments that recovery no longer needs, so the log is never rewritten.
+
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The first long integer of the control file represents the offset
+of the last written checkpoint, or -1 if there are no checkpoints.  The
+second one is the size of the segments.
 
-<li> All additional data in the log consists of log records.  Log
+<li> All data in the segments consists of log records.  Log
 records are variable length.
 
 <li> Each log record begins with an integer type and a long integer
@@ -51,30 +65,65 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are eight record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, INSERT, DELETE and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS consist of a one byte compression method followed by
+two entries, a before image and an after image.  These images are
+serialized Page objects, and can be accessed with the
+LogFile.readPageData() and LogFile.writePageData() methods when they are
+not compressed.  See LogFile.print() for an example.  The classes of the
+page and of its id are written as the one byte id of the PageCodec that
+rebuilds them (see registerCodec).  With UPDATE_DEFLATE_DELTA, the data
+of each image is written as its length, the length of its compressed
+form and the compressed form: the before image is deflated, and the
+after image is XORed with the before image and then deflated, so that
+empty slots, string padding and unchanged bytes take next to no room.
+Only UPDATE records are compressed, and the BufferPool no longer writes
+them: it logs its changes as INSERT and DELETE records, which are
+written as they are.  UPDATE records still come from logWrite, and from
+logs written before INSERT and DELETE records, which are read back
+whatever their compression.
+
+<li> INSERT and DELETE records describe the insertion or deletion of
+a single tuple.  They consist of the page id (written like the page
+ids of UPDATE records), the slot number, and the length and bytes of
+the tuple.  See {@link TupleLogRecord}.
+
+<li> CLR (compensation log) records are written while a transaction
+is rolled back, one for each UPDATE, INSERT or DELETE record that is
+undone.  They consist of the offset of the record they undo, the type
+of the change that undoes it (UPDATE, INSERT or DELETE) and the body of
+a record of that type.  CLRs are redone but never undone.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty pages of the buffer pool.  The format of the record is an
+integer count of the number of transactions, as well as a long integer
+transaction id and a long integer first record offset for each active
+transaction; then an integer count of the number of dirty pages, as well
+as a page id (written like the page ids of UPDATE records) and a long
+integer offset for each dirty page.  That offset is the recLSN of the
+page: no change logged before it is missing from the page on disk.
+Checkpoints are fuzzy: no page is written when they are taken, and
+recovery starts redo at the oldest recLSN of the last checkpoint.
 
 </ul>
 
+<p> Records are not written to the segments one field at a time: they
+are appended to an in-memory log buffer, which is written to the end of
+the log in one sequential write when it fills up, or when the log is
+forced or read back.  The offsets above are logical offsets, which
+include the bytes still in the buffer.
+
 */
 
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // the control file
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -82,15 +131,114 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int INSERT_RECORD = 6;
+    static final int DELETE_RECORD = 7;
+    static final int CLR_RECORD = 8;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
+    /** Number of threads redoing pages in parallel during recovery */
+    static final int REDO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /** Size in bytes of the in-memory log buffer */
+    static final int LOG_BUFFER_SIZE = 64 * 1024;
+
+    /** Default size in bytes of a segment of the log */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    /** Compression of UPDATE records: the images are written as they are */
+    public static final int UPDATE_UNCOMPRESSED = 0;
+    /** Compression of UPDATE records: the before image is deflated, and
+        the after image is XORed with it and deflated */
+    public static final int UPDATE_DEFLATE_DELTA = 1;
+
+    /** Id of the codec of HeapPage and HeapPageId */
+    static final int HEAP_PAGE_CODEC = 1;
+
+    // the registered page codecs, by id, and the ids of the page and page
+    // id classes they handle
+    private static final PageCodec[] codecs = new PageCodec[256];
+    private static final ConcurrentHashMap<Class<?>,Integer> codecIds =
+        new ConcurrentHashMap<Class<?>,Integer>();
+
+    static {
+        registerCodec(HEAP_PAGE_CODEC, HeapPage.CODEC);
+    }
+
+    // the log buffer, and the DataOutputStream that appends to it;
+    // protected by this
+    private final ByteBuffer logBuffer = ByteBuffer.allocateDirect(LOG_BUFFER_SIZE);
+    private final DataOutputStream out = new DataOutputStream(new LogBufferStream());
+    private long fileEnd = 0; // end of the log on disk, excluding logBuffer
+
+    // the segments of the log, by number; protected by this
+    private final TreeMap<Long,RandomAccessFile> segments = new TreeMap<Long,RandomAccessFile>();
+    private final long newSegmentSize; // segment size of a new log
+    private long segmentSize;          // segment size of this log
+    private long forcedEnd = 0; // the log is known to be on disk up to here
+
     long currentOffset = -1;//protected by this
+    private int updateCompression = UPDATE_DEFLATE_DELTA; // protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    /** Default longest time (in milliseconds) the log flusher waits for
+        more commits to join a batch before forcing the log */
+    public static final long DEFAULT_GROUP_COMMIT_DELAY = 0;
+    /** Default number of commits after which the log flusher forces the
+        log without waiting any longer */
+    public static final int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+    /** Time (in milliseconds) the log flusher waits after a failed force
+        before it tries again; the wait doubles with every failure in a
+        row, up to MAX_FLUSH_RETRY_DELAY */
+    static final long FLUSH_RETRY_DELAY = 10;
+    static final long MAX_FLUSH_RETRY_DELAY = 1000;
+
+    /** A force of the log that failed, and the commits that waited on it */
+    private static class FlushFailure {
+        final long firstTicket;
+        final long lastTicket;
+        final IOException error;
+        long waiters; // commits that have not logged their abort yet
+
+        FlushFailure(long firstTicket, long lastTicket, IOException error) {
+            this.firstTicket = firstTicket;
+            this.lastTicket = lastTicket;
+            this.error = error;
+            this.waiters = lastTicket - firstTicket + 1;
+        }
+    }
+
+    /** Forces a segment of the log to disk */
+    interface Forcer {
+        void force(FileChannel channel) throws IOException;
+    }
+
+    /** The Forcer of a new LogFile, which forces the channel */
+    static final Forcer CHANNEL_FORCER = new Forcer() {
+            public void force(FileChannel channel) throws IOException {
+                channel.force(true);
+            }
+        };
+
+    // group commit state; all protected by flushLock
+    private final Object flushLock = new Object();
+    private long commitsRequested = 0; // commit records written so far
+    private long commitsFlushed = 0;   // commit records whose force is over
+    // failed forces, by the last ticket they were meant to make durable;
+    // an entry is dropped once each of its commits has logged its abort,
+    // and no other commit is forced until then
+    private final TreeMap<Long,FlushFailure> flushFailures = new TreeMap<Long,FlushFailure>();
+    private long flushRetryDelay = 0;  // 0 unless the last force failed
+    Forcer forcer = CHANNEL_FORCER; // replaced by tests to fail forces
+    private long groupCommitDelay = DEFAULT_GROUP_COMMIT_DELAY;
+    private int groupCommitSize = DEFAULT_GROUP_COMMIT_SIZE;
+    private Thread flusher = null;
+    int totalForces = 0; // protected by flushLock
+
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
 
     /** Constructor.
@@ -105,8 +253,25 @@ public class LogFile {
         @param f The log file's name
     */
     public LogFile(File f) throws IOException {
+        this(f, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Constructor.  The log is stored in segments of the specified size,
+        if it is a new log; an existing log keeps its segment size.
+
+        @param f The log file's name
+        @param segmentSize The size of the segments in bytes
+    */
+    LogFile(File f, long segmentSize) throws IOException {
 	this.logFile = f;
+        this.newSegmentSize = segmentSize;
         raf = new RandomAccessFile(f, "rw");
+        this.segmentSize = segmentSize;
+        if (raf.length() >= 2 * LONG_SIZE) {
+            raf.seek(LONG_SIZE);
+            this.segmentSize = raf.readLong();
+        }
+        openSegments();
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,11 +292,214 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            resetLog();
+        }
+    }
+
+    /** Throw out the contents of the log, and start a new one */
+    private synchronized void resetLog() throws IOException {
+        logBuffer.clear();
+        deleteSegments(Long.MAX_VALUE);
+        segmentSize = newSegmentSize;
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        raf.writeLong(segmentSize);
+        fileEnd = 0;
+        forcedEnd = 0;
+        currentOffset = logEnd();
+    }
+
+    /** @return the file holding the specified segment of the log */
+    private File segmentFile(long n) {
+        return new File(logFile.getPath() + "." + n);
+    }
+
+    /** Open the segments of the log found on disk, and set fileEnd to
+        the end of the last one */
+    private void openSegments() throws IOException {
+        String prefix = logFile.getName() + ".";
+        File[] files = logFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files != null) {
+            for (File seg : files) {
+                String name = seg.getName();
+                if (!name.startsWith(prefix))
+                    continue;
+                long n;
+                try {
+                    n = Long.parseLong(name.substring(prefix.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                segments.put(n, new RandomAccessFile(seg, "rw"));
+            }
+        }
+        fileEnd = segments.isEmpty() ? 0
+            : segments.lastKey() * segmentSize + segments.lastEntry().getValue().length();
+        forcedEnd = fileEnd;
+    }
+
+    /** @return the channel of the specified segment, which is created
+        if it doesn't exist */
+    private synchronized FileChannel segment(long n) throws IOException {
+        RandomAccessFile seg = segments.get(n);
+        if (seg == null) {
+            seg = new RandomAccessFile(segmentFile(n), "rw");
+            segments.put(n, seg);
+        }
+        return seg.getChannel();
+    }
+
+    /** Close and delete the segments numbered below the specified one */
+    private synchronized void deleteSegments(long below) throws IOException {
+        while (!segments.isEmpty() && segments.firstKey() < below) {
+            Map.Entry<Long,RandomAccessFile> e = segments.pollFirstEntry();
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+    }
+
+    /** @return the offset of the first byte still in the log */
+    synchronized long logStart() {
+        return segments.isEmpty() ? fileEnd : segments.firstKey() * segmentSize;
+    }
+
+    /** @return the offset of the end of the log on disk, not counting
+        the records still in the log buffer */
+    synchronized long getFileEnd() {
+        return fileEnd;
+    }
+
+    /** Cut the log at the specified offset, throwing away everything
+        after it */
+    private synchronized void cutLog(long offset) throws IOException {
+        logBuffer.clear();
+        long last = offset / segmentSize;
+        segment(last).truncate(offset - last * segmentSize);
+        while (segments.lastKey() > last) {
+            Map.Entry<Long,RandomAccessFile> e = segments.pollLastEntry();
+            e.getValue().close();
+            segmentFile(e.getKey()).delete();
+        }
+        fileEnd = offset;
+        forcedEnd = Math.min(forcedEnd, offset);
+    }
+
+    /** @return the logical offset of the end of the log, that is the
+        offset at which the next appended byte will be written */
+    synchronized long logEnd() {
+        return fileEnd + logBuffer.position();
+    }
+
+    /** Write the contents of the log buffer to the end of the log file,
+        in one sequential write.  Must be called before the log file is
+        read or written directly. */
+    synchronized void flushLogBuffer() throws IOException {
+        if (logBuffer.position() == 0)
+            return;
+        logBuffer.flip();
+        int end = logBuffer.limit();
+        while (logBuffer.hasRemaining()) {
+            // write up to the end of the segment holding fileEnd
+            long n = fileEnd / segmentSize;
+            long pos = fileEnd - n * segmentSize;
+            logBuffer.limit((int) Math.min(end, logBuffer.position() + (segmentSize - pos)));
+            FileChannel channel = segment(n);
+            while (logBuffer.hasRemaining()) {
+                int written = channel.write(logBuffer, pos);
+                pos += written;
+                fileEnd += written;
+            }
+            logBuffer.limit(end);
+        }
+        logBuffer.clear();
+    }
+
+    /** @return the channels of the segments that may hold records not
+        yet forced to disk */
+    private synchronized ArrayList<FileChannel> unforcedSegments() throws IOException {
+        ArrayList<FileChannel> l = new ArrayList<FileChannel>();
+        long first = Math.max(forcedEnd / segmentSize, segments.isEmpty() ? 0 : segments.firstKey());
+        for (long n = first; n * segmentSize < fileEnd; n++)
+            if (segments.containsKey(n))
+                l.add(segment(n));
+        return l;
+    }
+
+    /** InputStream reading the log from a given offset up to fileEnd,
+        through a small buffer.  The log buffer must have been flushed. */
+    private class LogReader extends InputStream {
+        private final byte[] buf = new byte[4096];
+        private long bufStart = 0; // offset of buf[0]
+        private int bufLen = 0;
+        long pos; // offset of the next byte to read
+
+        LogReader(long offset) {
+            pos = offset;
+        }
+
+        /** Fill buf from pos, stopping at the end of a segment.
+            @return false at the end of the log */
+        private boolean fill() throws IOException {
+            if (pos >= bufStart && pos < bufStart + bufLen)
+                return true;
+            if (pos >= fileEnd)
+                return false;
+            long n = pos / segmentSize;
+            long segPos = pos - n * segmentSize;
+            int len = (int) Math.min(buf.length, Math.min(fileEnd - pos, segmentSize - segPos));
+            FileChannel channel = segment(n);
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, len);
+            while (bb.hasRemaining()) {
+                if (channel.read(bb, segPos + bb.position()) < 0)
+                    throw new EOFException("log segment " + n + " is too short");
+            }
+            bufStart = pos;
+            bufLen = len;
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buf[(int) (pos++ - bufStart)] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = (int) Math.min(len, bufStart + bufLen - pos);
+            System.arraycopy(buf, (int) (pos - bufStart), b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /** @return the long integer at the specified offset of the log */
+    private long readLong(long offset) throws IOException {
+        return new DataInputStream(new LogReader(offset)).readLong();
+    }
+
+    /** OutputStream appending to logBuffer, flushing it to the log file
+        whenever it fills up */
+    private class LogBufferStream extends OutputStream {
+        public void write(int b) throws IOException {
+            if (!logBuffer.hasRemaining())
+                flushLogBuffer();
+            logBuffer.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!logBuffer.hasRemaining())
+                    flushLogBuffer();
+                int n = Math.min(len, logBuffer.remaining());
+                logBuffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
         }
     }
 
@@ -158,10 +526,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                currentOffset = logEnd();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -169,21 +537,225 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  <p>
+
+        The log is not forced by the committing thread: the commit is
+        handed to a log flusher thread, which forces the log once for
+        all of the commits that are waiting, and this method returns
+        once the commit record is on disk.  See {@link
+        #setGroupCommitDelay} and {@link #setGroupCommitSize}.  <p>
+
+        If the force fails, the commit record is still in the log, and
+        a later force could make it durable.  The transaction is then
+        rolled back, and an ABORT record is logged after its COMMIT
+        record, before the flusher forces any other commit.
 
         @param tid The committing transaction.
+        @throws IOException if the commit record could not be forced;
+        the transaction has then been aborted
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long ticket;
+        Long firstRecord;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+            firstRecord = tidToFirstLogRecord.remove(tid.getId());
+
+            synchronized (flushLock) {
+                ticket = ++commitsRequested;
+                if (flusher == null) {
+                    flusher = new Thread(new Runnable() {
+                            public void run() { flushCommits(); }
+                        }, "LogFlusher");
+                    flusher.setDaemon(true);
+                    flusher.start();
+                }
+                flushLock.notifyAll();
+            }
+        }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+        FlushFailure failure = waitForFlush(ticket);
+        if (failure == null)
+            return;
+        try {
+            if (firstRecord != null) {
+                synchronized (this) {
+                    tidToFirstLogRecord.put(tid.getId(), firstRecord);
+                }
+                logAbort(tid);
+            }
+        } finally {
+            synchronized (flushLock) {
+                if (--failure.waiters == 0) {
+                    flushFailures.remove(failure.lastTicket);
+                    flushLock.notifyAll();
+                }
+            }
+        }
+        throw failure.error;
+    }
+
+    /** Block until the commit with the specified ticket has been forced
+        to disk by the log flusher.
+        @return null, or the failure of the force that was meant to make
+        the commit durable; later commits are not affected */
+    private FlushFailure waitForFlush(long ticket) {
+        boolean interrupted = false;
+        try {
+            synchronized (flushLock) {
+                while (commitsFlushed < ticket) {
+                    try {
+                        flushLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                Map.Entry<Long,FlushFailure> e = flushFailures.ceilingEntry(ticket);
+                if (e != null && e.getValue().firstTicket <= ticket)
+                    return e.getValue();
+                return null;
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Body of the log flusher thread: wait for commits, let the batch
+        grow for up to groupCommitDelay ms (or until it has
+        groupCommitSize commits), then force the log once for all of
+        them and wake up their threads.  After a failed force, the
+        commits of the batch are failed, and the flusher waits for them
+        to log their aborts and backs off before it forces the log
+        again. */
+    private void flushCommits() {
+        while (true) {
+            synchronized (flushLock) {
+                try {
+                    while (!flushFailures.isEmpty() && flusher == Thread.currentThread())
+                        flushLock.wait();
+                    long retry = System.currentTimeMillis() + flushRetryDelay;
+                    long wait;
+                    while (flushRetryDelay > 0 && (wait = retry - System.currentTimeMillis()) > 0
+                           && flusher == Thread.currentThread())
+                        flushLock.wait(wait);
+                    while (commitsRequested == commitsFlushed && flusher == Thread.currentThread())
+                        flushLock.wait();
+                    long deadline = System.currentTimeMillis() + groupCommitDelay;
+                    long left;
+                    while (commitsRequested - commitsFlushed < groupCommitSize
+                           && (left = deadline - System.currentTimeMillis()) > 0
+                           && flusher == Thread.currentThread())
+                        flushLock.wait(left);
+                } catch (InterruptedException e) {
+                    // just flush what we have
+                }
+                if (flusher != Thread.currentThread() && commitsRequested == commitsFlushed)
+                    return; // shut down
+            }
+
+            long target;
+            long end = 0;
+            ArrayList<FileChannel> channels = null;
+            IOException error = null;
+            // every commit record with a ticket up to target has been
+            // written, since tickets are handed out while holding this
+            synchronized (this) {
+                synchronized (flushLock) {
+                    target = commitsRequested;
+                }
+                try {
+                    flushLogBuffer();
+                    end = fileEnd;
+                    channels = unforcedSegments();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+            try {
+                if (error == null) {
+                    for (FileChannel channel : channels)
+                        forcer.force(channel);
+                    synchronized (this) {
+                        forcedEnd = Math.max(forcedEnd, end);
+                    }
+                }
+            } catch (java.nio.channels.ClosedChannelException e) {
+                continue; // a segment was deleted or cut; retry
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (flushLock) {
+                totalForces++;
+                if (error != null) {
+                    flushFailures.put(target, new FlushFailure(commitsFlushed + 1, target, error));
+                    flushRetryDelay = flushRetryDelay == 0 ? FLUSH_RETRY_DELAY
+                        : Math.min(2 * flushRetryDelay, MAX_FLUSH_RETRY_DELAY);
+                } else {
+                    flushRetryDelay = 0;
+                }
+                commitsFlushed = target;
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    /** Set the longest time the log flusher waits for more commits to
+        join a batch before forcing the log.  Larger values trade commit
+        latency for fewer forces under concurrent load.
+        @param millis the delay in milliseconds; 0 forces as soon as the
+        flusher is idle
+    */
+    public void setGroupCommitDelay(long millis) {
+        synchronized (flushLock) {
+            groupCommitDelay = millis;
+        }
+    }
+
+    /** Set the number of waiting commits after which the log flusher
+        forces the log without waiting for the group commit delay to
+        expire.
+        @param commits the batch size; must be at least 1
+    */
+    public void setGroupCommitSize(int commits) {
+        if (commits < 1)
+            throw new IllegalArgumentException("group commit size must be at least 1");
+        synchronized (flushLock) {
+            groupCommitSize = commits;
+        }
+    }
+
+    /** @return the number of times the log flusher has forced the log */
+    int getTotalForces() {
+        synchronized (flushLock) {
+            return totalForces;
+        }
+    }
+
+    /** Stop the log flusher thread once it has forced all of the
+        commits handed to it */
+    void stopFlusher() {
+        Thread t;
+        synchronized (flushLock) {
+            t = flusher;
+            flusher = null;
+            flushLock.notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -197,102 +769,265 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + logEnd());
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
+           compression method
+           before page data (see writeUpdate)
            after page data
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        writeUpdate(out, before, after);
+        out.writeLong(currentOffset);
+        currentOffset = logEnd();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    /** Write an INSERT record for the specified tid and tuple, which
+        has just been inserted at the slot given by its RecordId.
+        @param tid The transaction performing the insert
+        @param t The inserted tuple
+    */
+    public synchronized long logInsert(TransactionId tid, Tuple t)
+        throws IOException {
+        return logTupleRecord(tid, new TupleLogRecord(INSERT_RECORD, t));
+    }
+
+    /** Write a DELETE record for the specified tid and tuple, which
+        has just been deleted from the slot given by its RecordId.
+        @param tid The transaction performing the delete
+        @param t The deleted tuple
+    */
+    public synchronized long logDelete(TransactionId tid, Tuple t)
+        throws IOException {
+        return logTupleRecord(tid, new TupleLogRecord(DELETE_RECORD, t));
+    }
+
+    /** @return the offset (LSN) of the new record */
+    private long logTupleRecord(TransactionId tid, TupleLogRecord r)
+        throws IOException {
+        preAppend();
+        long lsn = currentOffset;
+        out.writeInt(r.type);
+        out.writeLong(tid.getId());
+        r.write(out);
+        out.writeLong(currentOffset);
+        currentOffset = logEnd();
+        return lsn;
+    }
+
+    /** Register the codec of a page class, so that its pages and page
+        ids can be written to the log.  The id is written to the log in
+        place of the classes, and must not change as long as the log holds
+        records written with it.
+
+        @param id The id of the codec, from 1 to 255
+        @param codec The codec
+    */
+    public static synchronized void registerCodec(int id, PageCodec codec) {
+        if (id <= 0 || id >= codecs.length)
+            throw new IllegalArgumentException("bad page codec id " + id);
+        if (codecs[id] != null && codecs[id] != codec)
+            throw new IllegalArgumentException("page codec id " + id + " is already taken");
+        codecs[id] = codec;
+        codecIds.put(codec.pageClass(), id);
+        codecIds.put(codec.pageIdClass(), id);
+    }
+
+    /** @return the id of the codec of the specified page or page id class */
+    private static int codecId(Class<?> c) throws IOException {
+        Integer id = codecIds.get(c);
+        if (id == null)
+            throw new IOException("no page codec registered for " + c.getName());
+        return id;
+    }
+
+    /** @return the codec with the specified id */
+    private static PageCodec codec(int id) throws IOException {
+        PageCodec codec = codecs[id];
+        if (codec == null)
+            throw new IOException("unknown page codec " + id);
+        return codec;
+    }
 
+    void writePageData(DataOutput raf, Page p) throws IOException{
         //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+        // page codec id
+        // page id (see writePageId)
+        // page data length
+        // page data
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        raf.writeByte(codecId(p.getClass()));
+        writePageId(raf, p.getId());
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        byte[] pageData = p.getPageData();
+        raf.writeInt(pageData.length);
+        raf.write(pageData);
+        //        Debug.log ("WROTE PAGE DATA, CLASS = " + p.getClass().getName() + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+    }
 
+    /** Write the codec id and the serialized form of pid */
+    static void writePageId(DataOutput raf, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        raf.writeByte(codecId(pid.getClass()));
         raf.writeInt(pageInfo.length);
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** Read a page id written by {@link #writePageId} */
+    static PageId readPageId(DataInput raf) throws IOException {
+        PageCodec codec = codec(raf.readUnsignedByte());
+        int idArgs[] = new int[raf.readInt()];
+        for (int i = 0; i < idArgs.length; i++) {
+            idArgs[i] = raf.readInt();
+        }
+        return codec.readPageId(idArgs);
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Read a page written by {@link #writePageData} */
+    Page readPageData(DataInput raf) throws IOException {
+        PageCodec codec = codec(raf.readUnsignedByte());
+        PageId pid = readPageId(raf);
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+        byte[] pageData = new byte[raf.readInt()];
+        raf.readFully(pageData); //read before image
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        //            Debug.log("READ PAGE OF TYPE " + codec.pageClass().getName() + ", table = " + pid.getTableId() + ", page = " + pid.pageNumber());
+        return codec.readPage(pid, pageData);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Set how the images of the UPDATE records written from now on
+        are compressed: UPDATE_UNCOMPRESSED or UPDATE_DEFLATE_DELTA.
+        Records already in the log are read back whatever this is.
+        INSERT and DELETE records are never compressed. */
+    public synchronized void setUpdateCompression(int method) {
+        if (method != UPDATE_UNCOMPRESSED && method != UPDATE_DEFLATE_DELTA)
+            throw new IllegalArgumentException("bad compression method " + method);
+        updateCompression = method;
+    }
 
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
+    /** Write the compression method and the before and after images of
+        an UPDATE record */
+    private void writeUpdate(DataOutput out, Page before, Page after)
+        throws IOException {
+        out.writeByte(updateCompression);
+        if (updateCompression == UPDATE_UNCOMPRESSED) {
+            writePageData(out, before);
+            writePageData(out, after);
+            return;
+        }
+        byte[] beforeData = before.getPageData();
+        writeCompressedPage(out, before, beforeData, null);
+        writeCompressedPage(out, after, after.getPageData(), beforeData);
+    }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+    /** Read the images written by {@link #writeUpdate} into r */
+    private void readUpdate(DataInput in, LogRecord r) throws IOException {
+        int method = in.readUnsignedByte();
+        switch (method) {
+        case UPDATE_UNCOMPRESSED:
+            r.before = readPageData(in);
+            r.after = readPageData(in);
+            break;
+        case UPDATE_DEFLATE_DELTA:
+            byte[][] beforeData = new byte[1][];
+            r.before = readCompressedPage(in, null, beforeData);
+            r.after = readCompressedPage(in, beforeData[0], null);
+            break;
+        default:
+            throw new IOException("unknown compression method " + method);
+        }
+    }
 
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException e){
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (IllegalAccessException e) {
-            e.printStackTrace();
-            throw new IOException();
-        } catch (InvocationTargetException e) {
-            e.printStackTrace();
-            throw new IOException();
+    /** Write page p, whose data is given, like writePageData does, but
+        with its data XORed with base, if base is not null, and deflated */
+    private static void writeCompressedPage(DataOutput out, Page p, byte[] data,
+                                            byte[] base) throws IOException {
+        out.writeByte(codecId(p.getClass()));
+        writePageId(out, p.getId());
+
+        if (base != null)
+            data = xor(data, base);
+        byte[] compressed = deflate(data);
+        out.writeInt(data.length);
+        out.writeInt(compressed.length);
+        out.write(compressed);
+    }
+
+    /** Read a page written by {@link #writeCompressedPage}.
+        @param base The base its data was XORed with, or null
+        @param data If not null, its first element is set to the data
+        of the page */
+    private static Page readCompressedPage(DataInput in, byte[] base,
+                                           byte[][] data) throws IOException {
+        PageCodec codec = codec(in.readUnsignedByte());
+        PageId pid = readPageId(in);
+
+        int length = in.readInt();
+        byte[] compressed = new byte[in.readInt()];
+        in.readFully(compressed);
+        byte[] pageData = inflate(compressed, length);
+        if (base != null)
+            pageData = xor(pageData, base);
+        if (data != null)
+            data[0] = pageData;
+        return codec.readPage(pid, pageData);
+    }
+
+    /** @return a XOR b, which is as long as a; the bytes past the end of
+        b are copied from a */
+    private static byte[] xor(byte[] a, byte[] b) {
+        byte[] x = a.clone();
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++)
+            x[i] ^= b[i];
+        return x;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 8 + 64);
+            byte[] buf = new byte[1024];
+            while (!deflater.finished())
+                bytes.write(buf, 0, deflater.deflate(buf));
+            return bytes.toByteArray();
+        } finally {
+            deflater.end();
         }
-        return newPage;
+    }
 
+    private static byte[] inflate(byte[] compressed, int length) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] data = new byte[length];
+            int n = 0;
+            while (n < length) {
+                int read = inflater.inflate(data, n, length - n);
+                if (read == 0 && (inflater.finished() || inflater.needsInput()))
+                    break;
+                n += read;
+            }
+            if (n != length)
+                throw new IOException("corrupt compressed page image");
+            return data;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed page image", e);
+        } finally {
+            inflater.end();
+        }
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,157 +1042,91 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        currentOffset = logEnd();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-    public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+    /** Checkpoint the log and write a checkpoint record.  <p>
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
-            }
+        The checkpoint is fuzzy: rather than writing out every dirty page
+        while holding the buffer pool, it records the active transactions
+        and the buffer pool's dirty-page table, so that transactions keep
+        running while it is taken.  Dirty pages are written in the
+        background by the buffer pool, which advances the point at which
+        recovery starts redo.
+    */
+    public void logCheckpoint() throws IOException {
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + logEnd());
+            preAppend();
+            long startCpOffset = logEnd();
+            LogRecord cp = new LogRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+            cp.active = new HashMap<Long,Long>(tidToFirstLogRecord);
+            // any change logged before startCpOffset was noted in the
+            // dirty-page table before it was logged
+            cp.dirty = new HashMap<PageId,Long>(Database.getBufferPool().dirtyPageTable());
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(cp.tid);
+            writeBody(out, cp);
+            out.writeLong(currentOffset);
+            currentOffset = logEnd();
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.getChannel().force(true);
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption.  Everything before the point at which recovery would
+        start, that is the start of redo and the first record of the
+        transactions active at the last checkpoint, is unneeded; the
+        segments holding only such records are deleted. */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        flushLogBuffer();
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID)
+            return;
 
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        LogRecord cp = readRecord(cpLoc);
+        if (cp.type != CHECKPOINT_RECORD) {
+            throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
         }
 
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
+        long minLogRecord = redoStart(cp);
+        for (long firstLogRecord : cp.active.values()) {
+            if (firstLogRecord < minLogRecord) {
+                minLogRecord = firstLogRecord;
             }
         }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
-        //print();
+        Debug.log("TRUNCATING LOG;  WAS " + (fileEnd - logStart()) + " BYTES ; NEW START : " + minLogRecord);
+        deleteSegments(minLogRecord / segmentSize);
     }
 
     /** Rollback the specified transaction, setting the state of any
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  <p>
+
+        The changes of the transaction are undone in reverse order,
+        on the cached copy of each page if there is one; a CLR is logged
+        for each of them.  The log is then forced, and the rolled back
+        pages are written to disk and discarded from the buffer pool.
 
         @param tid The transaction to rollback
     */
@@ -467,44 +1136,476 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null)
+                    throw new NoSuchElementException("transaction " + tid.getId() + " has no BEGIN record");
+
+                HashMap<PageId,Page> undone = new HashMap<PageId,Page>();
+                undo(Collections.singleton(tid.getId()), firstRecord, undone);
+                // the CLRs must reach the disk before the pages they change
+                if (!undone.isEmpty())
+                    force();
+                for (Page p : undone.values()) {
+                    Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    Database.getBufferPool().discardPage(p.getId());
+                }
             }
         }
     }
 
+    /** A log record read back from the log by rollback and recovery.
+        Only the fields that apply to its type are set. */
+    private static class LogRecord {
+        final int type;
+        final long tid;
+        long offset;            // where the record starts
+        long next;              // where the following record starts
+        Page before, after;     // UPDATE
+        TupleLogRecord tuple;   // INSERT and DELETE
+        long undoNext;          // CLR: offset of the undone record
+        LogRecord change;       // CLR: the change undoing it
+        HashMap<Long,Long> active; // CHECKPOINT: tid -> first record
+        HashMap<PageId,Long> dirty; // CHECKPOINT: page -> recLSN
+
+        LogRecord(int type, long tid) {
+            this.type = type;
+            this.tid = tid;
+        }
+
+        /** @return the page changed by this record, or null if it
+            doesn't change any */
+        PageId getPageId() {
+            switch (type) {
+            case UPDATE_RECORD:
+                return after.getId();
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                return tuple.rid.getPageId();
+            case CLR_RECORD:
+                return change.getPageId();
+            }
+            return null;
+        }
+
+        /** @return a change undoing this UPDATE, INSERT or DELETE record */
+        LogRecord inverse() {
+            LogRecord inv;
+            if (type == UPDATE_RECORD) {
+                inv = new LogRecord(UPDATE_RECORD, tid);
+                inv.before = after;
+                inv.after = before;
+            } else {
+                inv = new LogRecord(type == INSERT_RECORD ? DELETE_RECORD : INSERT_RECORD, tid);
+                inv.tuple = new TupleLogRecord(inv.type, tuple.rid, tuple.tupleData);
+            }
+            return inv;
+        }
+
+        /** Apply the change described by this record to p, the page it
+            refers to.
+            @return the page holding the result, which is p unless this is
+            an UPDATE record */
+        Page redo(Page p) throws IOException {
+            switch (type) {
+            case UPDATE_RECORD:
+                return after;
+            case INSERT_RECORD:
+            case DELETE_RECORD:
+                tuple.redo((HeapPage) p);
+                return p;
+            case CLR_RECORD:
+                return change.redo(p);
+            }
+            return p;
+        }
+    }
+
+    /** Read the record starting at the specified offset of the log
+        file.  The log buffer must have been flushed.
+        @throws EOFException if the record runs past the end of the file
+    */
+    private LogRecord readRecord(long offset) throws IOException {
+        LogReader reader = new LogReader(offset);
+        DataInputStream in = new DataInputStream(reader);
+        int type = in.readInt();
+        LogRecord r = new LogRecord(type, in.readLong());
+        r.offset = offset;
+        switch (type) {
+        case UPDATE_RECORD:
+        case INSERT_RECORD:
+        case DELETE_RECORD:
+        case CLR_RECORD:
+        case CHECKPOINT_RECORD:
+            readBody(in, r);
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("bad log record type " + type + " at offset " + offset);
+        }
+        if (in.readLong() != offset)
+            throw new IOException("corrupt log record at offset " + offset);
+        r.next = reader.pos;
+        return r;
+    }
+
+    /** Read the body of an UPDATE, INSERT, DELETE, CLR or CHECKPOINT
+        record */
+    private void readBody(DataInput in, LogRecord r) throws IOException {
+        switch (r.type) {
+        case CHECKPOINT_RECORD:
+            r.active = new HashMap<Long,Long>();
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long xid = in.readLong();
+                r.active.put(xid, in.readLong());
+            }
+            r.dirty = new HashMap<PageId,Long>();
+            int numPages = in.readInt();
+            while (numPages-- > 0) {
+                PageId pid = readPageId(in);
+                r.dirty.put(pid, in.readLong());
+            }
+            break;
+        case UPDATE_RECORD:
+            readUpdate(in, r);
+            break;
+        case INSERT_RECORD:
+        case DELETE_RECORD:
+            r.tuple = TupleLogRecord.read(r.type, in);
+            break;
+        case CLR_RECORD:
+            r.undoNext = in.readLong();
+            r.change = new LogRecord(in.readInt(), r.tid);
+            readBody(in, r.change);
+            break;
+        }
+    }
+
+    /** Write the body of an UPDATE, INSERT, DELETE, CLR or CHECKPOINT
+        record */
+    private void writeBody(DataOutput out, LogRecord r) throws IOException {
+        switch (r.type) {
+        case CHECKPOINT_RECORD:
+            out.writeInt(r.active.size());
+            for (Map.Entry<Long,Long> e : r.active.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(r.dirty.size());
+            for (Map.Entry<PageId,Long> e : r.dirty.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            break;
+        case UPDATE_RECORD:
+            writeUpdate(out, r.before, r.after);
+            break;
+        case INSERT_RECORD:
+        case DELETE_RECORD:
+            r.tuple.write(out);
+            break;
+        case CLR_RECORD:
+            out.writeLong(r.undoNext);
+            out.writeInt(r.change.type);
+            writeBody(out, r.change);
+            break;
+        }
+    }
+
+    /** Undo the changes made by the specified transactions, scanning the
+        log backwards from its end down to stopAt.  Changes already undone
+        by a CLR are skipped, and a CLR is logged for each change undone
+        here.  The undone pages are left in pages, which is also used to
+        look pages up before they are read from the buffer pool or disk.
+    */
+    private void undo(Set<Long> tids, long stopAt, Map<PageId,Page> pages)
+        throws IOException {
+        flushLogBuffer();
+        // tid -> offset of the oldest change undone by a CLR
+        HashMap<Long,Long> undoneFrom = new HashMap<Long,Long>();
+        long end = fileEnd;
+        while (end > stopAt) {
+            LogRecord r = readRecord(readLong(end - LONG_SIZE));
+            end = r.offset;
+            if (!tids.contains(r.tid))
+                continue;
+
+            if (r.type == CLR_RECORD) {
+                Long from = undoneFrom.get(r.tid);
+                if (from == null || r.undoNext < from)
+                    undoneFrom.put(r.tid, r.undoNext);
+            } else if (r.type == UPDATE_RECORD || r.type == INSERT_RECORD
+                       || r.type == DELETE_RECORD) {
+                Long from = undoneFrom.get(r.tid);
+                if (from != null && r.offset >= from)
+                    continue;
+
+                LogRecord inverse = r.inverse();
+                PageId pid = r.getPageId();
+                Page p = pages.get(pid);
+                if (p == null)
+                    p = Database.getBufferPool().pages.get(pid);
+                if (p == null)
+                    p = readPageForRecovery(pid);
+                p = inverse.redo(p);
+                if (p instanceof HeapPage)
+                    ((HeapPage) p).setLSN(logClr(r.tid, r.offset, inverse));
+                pages.put(pid, p);
+            }
+        }
+    }
+
+    /** Write a CLR for the specified transaction, recording that the
+        record at offset undoNext was undone by change.
+        @return the offset (LSN) of the CLR */
+    private long logClr(long tid, long undoNext, LogRecord change)
+        throws IOException {
+        LogRecord clr = new LogRecord(CLR_RECORD, tid);
+        clr.undoNext = undoNext;
+        clr.change = change;
+
+        preAppend();
+        long lsn = currentOffset;
+        out.writeInt(CLR_RECORD);
+        out.writeLong(tid);
+        writeBody(out, clr);
+        out.writeLong(currentOffset);
+        currentOffset = logEnd();
+        return lsn;
+    }
+
+    /** @return the on-disk version of the specified page, or an empty
+        page if it lies past the end of its file */
+    private Page readPageForRecovery(PageId pid) throws IOException {
+        DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        if (f instanceof HeapFile && pid.pageNumber() >= ((HeapFile) f).numPages())
+            return new HeapPage((HeapPageId) pid, HeapPage.createEmptyPageData());
+        return f.readPage(pid);
+    }
+
     /** Shutdown the logging system, writing out whatever state
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
+        // the flusher needs this monitor to finish its last batch, so it
+        // must be stopped before we take it
+        stopFlusher();
         try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            // nothing else is running, so write out every page and make
+            // the checkpoint a sharp one that leaves nothing to redo
+            force();
+            Database.getBufferPool().flushAllPages();
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
+        synchronized (this) {
+            try {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                flushLogBuffer();
+                raf.close();
+                for (RandomAccessFile seg : segments.values())
+                    seg.close();
+            } catch (IOException e) {
+                System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                e.printStackTrace();
+            }
+        }
     }
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
-        updates of uncommitted transactions are not installed.
+        updates of uncommitted transactions are not installed.  <p>
+
+        Recovery runs in three passes: analysis scans the log from the
+        last checkpoint to find the transactions that were still running
+        at the crash; redo then repeats history, applying to the pages on
+        disk every change logged since the checkpoint, and the older
+        changes to pages that the checkpoint found dirty; and undo rolls
+        back the unfinished transactions as {@link #rollback} does, and
+        logs an ABORT record for each of them.  Redo is partitioned by
+        page: the changes to each page are applied in log order by one of
+        REDO_THREADS worker threads, which read and write the page once.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                logBuffer.clear();
+                if (raf.length() < 2 * LONG_SIZE) {
+                    // nothing was ever logged
+                    resetLog();
+                    return;
+                }
+
+                // analysis
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                HashMap<Long,Long> active = new HashMap<Long,Long>();
+                HashMap<PageId,Long> dirty = null;
+                long offset = logStart();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    LogRecord cp = readRecord(cpLoc);
+                    active.putAll(cp.active);
+                    dirty = cp.dirty;
+                    offset = redoStart(cp);
+                }
+                LinkedHashMap<PageId,ArrayList<LogRecord>> changes =
+                    new LinkedHashMap<PageId,ArrayList<LogRecord>>();
+                while (offset < fileEnd) {
+                    LogRecord r;
+                    try {
+                        r = readRecord(offset);
+                    } catch (IOException e) {
+                        // a record torn by the crash; nothing after it
+                        // can have been forced
+                        break;
+                    }
+                    if (r.offset < cpLoc) {
+                        // before the checkpoint, which holds the state of
+                        // the transactions: only redo changes to pages that
+                        // were dirty, and not yet written, when it was taken
+                        PageId pid = r.getPageId();
+                        Long recLSN = pid == null ? null : dirty.get(pid);
+                        if (recLSN != null && r.offset >= recLSN)
+                            addChange(changes, r);
+                        offset = r.next;
+                        continue;
+                    }
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        active.put(r.tid, r.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        active.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                    case INSERT_RECORD:
+                    case DELETE_RECORD:
+                    case CLR_RECORD:
+                        addChange(changes, r);
+                        break;
+                    }
+                    offset = r.next;
+                }
+                if (offset < fileEnd)
+                    cutLog(offset);
+                currentOffset = logEnd();
+
+                redo(changes);
+
+                // undo
+                if (!active.isEmpty()) {
+                    HashMap<PageId,Page> undone = new HashMap<PageId,Page>();
+                    undo(active.keySet(), Collections.min(active.values()), undone);
+                    for (Long tid : active.keySet()) {
+                        out.writeInt(ABORT_RECORD);
+                        out.writeLong(tid);
+                        out.writeLong(currentOffset);
+                        currentOffset = logEnd();
+                    }
+                    // as in rollback, the CLRs must reach the disk before
+                    // the pages they change
+                    force();
+                    for (Page p : undone.values())
+                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                }
+                tidToFirstLogRecord.clear();
+                force();
             }
          }
     }
 
+    /** @return the offset at which redo starts for the specified
+        checkpoint record: the oldest recLSN of its dirty pages, or the
+        checkpoint itself */
+    private static long redoStart(LogRecord cp) {
+        long start = cp.offset;
+        for (long recLSN : cp.dirty.values())
+            start = Math.min(start, recLSN);
+        return start;
+    }
+
+    /** Add r to the changes to redo on its page */
+    private static void addChange(Map<PageId,ArrayList<LogRecord>> changes,
+                                  LogRecord r) {
+        ArrayList<LogRecord> l = changes.get(r.getPageId());
+        if (l == null) {
+            l = new ArrayList<LogRecord>();
+            changes.put(r.getPageId(), l);
+        }
+        l.add(r);
+    }
+
+    /** Apply the changes to each page, in order, with REDO_THREADS
+        threads, and write the pages back to disk. */
+    private void redo(Map<PageId,ArrayList<LogRecord>> changes) throws IOException {
+        if (changes.isEmpty())
+            return;
+        java.util.concurrent.ExecutorService workers =
+            java.util.concurrent.Executors.newFixedThreadPool(Math.min(REDO_THREADS, changes.size()));
+        ArrayList<java.util.concurrent.Future<Void>> done =
+            new ArrayList<java.util.concurrent.Future<Void>>();
+        try {
+            for (final Map.Entry<PageId,ArrayList<LogRecord>> e : changes.entrySet()) {
+                done.add(workers.submit(new java.util.concurrent.Callable<Void>() {
+                        public Void call() throws IOException {
+                            PageId pid = e.getKey();
+                            Page p = readPageForRecovery(pid);
+                            for (LogRecord r : e.getValue()) {
+                                p = r.redo(p);
+                                if (p instanceof HeapPage)
+                                    ((HeapPage) p).setLSN(r.offset);
+                            }
+                            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+                            return null;
+                        }
+                    }));
+            }
+            for (java.util.concurrent.Future<Void> f : done) {
+                try {
+                    f.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted during redo");
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
         // some code goes here
     }
 
     public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+        flushLogBuffer();
+        for (FileChannel channel : unforcedSegments())
+            forcer.force(channel);
+        forcedEnd = fileEnd;
+    }
+
+    /** Force the log to disk, unless the record starting at the
+        specified offset is already on disk.  The log is only ever forced
+        up to the end of a record, so nothing needs to be written if the
+        forced part of the log extends past lsn.  Called before a page
+        whose last change was logged at lsn is written to disk.
+    */
+    public synchronized void forceUpTo(long lsn) throws IOException {
+        if (lsn < forcedEnd)
+            return;
+        force();
     }
 
 }
@@ -0,0 +1,37 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * A PageCodec rebuilds the pages and page ids of one Page class from the
+ * form in which they are written to the log.  Each codec is registered
+ * with {@link LogFile#registerCodec} under a small numeric id, which the
+ * log records in place of the page and page id classes, so that log
+ * records are read back without reflection.
+ *
+ * @see LogFile#writePageData
+ * @see LogFile#readPageData
+ */
+public interface PageCodec {
+
+    /** @return the class of the pages this codec creates */
+    public Class<? extends Page> pageClass();
+
+    /** @return the class of the page ids this codec creates */
+    public Class<? extends PageId> pageIdClass();
+
+    /**
+     * Create a page id from its serialized form.
+     *
+     * @param data the integers returned by {@link PageId#serialize}
+     */
+    public PageId readPageId(int[] data) throws IOException;
+
+    /**
+     * Create a page from its data.
+     *
+     * @param pid the id of the page, created by {@link #readPageId}
+     * @param data the bytes returned by {@link Page#getPageData}
+     */
+    public Page readPage(PageId pid, byte[] data) throws IOException;
+}
@@ -6,8 +6,8 @@ public interface PageId {
     /** Return a representation of this page id object as a collection of
         integers (used for logging)
 
-        This class MUST have a constructor that accepts n integer parameters,
-        where n is the number of integers returned in the array from serialize.
+        The PageCodec of the page class rebuilds the page id from these
+        integers; see {@link LogFile#registerCodec}.
     */
     public int[] serialize();
 
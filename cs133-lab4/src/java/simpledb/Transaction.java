@@ -39,27 +39,34 @@ public class Transaction {
         transactionComplete(true);
     }
 
-    /** Handle the details of transaction commit / abort */
+    /** Handle the details of transaction commit / abort.  The locks of
+        the transaction are released even if logging its outcome fails;
+        a transaction whose commit fails is aborted. */
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
-            //write commit / abort records
-            if (abort) {
-                Database.getLogFile().logAbort(tid); //does rollback too
-            } else {
-                //write all the dirty pages for this transaction out
-                Database.getBufferPool().flushPages(tid);
-                Database.getLogFile().logCommit(tid);
-            }
-
+            boolean committed = false;
             try {
-                Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+                //write commit / abort records
+                if (abort) {
+                    Database.getLogFile().logAbort(tid); //does rollback too
+                } else {
+                    // the pages of the transaction are written out by the
+                    // buffer pool when it is in FORCE mode; otherwise the
+                    // forced commit record is enough
+                    Database.getLogFile().logCommit(tid);
+                    committed = true;
+                }
+            } finally {
+                try {
+                    Database.getBufferPool().transactionComplete(tid, committed); // release locks
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
 
-            //setting this here means we could possibly write multiple abort records -- OK?
-            started = false;
+                //setting this here means we could possibly write multiple abort records -- OK?
+                started = false;
+            }
         }
     }
 }
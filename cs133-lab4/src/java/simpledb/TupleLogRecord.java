@@ -0,0 +1,83 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * A TupleLogRecord is the body of an INSERT or DELETE log record: it
+ * describes the insertion or deletion of a single tuple in one slot of a
+ * HeapPage, and holds only the bytes of that tuple rather than before and
+ * after images of the whole page.  It is applied to a page with {@link
+ * #redo}; a change is undone by applying the record of the opposite type.
+ *
+ * @see LogFile#logInsert
+ * @see LogFile#logDelete
+ */
+class TupleLogRecord {
+
+    /** LogFile.INSERT_RECORD or LogFile.DELETE_RECORD */
+    final int type;
+    /** The page and slot of the tuple */
+    final RecordId rid;
+    /** The serialized fields of the tuple */
+    final byte[] tupleData;
+
+    TupleLogRecord(int type, RecordId rid, byte[] tupleData) {
+        this.type = type;
+        this.rid = rid;
+        this.tupleData = tupleData;
+    }
+
+    /** Create the record of the insertion or deletion of tuple t, which
+        must have a RecordId */
+    TupleLogRecord(int type, Tuple t) throws IOException {
+        this.type = type;
+        this.rid = t.getRecordId();
+
+        TupleDesc td = t.getTupleDesc();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        for (int i = 0; i < td.numFields(); i++)
+            t.getField(i).serialize(dos);
+        dos.flush();
+        this.tupleData = baos.toByteArray();
+    }
+
+    /** Write this record (without its type, tid and start offset, which
+        are written by LogFile) */
+    void write(DataOutput out) throws IOException {
+        LogFile.writePageId(out, rid.getPageId());
+        out.writeInt(rid.tupleno());
+        out.writeInt(tupleData.length);
+        out.write(tupleData);
+    }
+
+    /** Read a record of the specified type written by {@link #write} */
+    static TupleLogRecord read(int type, DataInput in) throws IOException {
+        PageId pid = LogFile.readPageId(in);
+        int slot = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new TupleLogRecord(type, new RecordId(pid, slot), data);
+    }
+
+    /** @return the tuple described by this record, with its RecordId set */
+    Tuple getTuple() throws IOException {
+        TupleDesc td = Database.getCatalog().getTupleDesc(rid.getPageId().getTableId());
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(tupleData));
+        Tuple t = new Tuple(td);
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.setField(i, td.getFieldType(i).parse(dis));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new IOException("parsing error!");
+        }
+        t.setRecordId(rid);
+        return t;
+    }
+
+    /** Apply this record to p, the page it refers to */
+    void redo(HeapPage p) throws IOException {
+        p.setSlot(rid.tupleno(), type == LogFile.INSERT_RECORD ? getTuple() : null);
+    }
+}
@@ -43,6 +43,56 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile with BufferPool.setPageSize():  pages are
+     * sized, read and counted with the page size of the database.
+     */
+    @Test public void smallerPages() throws Exception {
+        BufferPool.setPageSize(1024);
+        try {
+            java.io.File f = java.io.File.createTempFile("small", ".dat");
+            f.deleteOnExit();
+            HeapFile small = Utility.createEmptyHeapFile(f.getAbsolutePath(), 2);
+            // 126 tuples of two ints fit on a 1024-byte page
+            for (int i = 0; i < 200; ++i)
+                small.insertTuple(tid, Utility.getHeapTuple(i, 2));
+            assertEquals(2, small.numPages());
+            Database.getBufferPool().flushAllPages();
+            assertEquals(2048, f.length());
+            HeapPage p = (HeapPage) small.readPage(new HeapPageId(small.getId(), 1));
+            assertEquals(126 - 74, p.getNumEmptySlots());
+        } finally {
+            BufferPool.setPageSize(BufferPool.PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.writePages(): pages given out of order, with
+     * a gap between them, all land at their own offsets.
+     */
+    @Test public void writePages() throws Exception {
+        java.util.ArrayList<Page> pages = new java.util.ArrayList<Page>();
+        for (int pgno : new int[] { 3, 0, 1 }) {
+            HeapPage p = new HeapPage(new HeapPageId(empty.getId(), pgno),
+                    HeapPage.createEmptyPageData());
+            p.insertTuple(Utility.getHeapTuple(pgno, 2));
+            pages.add(p);
+        }
+        empty.writePages(pages);
+        assertEquals(4, empty.numPages());
+
+        for (int pgno = 0; pgno < 4; pgno++) {
+            HeapPage p = (HeapPage) empty.readPage(new HeapPageId(empty.getId(), pgno));
+            java.util.Iterator<Tuple> it = p.iterator();
+            if (pgno == 2) {
+                assertFalse(it.hasNext());
+            } else {
+                assertEquals(new IntField(pgno), it.next().getField(0));
+                assertFalse(it.hasNext());
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,417 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class LogFileTest extends SimpleDbTestBase {
+    private File f;
+    private LogFile log;
+
+    @Before public void createLog() throws IOException {
+        f = File.createTempFile("logtest", ".log");
+        f.deleteOnExit();
+        log = new LogFile(f);
+    }
+
+    @After public void tearDown() {
+        log.stopFlusher();
+        f.delete();
+        for (long n = 0; n < 100; n++)
+            new File(f.getPath() + "." + n).delete();
+    }
+
+    /**
+     * Records are buffered in memory until the log is forced.
+     */
+    @Test public void bufferedAppend() throws Exception {
+        final int recordSize = LogFile.INT_SIZE + 2 * LogFile.LONG_SIZE;
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        assertEquals(0, log.getFileEnd());
+        assertEquals(recordSize, log.logEnd());
+
+        log.force();
+        assertEquals(recordSize, log.getFileEnd());
+
+        // more records than fit in the buffer are written out as it fills
+        int n = 2 * LogFile.LOG_BUFFER_SIZE / recordSize;
+        for (int i = 0; i < n; i++)
+            log.logXactionBegin(new TransactionId());
+        assertTrue(log.getFileEnd() > LogFile.LOG_BUFFER_SIZE);
+        assertEquals((n + 1) * recordSize, log.logEnd());
+        log.force();
+        assertEquals(log.logEnd(), log.getFileEnd());
+    }
+
+    /**
+     * The log is split into segments, and truncation deletes the
+     * segments before the last checkpoint without moving the others.
+     */
+    @Test public void segments() throws Exception {
+        final int segmentSize = 64;
+        log = new LogFile(f, segmentSize);
+        for (int i = 0; i < 50; i++) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            log.logCommit(tid);
+        }
+        long end = log.getFileEnd();
+        long last = (end - 1) / segmentSize;
+        assertTrue(last > 10);
+        for (long n = 0; n <= last; n++)
+            assertTrue(new File(f.getPath() + "." + n).exists());
+
+        log.logCheckpoint();
+        assertTrue(log.logStart() > 0);
+        assertTrue(log.logStart() <= end);
+        assertFalse(new File(f.getPath() + ".0").exists());
+        assertTrue(new File(f.getPath() + "." + last).exists());
+
+        // records keep their offsets, and recovery finds the checkpoint,
+        // which may span two segments
+        log.force();
+        LogFile reopened = new LogFile(f, 1024);
+        assertEquals(log.logStart(), reopened.logStart());
+        assertEquals(log.getFileEnd(), reopened.getFileEnd());
+        reopened.recover();
+        assertEquals(log.getFileEnd(), reopened.getFileEnd());
+        reopened.stopFlusher();
+    }
+
+    /**
+     * Pages and page ids are written as the id of their codec, and read
+     * back through it.
+     */
+    @Test public void pageCodecs() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3, null, null);
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        log.writePageData(new DataOutputStream(baos), page);
+        byte[] bytes = baos.toByteArray();
+        assertEquals(LogFile.HEAP_PAGE_CODEC, bytes[0]);
+        Page read = log.readPageData(new DataInputStream(new ByteArrayInputStream(bytes)));
+        assertEquals(page.getId(), read.getId());
+        assertTrue(java.util.Arrays.equals(page.getPageData(), read.getPageData()));
+
+        try {
+            LogFile.registerCodec(LogFile.HEAP_PAGE_CODEC, new PageCodec() {
+                    public Class<? extends Page> pageClass() { return null; }
+                    public Class<? extends PageId> pageIdClass() { return null; }
+                    public PageId readPageId(int[] data) { return null; }
+                    public Page readPage(PageId pid, byte[] data) { return null; }
+                });
+            fail("Expected the codec id to be taken");
+        } catch (IllegalArgumentException e) {}
+    }
+
+    /**
+     * UPDATE records are compressed by default, and a compressed record
+     * is rolled back like an uncompressed one.
+     */
+    @Test public void compressedUpdates() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage before = (HeapPage) hf.readPage(pid);
+        HeapPage after = (HeapPage) hf.readPage(pid);
+        Tuple t = after.iterator().next();
+        after.deleteTuple(t);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        long start = log.logEnd();
+        log.logWrite(tid, before, after);
+        assertTrue(log.logEnd() - start < BufferPool.getPageSize() / 4);
+
+        // the change reached the disk, and is undone from the record
+        hf.writePage(after);
+        log.rollback(tid);
+        assertTrue(((HeapPage) hf.readPage(pid)).isSlotUsed(t.getRecordId().tupleno()));
+
+        log.setUpdateCompression(LogFile.UPDATE_UNCOMPRESSED);
+        start = log.logEnd();
+        log.logWrite(tid, before, after);
+        assertTrue(log.logEnd() - start > 2 * BufferPool.getPageSize());
+    }
+
+    /**
+     * INSERT and DELETE records survive a round trip through their byte
+     * form, and redo their change to the page;  the record of the opposite
+     * type undoes it.
+     */
+    @Test public void tupleRecords() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 3, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        Tuple t = page.iterator().next();
+        int slot = t.getRecordId().tupleno();
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new TupleLogRecord(LogFile.DELETE_RECORD, t).write(new DataOutputStream(baos));
+        TupleLogRecord r = TupleLogRecord.read(LogFile.DELETE_RECORD,
+                new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+        assertEquals(t.getRecordId(), r.rid);
+        // the record holds the tuple, not the page
+        assertEquals(hf.getTupleDesc().getSize(), r.tupleData.length);
+
+        r.redo(page);
+        assertFalse(page.isSlotUsed(slot));
+        new TupleLogRecord(LogFile.INSERT_RECORD, r.rid, r.tupleData).redo(page);
+        assertTrue(page.isSlotUsed(slot));
+        assertEquals(t.getField(0), page.iterator().next().getField(0));
+        assertEquals(t.getField(1), page.iterator().next().getField(1));
+    }
+
+    /**
+     * Recovery redoes the changes of committed transactions and undoes
+     * those of transactions that were running at the crash.
+     */
+    @Test public void recover() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, rows);
+        LogFile dbLog = Database.getLogFile();
+
+        // a committed delete that never reached the disk
+        Transaction winner = new Transaction();
+        winner.start();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        Tuple deleted = page.iterator().next();
+        dbLog.logDelete(winner.getId(), deleted);
+        dbLog.logCommit(winner.getId());
+
+        // an uncommitted insert, which HeapFile writes through to disk
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().insertTuple(loser.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { -1, -1 }));
+        dbLog.force();
+
+        // crash, and recover with a fresh buffer pool
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        new LogFile(dbLog.logFile).recover();
+
+        ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>(rows);
+        expected.remove(SystemTestUtil.tupleToList(deleted));
+        SystemTestUtil.matchTuples(hf, expected);
+    }
+
+    /**
+     * A checkpoint writes no page, but records the dirty pages so that
+     * recovery redoes the changes to them logged before the checkpoint.
+     */
+    @Test public void fuzzyCheckpoint() throws Exception {
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, rows);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        LogFile dbLog = Database.getLogFile();
+
+        Transaction t = new Transaction();
+        t.start();
+        Tuple deleted = ((HeapPage) Database.getBufferPool().getPage(t.getId(), pid,
+                Permissions.READ_WRITE)).iterator().next();
+        Database.getBufferPool().deleteTuple(t.getId(), deleted);
+        long lsn = ((HeapPage) Database.getBufferPool().getPage(t.getId(), pid,
+                Permissions.READ_WRITE)).getLSN();
+
+        dbLog.logCheckpoint();
+        assertTrue(((HeapPage) hf.readPage(pid)).isSlotUsed(deleted.getRecordId().tupleno()));
+        Long recLSN = Database.getBufferPool().dirtyPageTable().get(pid);
+        assertTrue(recLSN != null && recLSN <= lsn);
+
+        // commit, and crash before the page is written
+        dbLog.logCommit(t.getId());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        new LogFile(dbLog.logFile).recover();
+
+        rows.remove(SystemTestUtil.tupleToList(deleted));
+        SystemTestUtil.matchTuples(hf, rows);
+    }
+
+    /**
+     * The page writer leaves write-locked pages alone, and writes the
+     * others out of the dirty-page table.
+     */
+    @Test public void pageWriter() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        BufferPool bp = Database.getBufferPool();
+
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        Tuple t = ((HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE)).iterator().next();
+        bp.deleteTuple(tid, t);
+        assertEquals(0, bp.writeDirtyPages(BufferPool.WRITER_BATCH));
+        assertTrue(bp.dirtyPageTable().containsKey(pid));
+
+        bp.releasePage(tid, pid);
+        assertEquals(1, bp.writeDirtyPages(BufferPool.WRITER_BATCH));
+        assertTrue(bp.dirtyPageTable().isEmpty());
+        assertFalse(((HeapPage) hf.readPage(pid)).isSlotUsed(t.getRecordId().tupleno()));
+    }
+
+    /**
+     * A page appended by an insert reaches the disk empty:  the tuple is
+     * only written once the log holds the insert.
+     */
+    @Test public void appendedPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        assertEquals(1, hf.numPages());
+
+        TransactionId tid = new TransactionId();
+        Database.getLogFile().logXactionBegin(tid);
+        Database.getBufferPool().insertTuple(tid, hf.getId(),
+                Utility.getHeapTuple(new int[] { -1, -1 }));
+        assertEquals(2, hf.numPages());
+        HeapPageId pid = new HeapPageId(hf.getId(), 1);
+        assertEquals(504, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+        assertEquals(503, ((HeapPage) Database.getBufferPool().getPage(tid, pid,
+                Permissions.READ_ONLY)).getNumEmptySlots());
+    }
+
+    /**
+     * Concurrent commits should share forces of the log.
+     */
+    @Test public void groupCommit() throws Exception {
+        final int threads = 16;
+        log.setGroupCommitDelay(100);
+        log.setGroupCommitSize(threads);
+
+        final TransactionId[] tids = new TransactionId[threads];
+        for (int i = 0; i < threads; i++) {
+            tids[i] = new TransactionId();
+            log.logXactionBegin(tids[i]);
+        }
+
+        final Exception[] errors = new Exception[threads];
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int n = i;
+            committers[i] = new Thread() {
+                public void run() {
+                    try {
+                        log.logCommit(tids[n]);
+                    } catch (Exception e) {
+                        errors[n] = e;
+                    }
+                }
+            };
+            committers[i].start();
+        }
+        for (int i = 0; i < threads; i++) {
+            committers[i].join();
+            assertEquals(null, errors[i]);
+        }
+
+        assertEquals(2 * threads, log.getTotalRecords());
+        assertTrue(log.getTotalForces() < threads);
+    }
+
+    /**
+     * A single commit must not wait for a full batch.
+     */
+    @Test public void lonelyCommit() throws Exception {
+        log.setGroupCommitDelay(10);
+        log.setGroupCommitSize(1000);
+
+        TransactionId tid = new TransactionId();
+        log.logXactionBegin(tid);
+        log.logCommit(tid);
+        assertEquals(1, log.getTotalForces());
+    }
+
+    /**
+     * A failed force must fail the commits that waited on it, and only
+     * them.
+     */
+    @Test public void failedForce() throws Exception {
+        log.setGroupCommitSize(1);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        log.logXactionBegin(t1);
+        log.logXactionBegin(t2);
+
+        log.forcer = failingForcer(1);
+        try {
+            log.logCommit(t1);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        log.logCommit(t2);
+        assertEquals(2, log.getTotalForces());
+    }
+
+    /**
+     * A transaction whose commit fails is aborted, and releases its locks.
+     */
+    @Test public void failedCommitAborts() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(7, 2));
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), pid));
+
+        Database.getLogFile().forcer = failingForcer(1);
+        try {
+            t.commit();
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertFalse(Database.getBufferPool().holdsLock(t.getId(), pid));
+        assertFalse(Database.getLogFile().tidToFirstLogRecord.containsKey(t.getId().getId()));
+
+        // the insert was rolled back
+        Transaction reader = new Transaction();
+        reader.start();
+        DbFileIterator it = hf.iterator(reader.getId());
+        it.open();
+        int count = 0;
+        for (; it.hasNext(); it.next())
+            count++;
+        it.close();
+        assertEquals(1, count);
+        reader.commit();
+    }
+
+    /** @return a Forcer whose first n forces fail */
+    private static LogFile.Forcer failingForcer(final int n) {
+        return new LogFile.Forcer() {
+            private int failures = n;
+
+            public void force(FileChannel channel) throws IOException {
+                if (failures > 0) {
+                    failures--;
+                    throw new IOException("injected force failure");
+                }
+                channel.force(true);
+            }
+        };
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogFileTest.class);
+    }
+}
@@ -67,6 +67,8 @@ public class TransactionTest extends TestUtil.CreateHeapFile {
    * that abort reverts pages to their previous on-disk state.
    */
   public void testTransactionComplete(boolean commit) throws Exception {
+    // the change is not logged, so only FORCE makes the commit durable
+    bp.setForce(true);
     HeapPage p = (HeapPage) bp.getPage(tid1, p2, Permissions.READ_WRITE);
 
     Tuple t = Utility.getHeapTuple(new int[] { 6, 830 });